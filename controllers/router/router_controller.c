@@ -59,6 +59,19 @@ typedef struct {
     uint32_t current;
 } __attribute__ ((packed)) update_info_t;
 
+/** acknowledges a command; the same size as update_info_t so it can be sent
+    in the same stream (the GUI recognizes it by its marker) */
+typedef struct {
+    uint32_t marker;   /* ACK_MARKER */
+    uint32_t code;     /* the command which was executed */
+    uint32_t queue;    /* the queue it affected */
+    uint32_t val;      /* the value read back from the register */
+    uint32_t unused1;
+    uint32_t unused2;
+} __attribute__ ((packed)) ack_info_t;
+
+#define ACK_MARKER 0xFFFFFFFF
+
 #define MAX_FRAME_SIZE 1514
 #define OVERHEAD_SIZE (14 + 20 + 32) /* 14B Ethernet header, 20B IP header, 20B
                                         TCP header, 12B TCP options seem typical */
@@ -78,10 +91,12 @@ static unsigned update_evcaps_per_info;
 static unsigned update_infos_per_update_packet;
 static double startTime;
 static int client_fd = -1;
+static pthread_mutex_t client_write_lock = PTHREAD_MUTEX_INITIALIZER;
 
 static void* controller_main( void* nil );
 static void event_capture_handler();
 static void parseEvCap(uint8_t* buf, unsigned len, update_info_t* u);
+static void send_ack( byte code, byte queue, uint32_t val );
 
 int main( int argc, char** argv ) {
     int verbose = 0;
@@ -270,11 +285,13 @@ static void* controller_main( void* nil ) {
                 else
                     print("rate limiter has been disabled");
 
+                send_ack( packet.code, packet.queue, get_rate_limit(packet.queue) );
                 break;
 
             case CODE_SET_BUF_SIZE:
                 set_buffer_size_packets( packet.queue, packet.val );
                 print("buffer size has been changed to %u packets in size", packet.val);
+                send_ack( packet.code, packet.queue, get_buffer_size_packets(packet.queue) );
                 break;
 
             default:
@@ -283,14 +300,33 @@ static void* controller_main( void* nil ) {
         }
 
         print("connection to client at %s closed", inet_ntoa(cliaddr.sin_addr));
+        pthread_mutex_lock( &client_write_lock );
         close(client_fd);
         client_fd = -1;
+        pthread_mutex_unlock( &client_write_lock );
     }
 
     close(servfd);
     return NULL;
 }
 
+/** tells the client that a command has been applied to the hardware */
+static void send_ack( byte code, byte queue, uint32_t val ) {
+    ack_info_t ack;
+    ack.marker  = htonl(ACK_MARKER);
+    ack.code    = htonl(code);
+    ack.queue   = htonl(queue);
+    ack.val     = htonl(val);
+    ack.unused1 = 0;
+    ack.unused2 = 0;
+
+    pthread_mutex_lock( &client_write_lock );
+    if( client_fd >= 0 )
+        writen(client_fd, &ack, sizeof(ack));
+    pthread_mutex_unlock( &client_write_lock );
+    print_verbose(1, "ack sent for code %u on queue %u (value=%u)", code, queue, val);
+}
+
 #define TYPE_TS 0
 #define TYPE_ARRIVE 1
 #define TYPE_DEPART 2
@@ -374,11 +410,13 @@ static void event_capture_handler() {
 
             /* see if the packet is full yet */
             if( updateInfoOn == update_infos_per_update_packet ) {
-                /* send the update to the GUI */
+                /* send the update to the GUI (acks are sent from the other thread) */
+                pthread_mutex_lock( &client_write_lock );
                 if( client_fd >= 0 ) {
                     writen(client_fd, &update, update_infos_per_update_packet * sizeof(update_info_t));
                     print_verbose(2, "update sent to client");
                 }
+                pthread_mutex_unlock( &client_write_lock );
 
                 /* start again! */
                 updateInfoOn = 0;
@@ -0,0 +1,346 @@
+package dgu.bufsizing;
+
+import dgu.bufsizing.control.CommandFuture;
+import dgu.bufsizing.data.SequentialRateTest;
+
+/**
+ * Measures the minimum buffer size which fully utilizes one bottleneck link
+ * for each of a list of flow counts (auto mode).  A sweep drives its link
+ * directly (not through the GUI's sliders) and runs on its own thread, so a
+ * sweep can run on every bottleneck link at once as long as each link has its
+ * own traffic generators.
+ *
+ * @author David Underhill
+ */
+public class AutoSweep {
+    /** the auto mode parameters a sweep runs with */
+    public static class Params {
+        /** what fraction of maximum throughput is close enough to be called
+         * a link maximally utilized */
+        public double fullUtilThreshold = 0.99;
+        
+        /** most time to wait for a new number of flows to stabalize */
+        public int flowStabilizeTime_msec = 5000;
+        
+        /** most time to wait for a new buffer size to stabalize */
+        public int bufszStabilizeTime_msec = 2000;
+        
+        /** how long to sample throughput */
+        public int xputSampleTime_msec = 1000;
+        
+        /** how precise the search for the ideal buffer size should be */
+        public int searchPrecision_bytes = BottleneckLink.BYTES_PER_PACKET;
+        
+        /** largest buffer size which may be tried */
+        public int maxBufSize_bytes = 524288;
+        
+        /** expected time to measure a buffer size which starts at bfszStart */
+        public double getBound_msec( int bfszStart ) {
+            return flowStabilizeTime_msec + (Math.ceil( Math.log(bfszStart / searchPrecision_bytes) / Math.log(2)) + 2) * (bufszStabilizeTime_msec + xputSampleTime_msec);
+        }
+        
+        /** expected time to measure a buffer size on b with n flows */
+        public double getExpectedBound_msec( BottleneckLink b, int n ) {
+            return getBound_msec( BottleneckLink.computeBufSize(BufferSizeRule.FLOW_SENSITIVE, b.getRTT_ms(), b.getRateLimit_kbps(), n) );
+        }
+    }
+    
+    public static final boolean REVERIFY_OVEREXPECTED = false;
+    
+    /** throughputs this close (as a fraction of the maximum throughput) to
+     * the full utilization threshold may be called either way */
+    private static final double SPRT_INDIFFERENCE_FRACTION = 0.005;
+    
+    /** chance of calling a throughput outside of the indifference zone wrong */
+    private static final double SPRT_ERROR_RATE = 0.05;
+    
+    /** longest a throughput test may run (as a multiple of the sample time) */
+    private static final int SPRT_MAX_SAMPLE_TIMES = 3;
+    
+    /** how often to check whether the link has settled */
+    private static final int SETTLE_POLL_MSEC = 20;
+    
+    private final BottleneckLink b;
+    private final int[] ns;
+    private final Params p;
+    private final boolean repeat;
+    
+    private volatile boolean stopping = false;
+    private Thread thread = null;
+    
+    /**
+     * Creates a sweep (call start() to run it).
+     * @param b       the link to measure
+     * @param ns      the numbers of flows to measure the buffer size for
+     * @param p       the parameters to measure with
+     * @param repeat  whether to start over once every n has been measured
+     */
+    public AutoSweep( BottleneckLink b, int[] ns, Params p, boolean repeat ) {
+        this.b = b;
+        this.ns = ns;
+        this.p = p;
+        this.repeat = repeat;
+    }
+    
+    public BottleneckLink getLink() {
+        return b;
+    }
+    
+    /** starts the sweep on its own thread */
+    public synchronized void start() {
+        if( thread != null )
+            return;
+        
+        thread = new Thread( "Auto Sweep: " + b ) {
+            public void run() {
+                sweep();
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+    }
+    
+    /** asks the sweep to stop (it stops at the next check) */
+    public void stop() {
+        stopping = true;
+    }
+    
+    /** returns true if the sweep has been asked to stop */
+    public boolean isStopping() {
+        return stopping;
+    }
+    
+    /** returns true until the sweep's thread has finished */
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+    
+    /** prints a message prefixed with the link's name */
+    protected void log( String msg ) {
+        System.err.println( "[" + b.getNameShort() + "] " + msg );
+    }
+    
+    /** runs the sweep (on the sweep's thread) */
+    protected void sweep() {
+        // the sweep sizes the buffer itself
+        b.setBufSizeRule( BufferSizeRule.CUSTOM );
+        
+        do {
+            for( int n : ns ) {
+                int res = computeBufferSizeForN(n);
+                if( stopping )
+                    break;
+                
+                if( res != -1 )
+                    b.addMeasuredResult( res );
+            }
+        }
+        while( repeat && !stopping );
+        
+        // remove the unsettled point
+        b.clearInProgressPoint();
+    }
+    
+    /**
+     * returns the measured buffer size in B needed to achieve maximum link
+     * utilization with n flows; retries the measurement up to three times if
+     * the first one is higher than expected
+     */
+    public int computeBufferSizeForN(int n) {
+        int expectedPlus10Percent = BottleneckLink.computeBufSize(BufferSizeRule.FLOW_SENSITIVE,b.getRTT_ms(),b.getRateLimit_kbps(),n) * 11 / 10;
+        int numTries = 3;
+        
+        // try it once
+        int res = computeBufferSizeForN_once(n);
+        
+        // if more than 10% over expected, then try again
+        if(REVERIFY_OVEREXPECTED) {
+            while( --numTries > 0 && res > expectedPlus10Percent ) {
+                log("Yuck, res is > 10% bigger than expected ... trying again in case it was noise");
+                res = computeBufferSizeForN_once(n);
+            }
+            
+            if( res > expectedPlus10Percent ) {
+                log("Still no dice -- skipping this data point because we can't get a good reading");
+                return -1;
+            }
+            else
+                return res;
+        }
+        else
+            return res;
+    }
+    
+    /**
+     * returns the measured buffer size in B needed to achieve maximum link
+     * utilization with n flows
+     */
+    private int computeBufferSizeForN_once(int n) {
+        long startTime = System.currentTimeMillis();
+        
+        // initialize buffer size to its maximum size
+        int bfszMax = p.maxBufSize_bytes;
+        b.setCustomBufSize( bfszMax );
+        
+        // set the number of flows to the requested value
+        b.setNumFlows(n);
+        log("Measuring buffer size needed for n = " + n);
+        
+        // wait for the new # of flows to be applied and then to stabalize
+        // (the stabilization time is an upper bound)
+        log("  Waiting for flows to stabalize ...");
+        long changeTime = System.currentTimeMillis();
+        b.awaitPendingChanges(p.flowStabilizeTime_msec);
+        waitForStable(changeTime, p.flowStabilizeTime_msec);
+        
+        // get the throughput for when the buffer size is maximized => maximum throughput
+        int maxThroughput_bps = getAvgThroughputReading_bps(p.xputSampleTime_msec);
+        int maxThroughputThresh_bps = (int)(p.fullUtilThreshold * maxThroughput_bps);
+        log("  Max throughput = " + maxThroughput_bps + "bps ... thresh=" + maxThroughputThresh_bps );
+        
+        // search for the minimum buffer size which maximizes throughput; the
+        // search keeps a posterior over it (centered on RTT*C/sqrt(N) to start
+        // with) so one noisy reading can't send it into the wrong half for good
+        BufferSizeSearch search = new BufferSizeSearch( bfszMax, b.getActualBufSize(BufferSizeRule.FLOW_SENSITIVE) );
+        double indifference_bps = SPRT_INDIFFERENCE_FRACTION * maxThroughput_bps;
+        int maxProbes = BufferSizeSearch.getMaxProbes( bfszMax, p.searchPrecision_bytes );
+        while( !search.isDone(p.searchPrecision_bytes) && search.getNumProbes() < maxProbes ) {
+            if( stopping )
+                return -1;
+            
+            // probe where we expect to learn the most (the posterior median)
+            int probe_B = search.getNextProbe();
+            b.setCustomBufSize( probe_B );
+            b.noteCurrentMeasuredResult( search.getEstimate_B(), search.getCredibleLow_B(), search.getCredibleHigh_B(),
+                                         search.getConfidence(p.searchPrecision_bytes) );
+            
+            // give the new buffer size a chance to stabalize (the router's
+            // acknowledgement tells us when it has actually been applied; if
+            // none arrives, this waits the full stabilization time as before)
+            changeTime = System.currentTimeMillis();
+            waitForBufSizeAck(p.bufszStabilizeTime_msec);
+            if( n == 1 ) // extra time for n == 1
+                waitForStable(changeTime, 2 * p.bufszStabilizeTime_msec);
+            else
+                waitForStable(changeTime, p.bufszStabilizeTime_msec);
+            
+            // test whether the link is fully utilized with this buffer size
+            SequentialRateTest test = testThroughput(maxThroughputThresh_bps, indifference_bps);
+            boolean saturated = test.isAbove();
+            log("  Measurement: bfsz=" + probe_B + "B ... xput=" + (int)test.getMean() + "bps" );
+            log( (saturated ? "  ==> fully utilized" : "  ==> underutilized!") + " (" + test.getDecision()
+                 + " after " + test.getNumSamples() + " samples, reliability " + (int)(100 * test.getReliability()) + "%)" );
+            
+            search.update( probe_B, saturated, test.getReliability() );
+            log( "  Posterior: " + search + " after " + search.getNumProbes() + " probes" );
+        }
+        
+        // cleanup the old progress point
+        b.clearInProgressPoint();
+        
+        // compare expected and actual runtimes
+        long runtime_msec = System.currentTimeMillis() - startTime;
+        double expected_msec = p.getExpectedBound_msec(b, n);
+        double delta_msec = runtime_msec - expected_msec;
+        double abs_delta_msec = Math.abs(delta_msec);
+        double percentOff = delta_msec / expected_msec * 100;
+        String deltaNote = (runtime_msec > expected_msec) ? "Slower" : "Faster";
+        log( "Runtime stats: " +
+             "    Upper bound: " + (int)(p.getBound_msec(bfszMax) / 1000) + "sec\n" +
+             "    Expected:    " + (int)(expected_msec / 1000) + "sec\n" +
+             "    Actual:      " + (int)(runtime_msec / 1000) + "sec\n" +
+             "      =========> " + deltaNote + " than expected by " + (int)(abs_delta_msec / 1000) + "sec (" + (int)percentOff + "% from expected)\n" );
+        
+        // return the measured minimum buffer size value
+        log( "  Result: " + search + " (confidence " + (int)(100 * search.getConfidence(p.searchPrecision_bytes)) + "%)" );
+        return search.getEstimate_B();
+    }
+    
+    /**
+     * Waits until the router acknowledges the last buffer size sent to it or
+     * until max_msec has passed, whichever comes first.
+     * @return true if the buffer size was acknowledged
+     */
+    private boolean waitForBufSizeAck(int max_msec) {
+        // the change is applied by the link's owner thread, so make sure it
+        // has been sent to the router before looking for its ack
+        long start = System.currentTimeMillis();
+        b.awaitPendingChanges(max_msec);
+        max_msec = Math.max(0, max_msec - (int)(System.currentTimeMillis() - start));
+        
+        CommandFuture ack = b.getBufSizeAck();
+        if( ack == null ) {
+            DemoGUI.msleep(max_msec);
+            return false;
+        }
+        
+        start = System.currentTimeMillis();
+        if( ack.awaitAck(max_msec) )
+            return true;
+        
+        // it failed early (e.g. connection lost), so wait out the rest anyway
+        long left_msec = max_msec - (System.currentTimeMillis() - start);
+        if( left_msec > 0 )
+            DemoGUI.msleep((int)left_msec);
+        return false;
+    }
+    
+    /**
+     * Waits until the link's throughput and queue occupancy have settled, or
+     * until max_msec after changeTime (the old fixed stabilization time) has
+     * passed.
+     * @return true if the link settled
+     */
+    private boolean waitForStable(long changeTime, int max_msec) {
+        b.resetStability();
+        while( !b.isStable() ) {
+            long left_msec = max_msec - (System.currentTimeMillis() - changeTime);
+            if( left_msec <= 0 || stopping )
+                return false;
+            
+            DemoGUI.msleep((int)Math.min(SETTLE_POLL_MSEC, left_msec));
+        }
+        
+        log("    settled after " + (System.currentTimeMillis() - changeTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Tests whether the link's throughput is above thresh_bps with a
+     * sequential test over its throughput samples, which stops as soon as the
+     * evidence is strong enough (or after SPRT_MAX_SAMPLE_TIMES sample times,
+     * in which case the mean so far decides).  Also reports the queue
+     * occupancy distribution over the test.
+     */
+    private SequentialRateTest testThroughput(int thresh_bps, double indifference_bps) {
+        SequentialRateTest test = new SequentialRateTest(thresh_bps, indifference_bps, SPRT_ERROR_RATE);
+        b.resetOccupancyWindow();
+        b.setThroughputTest(test);
+        
+        long start = System.currentTimeMillis();
+        long max_msec = (long)SPRT_MAX_SAMPLE_TIMES * p.xputSampleTime_msec;
+        while( !test.isDecided() && !stopping ) {
+            long left_msec = max_msec - (System.currentTimeMillis() - start);
+            if( left_msec <= 0 )
+                break;
+            
+            DemoGUI.msleep((int)Math.min(SETTLE_POLL_MSEC, left_msec));
+        }
+        
+        b.setThroughputTest(null);
+        log("    occupancy: " + b.getOccupancySnapshot(null));
+        return test;
+    }
+    
+    /**
+     * gets the average throughput reading over the specified time interval
+     * (and reports the queue occupancy distribution over the same interval)
+     */
+    private int getAvgThroughputReading_bps(int time_msec) {
+        b.resetXputMovingAverage();
+        b.resetOccupancyWindow();
+        DemoGUI.msleep(time_msec);
+        log("    occupancy: " + b.getOccupancySnapshot(null));
+        return b.getXputMovingAverage();
+    }
+}
@@ -1,7 +1,21 @@
 package dgu.bufsizing;
 
+import dgu.bufsizing.control.CommandFuture;
+import dgu.bufsizing.control.IperfController;
 import dgu.bufsizing.control.RouterController;
 import dgu.bufsizing.control.RouterController.RouterCmd;
+import dgu.bufsizing.data.CompressedSeries;
+import dgu.bufsizing.data.DecimatingSeries;
+import dgu.bufsizing.data.EwmaRate;
+import dgu.bufsizing.data.MappedHistory;
+import dgu.bufsizing.data.MeanRate;
+import dgu.bufsizing.data.OccupancyHistogram;
+import dgu.bufsizing.data.PeakRate;
+import dgu.bufsizing.data.RateEstimator;
+import dgu.bufsizing.data.RingSeries;
+import dgu.bufsizing.data.RollupStore;
+import dgu.bufsizing.data.SequentialRateTest;
+import dgu.bufsizing.data.StabilityDetector;
 import dgu.util.IllegalArgValException;
 import java.awt.BasicStroke;
 import java.awt.Color;
@@ -10,6 +24,7 @@ import java.awt.Polygon;
 import java.io.*;
 import java.util.HashMap;
 import java.util.Vector;
+import javax.swing.SwingUtilities;
 import org.jfree.data.xy.XYSeries;
 
 /**
@@ -38,16 +53,21 @@ public class BottleneckLink extends Link<Router> {
     private int rateLimit_kbps;
     private int customBufSize_bytes;
     private int lastBufSize_bytes = -1;
+    
+    // the most recent commands sent to the router (null until one is sent)
+    private CommandFuture bufSizeAck = null;
+    private CommandFuture rateLimitAck = null;
+    
     private boolean selected;
     
     // the traffic generator responsible for handling flows over this link
     private TrafficGenerator tgen;
+    private IperfController.Pool iperfPool = IperfController.DEFAULT_POOL;
     
     // recently collected data
     private long time_offset_ns8 = 0;
     private long prev_time_offset_end_ns8 = 0;
     private long bytes_arrived_since_last_update = 0;
-    private long bytes_sent_since_last_update = 0;
     private int  queueOcc_bytes = -1;
     private int  numDropped_bytes = -1;
     private static final int SEC_DIV_8NS  = 125000000;
@@ -57,22 +77,189 @@ public class BottleneckLink extends Link<Router> {
      * packets which is reasonably for the type of traffic we generate) */
     public static final int BYTES_PER_PACKET = 1500;
     
-    // empirical data collected from the router
-    private final XYSeries dataThroughput    = new XYSeries("Throughput",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataThroughputPer = new XYSeries("Link Utilization",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataQueueOcc      = new XYSeries("Queue Occupancy",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataQueueOccPer   = new XYSeries("Queue Utilization",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataNumDropped = new XYSeries("Num Dropped",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataNumDroppedPer = new XYSeries("Num Dropped : Buffer Size",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
+    // empirical data collected from the router (fixed-size rings => O(1), allocation-free appends)
+    private final RingSeries dataThroughput;
+    private final RingSeries dataThroughputPer;
+    private final RingSeries dataQueueOcc;
+    private final RingSeries dataQueueOccPer;
+    private final RingSeries dataNumDropped;
+    private final RingSeries dataNumDroppedPer;
+    
+    // queue occupancy changes on every packet, so it is decimated per pixel column as it arrives
+    private final DecimatingSeries decQueueOcc;
+    private final DecimatingSeries decQueueOccPer;
+    
+    /** most pixel columns the occupancy chart is expected to span */
+    public static final int MAX_OCC_CHART_WIDTH = 2048;
+    
+    // every raw occupancy and throughput point, compressed (8KB blocks => ~3M points each)
+    public static final int COMPRESSED_BLOCKS_TO_KEEP = 1024;
+    private final CompressedSeries compQueueOcc   = new CompressedSeries( "Queue Occupancy", COMPRESSED_BLOCKS_TO_KEEP );
+    private final CompressedSeries compThroughput = new CompressedSeries( "Throughput",      COMPRESSED_BLOCKS_TO_KEEP );
+    
+    // time-weighted distribution of the queue's occupancy since the window was last reset
+    private final OccupancyHistogram occHist = new OccupancyHistogram();
+    
+    // long-term history of raw events rolled up at several resolutions
+    public static final int HISTORY_QUEUE_OCC  = 0;
+    public static final int HISTORY_BYTES_SENT = 1;
+    public static final int HISTORY_DROPS      = 2;
+    private final RollupStore history = new RollupStore( 3 );
+    
+    // the same events kept off-heap in memory-mapped files (null until enabled)
+    private MappedHistory[] historyFiles = null;
     
     // last throughput data point (replicated to avoid critical section / locking) (float => one word ~=> atomic)
     private float instantaneousUtilization = 0.0f;
     private float instantaneousQueueOcc    = 0.0f;
     private float instantaneousDropPer     = 0.0f;
     
+    /** an unchanging copy of the points in one of the results series */
+    private static class ResultPoints {
+        final double[] x, y;
+        
+        /** must hold the lock of s's link */
+        ResultPoints( XYSeries s ) {
+            x = new double[s.getItemCount()];
+            y = new double[x.length];
+            for( int i=0; i<x.length; i++ ) {
+                x[i] = s.getX(i).doubleValue();
+                y[i] = s.getY(i).doubleValue();
+            }
+        }
+    }
+    
+    /**
+     * An unchanging copy of the link's instantaneous values, its results
+     * series and, when the GUI asked for them, the changes to the chart series
+     * since the GUI's chart view last took some.  The ingest side publishes a
+     * new one every PUBLISH_INTERVAL_MSEC (and the owner thread does while no
+     * traffic arrives), so the charts and map never take the link's lock and
+     * ingest never waits for rendering.  Only the changed points (and results
+     * series) are copied.
+     */
+    public static class Snapshot {
+        public final float utilization, queueOcc, dropPer;
+        public final int queueOcc_bytes, actualBufSize_bytes;
+        
+        /** when this snapshot was published */
+        public final long published_millis = System.currentTimeMillis();
+        
+        /** order this snapshot was published in */
+        private final long seq;
+        
+        /** changes to each of the link's chart series (null if the GUI did not ask for them) */
+        private final RingSeries.Delta[] charts;
+        
+        /** the points of each of the link's results series (shared until a series changes) */
+        private final ResultPoints[] results;
+        
+        /** set once charts has been applied to the chart view */
+        private volatile boolean chartsTaken = false;
+        
+        /** must hold b's lock */
+        private Snapshot( BottleneckLink b, long seq, RingSeries.Delta[] charts ) {
+            this.seq = seq;
+            this.charts = charts;
+            results = b.resultPoints.clone();
+            
+            utilization = b.instantaneousUtilization;
+            queueOcc = b.instantaneousQueueOcc;
+            dropPer = b.instantaneousDropPer;
+            queueOcc_bytes = b.queueOcc_bytes;
+            actualBufSize_bytes = b.getActualBufSize();
+        }
+    }
+    
+    /**
+     * The GUI's copies of a link's chart and results series.  They are only
+     * touched on the Swing event thread, which brings them up to date with the
+     * deltas and results in each snapshot (see updateChartView()).
+     */
+    public static class ChartView {
+        public final RingSeries dataThroughput, dataThroughputPer;
+        public final RingSeries dataQueueOcc, dataQueueOccPer;
+        public final RingSeries dataNumDropped, dataNumDroppedPer;
+        public final RingSeries dataBufSize, dataRateLimit;
+        public final XYSeries dataRTheROT, dataRTheGuido, dataRMea;
+        public final XYSeries dataRToday, dataRCur, dataRCurRange;
+        
+        /** the series above in the order of the link's chartSeries */
+        private final RingSeries[] all;
+        
+        /** the results series above in the order of the link's resultSeries */
+        private final XYSeries[] results;
+        
+        /** the points last copied into each results series */
+        private final ResultPoints[] shownResults;
+        
+        /** seq of the newest snapshot applied */
+        private long seq = -1;
+        
+        private ChartView( RingSeries[] src, XYSeries[] srcResults ) {
+            all = new RingSeries[src.length];
+            for( int i=0; i<src.length; i++ )
+                all[i] = new RingSeries( src[i].getKey(), src[i].getCapacity() );
+            
+            results = new XYSeries[srcResults.length];
+            shownResults = new ResultPoints[srcResults.length];
+            for( int i=0; i<srcResults.length; i++ ) {
+                results[i] = new XYSeries( srcResults[i].getKey(), AUTOSORT_SETTING, ALLOW_DUPS_SETTING );
+                prepareXYSeries( results[i], srcResults[i].getMaximumItemCount() );
+            }
+            
+            dataThroughput    = all[0];
+            dataThroughputPer = all[1];
+            dataQueueOcc      = all[2];
+            dataQueueOccPer   = all[3];
+            dataNumDropped    = all[4];
+            dataNumDroppedPer = all[5];
+            dataBufSize       = all[6];
+            dataRateLimit     = all[7];
+            
+            dataRTheROT   = results[0];
+            dataRTheGuido = results[1];
+            dataRMea      = results[2];
+            dataRToday    = results[3];
+            dataRCur      = results[4];
+            dataRCurRange = results[5];
+        }
+    }
+    
+    /** how often the ingest side publishes a new snapshot */
+    public static final int PUBLISH_INTERVAL_MSEC = 100;
+    
+    private volatile Snapshot snapshot = null;
+    private long numSnapshotsPublished = 0;
+    
+    /** set by the GUI to have the next snapshot carry chart deltas */
+    private volatile boolean chartsWanted = false;
+    
+    /** the newest snapshot which carried chart deltas */
+    private Snapshot lastChartsSnapshot = null;
+    
+    /** the chart series in ChartView order */
+    private final RingSeries[] chartSeries;
+    
+    /** position each chart series has (maybe) changed from since the chart view took a delta */
+    private final long[] chartsChangedFrom;
+    
+    private final ChartView chartView;
+    
+    /** bucket width the GUI wants the occupancy decimated to (applied by ingest) */
+    private volatile long occResolution_ns8 = 0;
+    
+    /**
+     * Control-plane changes are applied by this link's owner thread.  The
+     * link's data is also written by the event applier thread (or by the
+     * UpdateInfo processor for the first link) and by the owner thread when it
+     * publishes an idle snapshot, so every writer holds the link's lock.
+     */
+    private final LinkMailbox mailbox = new LinkMailbox( this );
+    
     // settings for buffer size and rate limit as set by the user
-    private final XYSeries dataBufSize = new XYSeries("Buffer Size",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
-    private final XYSeries dataRateLimit = new XYSeries("Max Link Rate",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
+    private final RingSeries dataBufSize;
+    private final RingSeries dataRateLimit;
     private boolean forceSet;
     
     private final XYSeries dataRTheROT = new XYSeries("Rule Of Thumb (RTT*C)  ",AUTOSORT_SETTING,ALLOW_DUPS_SETTING);
@@ -82,6 +269,12 @@ public class BottleneckLink extends Link<Router> {
     private final XYSeries dataRCur = new XYSeries("Now", AUTOSORT_SETTING, ALLOW_DUPS_SETTING);
     private final XYSeries dataRCurRange = new XYSeries("Now Range", AUTOSORT_SETTING, ALLOW_DUPS_SETTING);
     
+    /** the results series in ChartView order */
+    private final XYSeries[] resultSeries = { dataRTheROT, dataRTheGuido, dataRMea, dataRToday, dataRCur, dataRCurRange };
+    
+    /** a copy of each results series' points, replaced whenever the series changes */
+    private final ResultPoints[] resultPoints = new ResultPoints[resultSeries.length];
+    
     private boolean autoThreshLines = false;
     
     /** Returns the current time in units of 8ns (with millisecond resolution) */
@@ -111,14 +304,15 @@ public class BottleneckLink extends Link<Router> {
 
     public synchronized void clearMeasuredPoints() {
         this.dataRToday.clear();
+        resultsChanged( dataRToday );
     }
     
     private void addDataPointToRateData( long time_ns8 ) {
-        dataRateLimit.add( time_ns8, bitsToRateRangeUnits(this.rateLimit_kbps*1000), false );
+        dataRateLimit.add( time_ns8, bitsToRateRangeUnits(this.rateLimit_kbps*1000) );
     }
     
     private void addDataPointToBufferSizeData( long time_ns8, int curBufSize_bytes ) {
-        dataBufSize.add( time_ns8, bytesToSizeRangeUnits(curBufSize_bytes), false );
+        dataBufSize.add( time_ns8, bytesToSizeRangeUnits(curBufSize_bytes) );
     }
     
     private void addDataPointToRateAndBufferSizeData( long time_ns8, int curBufSize_bytes ) {
@@ -127,6 +321,12 @@ public class BottleneckLink extends Link<Router> {
     }
     
     private void addDataPointToQueueOccData( long time_ns8 ) {
+        long w = occResolution_ns8;
+        if( w != decQueueOcc.getBucketWidth() ) {
+            decQueueOcc.setBucketWidth( w );
+            decQueueOccPer.setBucketWidth( w );
+        }
+        
         int actual = getActualBufSize();
         int queueOcc = queueOcc_bytes;
         
@@ -135,19 +335,21 @@ public class BottleneckLink extends Link<Router> {
             queueOcc = actual;
         
         if( dgu.bufsizing.control.EventProcessor.USE_PACKETS ) {
-            dataQueueOcc.add( time_ns8, queueOcc );
+            decQueueOcc.add( time_ns8, queueOcc );
+            compQueueOcc.add( time_ns8, queueOcc );
             
             if( this.getQueueOcc_bytes() == 0 )
-                dataQueueOccPer.add( time_ns8, 0 );
+                decQueueOccPer.add( time_ns8, 0 );
             else
-                dataQueueOccPer.add( time_ns8, queueOcc / (double)actual );
+                decQueueOccPer.add( time_ns8, queueOcc / (double)actual );
         }
         else {
-            dataQueueOcc.add( time_ns8, bytesToSizeRangeUnits(queueOcc) );
+            decQueueOcc.add( time_ns8, bytesToSizeRangeUnits(queueOcc) );
+            compQueueOcc.add( time_ns8, queueOcc );
             if( this.getActualBufSize() == 0 )
-                dataQueueOccPer.add( time_ns8, 0 );
+                decQueueOccPer.add( time_ns8, 0 );
             else
-                dataQueueOccPer.add( time_ns8, queueOcc / (double)actual );
+                decQueueOccPer.add( time_ns8, queueOcc / (double)actual );
         }
         
         if( !autoThreshLines )
@@ -184,8 +386,9 @@ public class BottleneckLink extends Link<Router> {
     }
 
     private void addDataPointToXputData( long time_ns8, int xput_bps ) {
-        dataThroughput.add( time_ns8, bitsToRateRangeUnits(xput_bps), false );
-        dataThroughputPer.add( time_ns8, xput_bps / (double)(this.getRateLimit_kbps() * 1000), false );
+        dataThroughput.add( time_ns8, bitsToRateRangeUnits(xput_bps) );
+        compThroughput.add( time_ns8, xput_bps );
+        dataThroughputPer.add( time_ns8, xput_bps / (double)(this.getRateLimit_kbps() * 1000) );
         
         if( !autoThreshLines )
             addDataPointToRateData(time_ns8);
@@ -194,6 +397,9 @@ public class BottleneckLink extends Link<Router> {
     public synchronized void clearInProgressPoint() {
         dataRCur.clear();
         dataRCurRange.clear();
+        resultsChanged( dataRCur );
+        resultsChanged( dataRCurRange );
+        currentResultConfidence = 0;
     }
     
     /**
@@ -211,15 +417,25 @@ public class BottleneckLink extends Link<Router> {
                            throws IllegalArgValException {
         super( src, dst, queueID );
         
-        prepareXYSeries( dataThroughput,    dataPointsToKeep );
-        prepareXYSeries( dataThroughputPer, dataPointsToKeep );
-        prepareXYSeries( dataQueueOcc,      dataPointsToKeep );
-        prepareXYSeries( dataQueueOccPer,   dataPointsToKeep );
-        prepareXYSeries( dataNumDropped,    dataPointsToKeep );
-        prepareXYSeries( dataNumDropped,    dataPointsToKeep );
+        // enough room for a full chart of decimated occupancy points
+        int occPointsToKeep = Math.max( dataPointsToKeep, DecimatingSeries.POINTS_PER_BUCKET * MAX_OCC_CHART_WIDTH );
+        
+        dataThroughput    = new RingSeries( "Throughput",                dataPointsToKeep );
+        dataThroughputPer = new RingSeries( "Link Utilization",          dataPointsToKeep );
+        dataQueueOcc      = new RingSeries( "Queue Occupancy",           occPointsToKeep );
+        dataQueueOccPer   = new RingSeries( "Queue Utilization",         occPointsToKeep );
+        dataNumDropped    = new RingSeries( "Num Dropped",               dataPointsToKeep );
+        dataNumDroppedPer = new RingSeries( "Num Dropped : Buffer Size", dataPointsToKeep );
 
-        prepareXYSeries( dataBufSize,   dataPointsToKeep );
-        prepareXYSeries( dataRateLimit, dataPointsToKeep );
+        dataBufSize   = new RingSeries( "Buffer Size",   dataPointsToKeep );
+        dataRateLimit = new RingSeries( "Max Link Rate", dataPointsToKeep );
+        
+        decQueueOcc    = new DecimatingSeries( dataQueueOcc,    0 );
+        decQueueOccPer = new DecimatingSeries( dataQueueOccPer, 0 );
+        
+        chartSeries = new RingSeries[]{ dataThroughput, dataThroughputPer, dataQueueOcc, dataQueueOccPer,
+                                        dataNumDropped, dataNumDroppedPer, dataBufSize, dataRateLimit };
+        chartsChangedFrom = new long[chartSeries.length];
         
         prepareXYSeries( dataRTheROT,   dataPointsToKeep );
         prepareXYSeries( dataRTheGuido, dataPointsToKeep );
@@ -227,6 +443,7 @@ public class BottleneckLink extends Link<Router> {
         prepareXYSeries( dataRToday,    dataPointsToKeep );
         prepareXYSeries( dataRCur,      1 );
         prepareXYSeries( dataRCurRange, 2 );
+        chartView = new ChartView( chartSeries, resultSeries );
         
         // set the initial values
         this.rtt_ms = 0;
@@ -238,12 +455,15 @@ public class BottleneckLink extends Link<Router> {
         
         // update the plots appropriately
         forceSet = true;
-        setNumFlows(0);
-        setRTT_ms( rtt  );
-        setRateLimit_kbps( rateLimit_kbps );
+        applyNumFlows(0);
+        applyRTT_ms( rtt  );
+        applyRateLimitReg( getRateLimit_regValue(rateLimit_kbps*1000) );
         forceSet = false;
         
         initMeasuredResults();
+        
+        // the owner thread also publishes snapshots while no traffic arrives
+        mailbox.start();
     }
     
     /**
@@ -258,9 +478,10 @@ public class BottleneckLink extends Link<Router> {
     }
     
     public void draw( Graphics2D gfx ) {
-        // get a local copy of the current utilization
-        float saturation = instantaneousUtilization;
-        float queue_usage = instantaneousQueueOcc;
+        // get the current utilization from the latest snapshot
+        Snapshot s = snapshot;
+        float saturation = (s == null) ? 0.0f : s.utilization;
+        float queue_usage = (s == null) ? 0.0f : s.queueOcc;
         
         // draw the outline of the bottleneck link
         if( selected ) {
@@ -330,6 +551,8 @@ public class BottleneckLink extends Link<Router> {
     
     int lastPlottedQueueOcc_bytes = -1;
     public synchronized void setOccupancy( long rtr_time_ns8, int num_bytes, boolean silent ) {
+        addHistory( HISTORY_QUEUE_OCC, routerTimeToLocalTime8ns(rtr_time_ns8), num_bytes );
+        occHist.record( rtr_time_ns8, num_bytes, num_bytes + BYTES_PER_PACKET > getActualBufSize() );
         if( silent ) {
             queueOcc_bytes = num_bytes;
             return;
@@ -367,11 +590,18 @@ public class BottleneckLink extends Link<Router> {
     
     public synchronized void departure( long rtr_time_ns8, int num_bytes, boolean silent ) {
         setOccupancy( rtr_time_ns8, queueOcc_bytes - num_bytes, silent );
-        bytes_sent_since_last_update += num_bytes;
+        xputEstimator.add( rtr_time_ns8, num_bytes );
+        xputAverage.add( rtr_time_ns8, num_bytes );
+        xputPeak.add( rtr_time_ns8, num_bytes );
+        lastRtrTime_ns8 = rtr_time_ns8;
+        sampleStability( rtr_time_ns8 );
+        settleSampleBytes += num_bytes;
+        addHistory( HISTORY_BYTES_SENT, routerTimeToLocalTime8ns(rtr_time_ns8), num_bytes );
         //c_bytes += num_bytes;
     }
     
     public synchronized void dropped( long rtr_time_ns8, int num_bytes, boolean silent ) {
+        addHistory( HISTORY_DROPS, routerTimeToLocalTime8ns(rtr_time_ns8), num_bytes );
         setDropped( rtr_time_ns8, num_bytes, silent );
     }
     
@@ -385,24 +615,162 @@ public class BottleneckLink extends Link<Router> {
     }
     
     //public static long c_pkts = 0, c_bytes = 0;
-    private float cont_throughput_bps = 0;
+    
+    /**
+     * Default half-life of the throughput estimate which is plotted.  The old
+     * plot averaged each update interval and then halved the weight of the
+     * past every update, i.e. it remembered a few update intervals (a few ms
+     * at line rate, more when the router sends updates less often).  10ms
+     * keeps the plot at least that smooth while it still follows rate limit
+     * changes within a few tens of ms.
+     */
+    public static final long DEFAULT_XPUT_HALF_LIFE_NS8 = 10 * MSEC_DIV_8NS;
+    
+    // throughput estimators, fed by departures (exact long arithmetic)
+    private RateEstimator xputEstimator = new EwmaRate( DEFAULT_XPUT_HALF_LIFE_NS8 );
+    private final MeanRate xputAverage = new MeanRate();
+    private final PeakRate xputPeak = new PeakRate( MSEC_DIV_8NS, 10 );
+    
+    /** router time of the newest departure or update */
+    private long lastRtrTime_ns8 = 0;
     
     private boolean noteCurrentXputValue = true;
-    private int avgThroughput_bps = 0;
-    private int numReadingsForAvgXput = 0;
+    
+    /** confidence in the in progress result (keeps its color while it is replotted) */
+    private double currentResultConfidence = 0;
+    
+    /** color of the in progress result, which shows its confidence (null until there is one) */
+    private volatile Color currentResultColor = null;
+    
+    /** starts a new averaging (and peak tracking) period for the throughput */
     public synchronized void resetXputMovingAverage() {
-        avgThroughput_bps = 0;
-        numReadingsForAvgXput = 0;
+        if( lastRtrTime_ns8 == 0 )
+            return; /* nothing has been measured yet */
+        
+        xputAverage.reset( lastRtrTime_ns8 );
+        xputPeak.reset( lastRtrTime_ns8 );
     }
+    
+    /** returns the exact average throughput since resetXputMovingAverage() */
     public synchronized int getXputMovingAverage() {
-        return avgThroughput_bps;
+        return (int)Math.min( Integer.MAX_VALUE, xputAverage.getRate_bps(lastRtrTime_ns8) );
+    }
+    
+    /** returns the highest throughput over any 10ms window since resetXputMovingAverage() */
+    public synchronized long getXputPeak_bps() {
+        return xputPeak.getRate_bps( lastRtrTime_ns8 );
+    }
+    
+    /**
+     * Sets the estimator used for the plotted (instantaneous) throughput, e.g.
+     * an EwmaRate with a different half-life or a WindowedRate.
+     */
+    public synchronized void setThroughputEstimator( RateEstimator e ) {
+        if( lastRtrTime_ns8 != 0 )
+            e.reset( lastRtrTime_ns8 );
+        xputEstimator = e;
+    }
+    
+    /** shortest interval between the samples used to decide if the link has settled */
+    public static final long MIN_SETTLE_SAMPLE_NS8 = 10 * MSEC_DIV_8NS;
+    
+    /** each settling sample should span at least this many packets at the rate limit */
+    private static final int SETTLE_SAMPLE_PACKETS = 50;
+    
+    /** fewest samples (and number of RTTs) the settling window spans */
+    private static final int MIN_SETTLE_SAMPLES = 50;
+    private static final int SETTLE_RTTS = 4;
+    
+    /** tolerances (fractions of the rate limit / buffer size) for being settled */
+    public static final double SETTLE_MAX_XPUT_DRIFT  = 0.03;
+    public static final double SETTLE_MAX_XPUT_SPREAD = 0.10;
+    public static final double SETTLE_MAX_OCC_DRIFT   = 0.10;
+    
+    // throughput and occupancy samples which tell when the link has settled
+    private final StabilityDetector xputSettle = new StabilityDetector( 512 );
+    private final StabilityDetector occSettle  = new StabilityDetector( 512 );
+    private long settleSample_ns8 = MIN_SETTLE_SAMPLE_NS8;
+    private long settleSampleStart_ns8 = 0;
+    private long settleSampleBytes = 0;
+    
+    /** test which is also given each throughput sample (if any) */
+    private SequentialRateTest xputTest = null;
+    
+    /** closes every settling sample which ended by rtr_time_ns8 */
+    private void sampleStability( long rtr_time_ns8 ) {
+        if( settleSampleStart_ns8 == 0 || rtr_time_ns8 - settleSampleStart_ns8 > settleSample_ns8 * xputSettle.getWindow() ) {
+            // first event or a long idle gap: start over at this event
+            settleSampleStart_ns8 = rtr_time_ns8;
+            settleSampleBytes = 0;
+            return;
+        }
+        
+        while( rtr_time_ns8 - settleSampleStart_ns8 >= settleSample_ns8 ) {
+            double xput_bps = settleSampleBytes * 8.0 * SEC_DIV_8NS / settleSample_ns8;
+            xputSettle.add( xput_bps );
+            if( xputTest != null )
+                xputTest.add( xput_bps );
+            occSettle.add( queueOcc_bytes );
+            settleSampleBytes = 0;
+            settleSampleStart_ns8 += settleSample_ns8;
+        }
+    }
+    
+    /**
+     * Starts watching for the link to settle (e.g. right after changing the 
+     * number of flows or the buffer size).  Samples span at least 
+     * MIN_SETTLE_SAMPLE_NS8 and enough time to send SETTLE_SAMPLE_PACKETS at the
+     * rate limit, and the window spans SETTLE_RTTS round trips (but at least 
+     * MIN_SETTLE_SAMPLES samples).
+     */
+    public synchronized void resetStability() {
+        long rate_bps = Math.max( 1, rateLimit_kbps * 1000L );
+        settleSample_ns8 = Math.max( MIN_SETTLE_SAMPLE_NS8, SETTLE_SAMPLE_PACKETS * BYTES_PER_PACKET * 8L * SEC_DIV_8NS / rate_bps );
+        
+        long rtts_ns8 = SETTLE_RTTS * (long)rtt_ms * MSEC_DIV_8NS;
+        int window = (int)Math.max( MIN_SETTLE_SAMPLES, (rtts_ns8 + settleSample_ns8 - 1) / settleSample_ns8 );
+        xputSettle.reset( window );
+        occSettle.reset( window );
+        settleSampleStart_ns8 = 0;
+    }
+    
+    /**
+     * Gives each throughput sample from now on to test (null to stop).  The
+     * samples are the ones used to decide if the link has settled.
+     */
+    public synchronized void setThroughputTest( SequentialRateTest test ) {
+        xputTest = test;
+    }
+    
+    /**
+     * Returns true once a whole window of samples since resetStability() shows
+     * the throughput neither drifting nor spread by more than its tolerance 
+     * (relative to the rate limit) and the occupancy not drifting by more than
+     * its tolerance (relative to the buffer size).
+     */
+    public synchronized boolean isStable() {
+        return xputSettle.isSettled( rateLimit_kbps * 1000.0, SETTLE_MAX_XPUT_DRIFT, SETTLE_MAX_XPUT_SPREAD )
+            && occSettle.isSettled( Math.max(BYTES_PER_PACKET, getActualBufSize()), SETTLE_MAX_OCC_DRIFT, Double.POSITIVE_INFINITY );
+    }
+    
+    /** starts a new window of the occupancy distribution (e.g. at the start of a measurement) */
+    public synchronized void resetOccupancyWindow() {
+        occHist.reset();
+    }
+    
+    /**
+     * Copies the occupancy distribution since the window was last reset
+     * (quantiles, mean and time at a full buffer).
+     * @param out  reused if not null
+     */
+    public synchronized OccupancyHistogram.Snapshot getOccupancySnapshot( OccupancyHistogram.Snapshot out ) {
+        return occHist.snapshot( out );
     }
     
     public synchronized void refreshInstantaneousValues( long rtr_time_ns8 ) {
         // don't compute instantaneous values until we have received > 1 packet
         if( prev_time_offset_end_ns8 == 0 ) {
             prev_time_offset_end_ns8 = rtr_time_ns8;
-            bytes_sent_since_last_update = 0;
             bytes_arrived_since_last_update =  0;
             return;
         }
@@ -410,18 +778,14 @@ public class BottleneckLink extends Link<Router> {
         //c_pkts += 1;
         //System.err.println( "==> " + c_pkts + " / " + c_bytes );
         
-        // compute xput b/w end of last update and now (+1 to avoid div by 0 ... 8ns won't matter)
-        float time_passed_ns8 = rtr_time_ns8 - prev_time_offset_end_ns8 + 1;
-        float throughput_bps = (8 * bytes_sent_since_last_update * SEC_DIV_8NS) / time_passed_ns8;
-        int actualThroughput_bps = (int)throughput_bps;
-        
-        throughput_bps = cont_throughput_bps = cont_throughput_bps*0.5f + throughput_bps*0.5f;
-        bytes_sent_since_last_update = 0;
+        // get the current throughput estimate
+        long throughput_bps = xputEstimator.getRate_bps( rtr_time_ns8 );
         bytes_arrived_since_last_update = 0;
         prev_time_offset_end_ns8 = rtr_time_ns8;
+        lastRtrTime_ns8 = rtr_time_ns8;
         
         // set new instantaneous utilizatoin value
-        int rateLimit_bps = rateLimit_kbps * 1000;
+        long rateLimit_bps = rateLimit_kbps * 1000L;
         if( throughput_bps < rateLimit_bps )
             instantaneousUtilization = throughput_bps / (float)rateLimit_bps;
         else
@@ -436,40 +800,110 @@ public class BottleneckLink extends Link<Router> {
         
         // plot the new throughput value
         long t = routerTimeToLocalTime8ns(rtr_time_ns8);
-        this.addDataPointToXputData( t,  (int)throughput_bps);
+        this.addDataPointToXputData( t,  (int)Math.min(Integer.MAX_VALUE, throughput_bps));
         extendUserDataPoints( t );
         
-        // update the throughput moving average
-        avgThroughput_bps = (actualThroughput_bps + avgThroughput_bps*numReadingsForAvgXput) / (numReadingsForAvgXput+1);
-        numReadingsForAvgXput += 1;
-        
         // plot the current value on the util plot too (only in automatic mode)
         if( noteCurrentXputValue && DemoGUI.me.showBufferSizeMarker() )
-            noteCurrentMeasuredResult(getActualBufSize(), 0);
+            noteCurrentMeasuredResult(getActualBufSize(), currentResultConfidence);
+        
+        // let readers see the new data
+        Snapshot s = snapshot;
+        if( s == null || System.currentTimeMillis() - s.published_millis >= PUBLISH_INTERVAL_MSEC )
+            publishSnapshot();
     }
-
-    public XYSeries getDataRTheROT() {
-        return dataRTheROT;
+    
+    /**
+     * Returns the most recently published snapshot (null if none has been
+     * published yet).  This never blocks.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
     }
-
-    public XYSeries getDataRTheGuido() {
-        return dataRTheGuido;
+    
+    /** asks for the next snapshot to carry the chart changes the chart view needs */
+    public void requestChartData() {
+        chartsWanted = true;
     }
-
-    public XYSeries getDataRMea() {
-        return dataRMea;
+    
+    /** returns the GUI's copies of the chart series (only use them on the Swing event thread) */
+    public ChartView getChartView() {
+        return chartView;
     }
-
-    public XYSeries getDataRToday() {
-        return dataRToday;
+    
+    /**
+     * Brings the chart view up to date with s's chart deltas and results
+     * (call on the Swing event thread).  Snapshots older than one already
+     * applied are ignored.
+     * @return true if the chart view changed
+     */
+    public boolean updateChartView( Snapshot s ) {
+        if( s == null || s.seq <= chartView.seq )
+            return false;
+        
+        boolean changed = false;
+        for( int i=0; i<s.results.length; i++ ) {
+            ResultPoints p = s.results[i];
+            if( p != chartView.shownResults[i] ) {
+                XYSeries xys = chartView.results[i];
+                xys.clear();
+                for( int j=0; p!=null && j<p.x.length; j++ )
+                    xys.add( p.x[j], p.y[j], false );
+                chartView.shownResults[i] = p;
+                changed = true;
+            }
+        }
+        
+        if( s.charts != null ) {
+            for( int i=0; i<s.charts.length; i++ )
+                chartView.all[i].apply( s.charts[i] );
+            s.chartsTaken = true;
+            changed = true;
+        }
+        chartView.seq = s.seq;
+        return changed;
     }
     
-    public XYSeries getDataRCur() {
-        return dataRCur;
+    /** copies the current values (and chart changes, if wanted) into a new snapshot and publishes it */
+    private void publishSnapshot() {
+        RingSeries.Delta[] charts = null;
+        if( chartsWanted ) {
+            chartsWanted = false;
+            
+            // start from where the view was when it last took a delta (the
+            // newest deltas may not have been taken, so they are sent again)
+            boolean taken = (lastChartsSnapshot != null) && lastChartsSnapshot.chartsTaken;
+            charts = new RingSeries.Delta[chartSeries.length];
+            for( int i=0; i<chartSeries.length; i++ ) {
+                long low = chartSeries[i].takeLowEnd();
+                chartsChangedFrom[i] = taken ? low : Math.min( chartsChangedFrom[i], low );
+                charts[i] = chartSeries[i].delta( chartsChangedFrom[i] );
+            }
+        }
+        
+        Snapshot s = new Snapshot( this, numSnapshotsPublished++, charts );
+        if( charts != null )
+            lastChartsSnapshot = s;
+        snapshot = s;
     }
     
-    public XYSeries getDataRCurRange() {
-        return dataRCurRange;
+    /**
+     * Publishes a snapshot if none has been published for a while (e.g.
+     * because no traffic is arriving).  Called by the owner thread.
+     */
+    synchronized void publishIfIdle() {
+        Snapshot s = snapshot;
+        if( s == null || System.currentTimeMillis() - s.published_millis >= 2 * PUBLISH_INTERVAL_MSEC ) {
+            extendUserDataPoints( currentTime8ns() );
+            publishSnapshot();
+        }
+    }
+
+    /** notes that a results series changed so the next snapshot carries its new points (must hold the lock) */
+    private void resultsChanged( XYSeries xys ) {
+        for( int i=0; i<resultSeries.length; i++ )
+            if( resultSeries[i] == xys )
+                resultPoints[i] = new ResultPoints( xys );
     }
 
     public boolean isAutoThreshLines() {
@@ -548,6 +982,7 @@ public class BottleneckLink extends Link<Router> {
     /** refresh measured results data */
     private void populateMeasuredResults() {
         dataRMea.clear();
+        resultsChanged( dataRMea );
         
         // turn off the blue line
         if(true)
@@ -561,6 +996,7 @@ public class BottleneckLink extends Link<Router> {
             if( r.c_kbps == this.getRateLimit_kbps() )
                 dataRMea.add(n.intValue(), r.getScaledBufSize_B(rtt) / 1024);
         }
+        resultsChanged( dataRMea );
     }
     
     /** 
@@ -568,9 +1004,18 @@ public class BottleneckLink extends Link<Router> {
      * @param bufSizeForMaxUtil_kB  buffer size for 100% utilization in kilobytes
      */
     public synchronized void addMeasuredResult(int bufSizeForMaxUtil_B) {
-        int n = this.getNumFlows();
-        Result r = new Result( bufSizeForMaxUtil_B, this.getRateLimit_kbps(), this.getRTT_ms(), 1 );
+        addMeasuredResult( this.getNumFlows(), this.getRateLimit_kbps(), this.getRTT_ms(), bufSizeForMaxUtil_B );
+    }
+    
+    /** 
+     * specifies the measured buffer size 'b' for n flows at a given capacity 
+     * and RTT (e.g. a result measured before the GUI was restarted)
+     * @param bufSizeForMaxUtil_B  buffer size for 100% utilization in bytes
+     */
+    public synchronized void addMeasuredResult(int n, int rateLimit_kbps, int rtt_ms, int bufSizeForMaxUtil_B) {
+        Result r = new Result( bufSizeForMaxUtil_B, rateLimit_kbps, rtt_ms, 1 );
         dataRToday.add(n, bufSizeForMaxUtil_B / 1024);
+        resultsChanged( dataRToday );
         System.out.println( n + " " + r.b_B + " " + r.c_kbps + " " + r.numDataPoints );
     }
     
@@ -578,6 +1023,7 @@ public class BottleneckLink extends Link<Router> {
         dataRCurRange.clear();
         dataRCurRange.add( this.getNumFlows(), rangeMin_B / 1024 );
         dataRCurRange.add( this.getNumFlows(), rangeMax_B / 1024 );
+        resultsChanged( dataRCurRange );
     }
         
     /** 
@@ -595,19 +1041,43 @@ public class BottleneckLink extends Link<Router> {
     }
     
     public synchronized void noteCurrentMeasuredResult(int bufSizeForMaxUtil_B, int rangeMin_B, int rangeMax_B, double confidence) {
+        currentResultConfidence = confidence;
         dataRCur.clear();
         dataRCur.add(this.getNumFlows(), bufSizeForMaxUtil_B / 1024);
+        resultsChanged( dataRCur );
         
         if( rangeMin_B > 0 ) {
             dataRCurRange.clear();
             dataRCurRange.add( this.getNumFlows(), rangeMin_B / 1024 );
             dataRCurRange.add( this.getNumFlows(), rangeMax_B / 1024 );
+            resultsChanged( dataRCurRange );
         }
       
-        // update the points color based on the confidence
+        // update the points color based on the confidence (each link keeps its
+        // own since sweeps run on every link at once; the chart shows the
+        // selected link's)
         int r = (confidence <  0.5) ? 128 + (int)(128*(0.5 - confidence)) : 0;
         int g = (confidence >= 0.5) ? 128 + (int)(128*(confidence - 0.5)) : 0;
-        DemoGUI.me.resultsRenderer.setSeriesPaint(4, new java.awt.Color(r,g,0));
+        Color c = currentResultColor;
+        if( c == null || c.getRed() != r || c.getGreen() != g ) {
+            currentResultColor = new Color(r,g,0);
+            if( selected )
+                showCurrentResultColor();
+        }
+    }
+    
+    /** shows this link's in progress result color on the results chart (on the Swing event thread) */
+    private void showCurrentResultColor() {
+        final Color c = currentResultColor;
+        if( DemoGUI.me == null || c == null )
+            return;
+        
+        SwingUtilities.invokeLater( new Runnable() {
+            public void run() {
+                if( selected ) /* still the link being charted */
+                    DemoGUI.me.resultsRenderer.setSeriesPaint( 4, c );
+            }
+        });
     }
     private static double theta = 0;
     private static final int starX[] = { -7, -2, 2, 7, 3, 3, 7, 2, -2, -7, -3, -3, -7 };
@@ -655,17 +1125,23 @@ public class BottleneckLink extends Link<Router> {
                                                  this.getRateLimit_kbps(), 
                                                  n ) / 1024);
         }
+        resultsChanged( dataRTheROT );
+        resultsChanged( dataRTheGuido );
     }
     
     public synchronized void clearData() {
-        dataThroughput.clear( false );
-        dataThroughputPer.clear( false );
-        dataQueueOcc.clear(   false );
-        dataQueueOccPer.clear(   false );
-        dataNumDropped.clear(   false );
-        dataNumDroppedPer.clear(   false );
-        dataBufSize.clear(    false );
-        dataRateLimit.clear(  false );
+        dataThroughput.clear();
+        dataThroughputPer.clear();
+        dataQueueOcc.clear();
+        dataQueueOccPer.clear();
+        decQueueOcc.reset();
+        decQueueOccPer.reset();
+        compQueueOcc.clear();
+        compThroughput.clear();
+        dataNumDropped.clear();
+        dataNumDroppedPer.clear();
+        dataBufSize.clear();
+        dataRateLimit.clear();
         
         if( autoThreshLines ) {
             // re-start the graphs with the thresholds
@@ -676,14 +1152,77 @@ public class BottleneckLink extends Link<Router> {
         }
     }
     
+    /**
+     * Sets how much time each occupancy data point may summarize.  Each bucket
+     * keeps only its first, minimum, maximum and last occupancy.
+     * @param bucketWidth_ns8  time spanned by one pixel column of the chart (0 => keep every point)
+     */
+    public void setOccupancyResolution( long bucketWidth_ns8 ) {
+        occResolution_ns8 = bucketWidth_ns8; /* applied with the next occupancy point */
+    }
+    
+    /**
+     * Rolls up one of the HISTORY_* metrics between from_ns8 and to_ns8 into
+     * one column per pixel, using the coarsest resolution which still has at
+     * least one bucket per pixel.  Unlike the chart series, this history goes
+     * back up to a day (at 1 minute resolution).
+     * @param out  reused for the result if not null
+     */
+    public synchronized RollupStore.Columns queryHistory( int metric, long from_ns8, long to_ns8, int pixels, RollupStore.Columns out ) {
+        return history.query( metric, from_ns8, to_ns8, pixels, out );
+    }
+    
+    public synchronized void clearHistory() {
+        history.clear();
+        if( historyFiles != null )
+            for( MappedHistory h : historyFiles )
+                h.clear();
+    }
+    
+    private void addHistory( int metric, long time_ns8, int value ) {
+        history.add( metric, time_ns8, value );
+        if( historyFiles != null )
+            historyFiles[metric].append( time_ns8, value );
+    }
+    
+    /**
+     * Starts keeping every event in memory-mapped segment files in dir too so
+     * that any window of the history can be read back without keeping it on
+     * the heap.
+     */
+    public synchronized void enableHistoryFiles( java.io.File dir ) {
+        if( historyFiles != null )
+            return;
+        
+        String prefix = getNameShort();
+        historyFiles = new MappedHistory[history.getNumMetrics()];
+        historyFiles[HISTORY_QUEUE_OCC]  = new MappedHistory( dir, prefix + "-occ" );
+        historyFiles[HISTORY_BYTES_SENT] = new MappedHistory( dir, prefix + "-sent" );
+        historyFiles[HISTORY_DROPS]      = new MappedHistory( dir, prefix + "-drops" );
+    }
+    
+    /**
+     * Reads the raw events of one of the HISTORY_* metrics between from_ns8
+     * and to_ns8 from the history files into out (decimating them if they do
+     * not all fit).
+     * @return the number of events in the window (0 if history files are not enabled)
+     */
+    public synchronized long readHistoryFile( int metric, long from_ns8, long to_ns8, RingSeries out ) {
+        if( historyFiles == null ) {
+            out.clear();
+            return 0;
+        }
+        return historyFiles[metric].read( from_ns8, to_ns8, out );
+    }
+    
     public synchronized void extendUserDataPoints( long time_ns ) {
         if( !autoThreshLines )
             return;
         
         // remove the old temporary endpoints of user-controlled values
         if( dataBufSize.getItemCount() > 0 ) {
-            dataBufSize.remove( dataBufSize.getItemCount() - 1, false );
-            dataRateLimit.remove( dataRateLimit.getItemCount() - 1, false );
+            dataBufSize.removeLast();
+            dataRateLimit.removeLast();
         }
         
         // add the new updated endpoints of user-controlled values and refresh the plot
@@ -695,7 +1234,12 @@ public class BottleneckLink extends Link<Router> {
         return bufSizeRule;
     }
 
-    public synchronized void setBufSizeRule( BufferSizeRule bufSizeRule ) {
+    /** asks the link's owner thread to change the buffer sizing rule */
+    public void setBufSizeRule( BufferSizeRule bufSizeRule ) {
+        mailbox.post( LinkMailbox.Kind.SET_BUF_SIZE_RULE, 0, bufSizeRule );
+    }
+    
+    private synchronized void applyBufSizeRule( BufferSizeRule bufSizeRule ) {
         if( this.bufSizeRule == bufSizeRule )
             return;
         
@@ -703,21 +1247,74 @@ public class BottleneckLink extends Link<Router> {
         updateActualBufSize();
     }
     
+    /** the GUI text which shows one of the link's settings */
+    private enum GUIText { NUM_FLOWS, BUF_SIZE, RATE_LIMIT, RTT }
+    
+    /**
+     * Refreshes the GUI text for a setting on the Swing event thread (the
+     * settings are changed by the owner thread, which must not touch Swing).
+     */
+    private void refreshGUIText( final GUIText what ) {
+        if( DemoGUI.me == null )
+            return;
+        
+        SwingUtilities.invokeLater( new Runnable() {
+            public void run() {
+                DemoGUI gui = DemoGUI.me;
+                switch( what ) {
+                    case NUM_FLOWS:  gui.setNumFlowsText( BottleneckLink.this ); break;
+                    case BUF_SIZE:   gui.setBufferSizeText( BottleneckLink.this ); break;
+                    case RATE_LIMIT: gui.setRateLimitText( BottleneckLink.this ); break;
+                    case RTT:        gui.mnuSetRTT.setText( "Set RTT (" + getRTT_ms() + "ms)" ); break;
+                }
+            }
+        });
+    }
+    
     public int getNumFlows() {
         return numFlows;
     }
     
-    public synchronized void setNumFlows(int n) {
-        this.numFlows = n;
-        updateActualBufSize();
-        if( DemoGUI.me != null )
-            DemoGUI.me.setNumFlowsText(this);
+    /** asks the link's owner thread to change the number of flows */
+    public void setNumFlows(int n) {
+        mailbox.post( LinkMailbox.Kind.SET_NUM_FLOWS, n, null );
+    }
+        
+    private void applyNumFlows(int n) {
+        synchronized( this ) {
+            this.numFlows = n;
+            updateActualBufSize();
+            refreshGUIText( GUIText.NUM_FLOWS );
+        }
         
+        // talk to the traffic generator without holding the link's lock
         tgen.setNumFlows(n);
     }
 
-    public synchronized void adjustNumFlows( int adjust ) {
-        setNumFlows( this.numFlows + adjust );
+    /** asks the link's owner thread to change the number of flows by adjust */
+    public void adjustNumFlows( int adjust ) {
+        mailbox.post( LinkMailbox.Kind.ADJUST_NUM_FLOWS, adjust, null );
+    }
+    
+    /** applies a control-plane change (called by the owner thread) */
+    void apply( LinkMailbox.Message m ) {
+        switch( m.kind ) {
+            case SET_NUM_FLOWS:       applyNumFlows( m.value );                      break;
+            case ADJUST_NUM_FLOWS:    applyNumFlows( this.numFlows + m.value );      break;
+            case SET_CUSTOM_BUF_SIZE: applyCustomBufSize( m.value );                 break;
+            case SET_RATE_LIMIT_REG:  applyRateLimitReg( m.value );                  break;
+            case SET_RTT:             applyRTT_ms( m.value );                        break;
+            case SET_BUF_SIZE_RULE:   applyBufSizeRule( (BufferSizeRule)m.arg );     break;
+            default:                  throw( new Error("Bad case in BottleneckLink::apply") );
+        }
+    }
+    
+    /**
+     * Waits until every change posted to this link so far has been applied.
+     * @return true if they were applied before timeout_msec passed
+     */
+    public boolean awaitPendingChanges( long timeout_msec ) {
+        return mailbox.sync( timeout_msec );
     }
     
     /**
@@ -757,7 +1354,7 @@ public class BottleneckLink extends Link<Router> {
     
     private synchronized void updateActualBufSize() {
         // refresh the GUI no matter what
-        if( DemoGUI.me != null ) DemoGUI.me.setBufferSizeText( this );
+        refreshGUIText( GUIText.BUF_SIZE );
         
         long t = currentTime8ns();
         int curBufSize_bytes = getActualBufSize();
@@ -779,20 +1376,41 @@ public class BottleneckLink extends Link<Router> {
         // tell the router about the new buffer size in terms of packets
         int numPackets = curBufSize_bytes / BYTES_PER_PACKET;
         if( curBufSize_bytes > 0 && numPackets == 0 ) numPackets = 1;
-        this.src.getController().command( RouterCmd.CMD_SET_BUF_SZ, queueID, numPackets );
+        bufSizeAck = this.src.getController().commandAsync( RouterCmd.CMD_SET_BUF_SZ, queueID, numPackets );
+    }
+    
+    /** 
+     * Returns the future for the last buffer size sent to the router (null if 
+     * none has been sent); it completes when the router has applied it.
+     */
+    public synchronized CommandFuture getBufSizeAck() {
+        return bufSizeAck;
+    }
+    
+    /** 
+     * Returns the future for the last rate limit sent to the router (null if 
+     * none has been sent); it completes when the router has applied it.
+     */
+    public synchronized CommandFuture getRateLimitAck() {
+        return rateLimitAck;
     }
 
     public synchronized int getCustomBufSize() {
         return customBufSize_bytes;
     }
     
-    public synchronized void setCustomBufSize(int numBytes) {
+    /** asks the link's owner thread to change the custom buffer size */
+    public void setCustomBufSize(int numBytes) {
+        mailbox.post( LinkMailbox.Kind.SET_CUSTOM_BUF_SIZE, numBytes, null );
+    }
+    
+    private synchronized void applyCustomBufSize(int numBytes) {
         if( customBufSize_bytes != numBytes ) {
             customBufSize_bytes = numBytes;
             if( bufSizeRule == BufferSizeRule.CUSTOM )
                 updateActualBufSize();
             else
-                if( DemoGUI.me != null ) DemoGUI.me.setBufferSizeText( this );
+                refreshGUIText( GUIText.BUF_SIZE );
         }
     }
     
@@ -800,13 +1418,18 @@ public class BottleneckLink extends Link<Router> {
         return rtt_ms;
     }
     
-    public synchronized void setRTT_ms( int rtt_ms  ) {
+    /** asks the link's owner thread to change the RTT */
+    public void setRTT_ms( int rtt_ms  ) {
+        mailbox.post( LinkMailbox.Kind.SET_RTT, rtt_ms, null );
+    }
+    
+    private synchronized void applyRTT_ms( int rtt_ms  ) {
         if( this.rtt_ms == rtt_ms && !forceSet )
             return;
         
         // set the new buffer size
         this.rtt_ms = rtt_ms;
-        DemoGUI.me.mnuSetRTT.setText( "Set RTT (" + rtt_ms + "ms)" );
+        refreshGUIText( GUIText.RTT );
         
         // tell the router about the new buffer size in terms of packets
         updateActualBufSize();
@@ -840,18 +1463,33 @@ public class BottleneckLink extends Link<Router> {
         return regValue + 1; // + 1 to compensate for the hw off by one ...
     }
     
-    public synchronized void setRateLimit_kbps(int rate_kbps) {
+    public void setRateLimit_kbps(int rate_kbps) {
         setRateLimitReg( getRateLimit_regValue(rate_kbps*1000) );
     }
         
-    public synchronized void setRateLimitReg(int regValue) {
+    /** asks the link's owner thread to change the rate limit */
+    public void setRateLimitReg(int regValue) {
+        mailbox.post( LinkMailbox.Kind.SET_RATE_LIMIT_REG, regValue, null );
+    }
+    
+    private void applyRateLimitReg(int regValue) {
+        int new_rateLimit_kbps = applyRateLimitRegLocked( regValue );
+        
+        // tell our traffic generator what to do if needs to know (without 
+        // holding the link's lock)
+        if( new_rateLimit_kbps >= 0 )
+            tgen.setXput_bps(new_rateLimit_kbps * 1000);
+    }
+    
+    /** @return the new rate limit, or -1 if it did not change */
+    private synchronized int applyRateLimitRegLocked(int regValue) {
         if( regValue < DemoGUI.RATE_LIM_MIN_REG_VAL ) {
             System.err.println( "setRateLimitReg Error: " + regValue + " is too small of a register value (e.g. too high of a rate)" );
-            return;
+            return -1;
         }
         else if( regValue >= DemoGUI.RATE_LIM_VALUE_COUNT ) {
             System.err.println( "setRateLimitReg Error: " + regValue + " is too big of a register value (e.g. too low of a rate)" );
-            return;
+            return -1;
         }
         
         // translate the requested rate into the closest attainable rate
@@ -859,10 +1497,7 @@ public class BottleneckLink extends Link<Router> {
         
         // do nothing if the requested rate hasn't changed since the last request
         if( rateLimit_kbps == new_rateLimit_kbps && !forceSet )
-            return;
-        
-        // tell our traffic generator what to do if needs to know
-        tgen.setXput_bps(new_rateLimit_kbps * 1000);
+            return -1;
         
         // add the end point of the old rate
         long t = currentTime8ns();
@@ -871,11 +1506,11 @@ public class BottleneckLink extends Link<Router> {
         
         // set the new buffer size
         rateLimit_kbps = new_rateLimit_kbps;
-        if( DemoGUI.me != null ) DemoGUI.me.setRateLimitText( this );
+        refreshGUIText( GUIText.RATE_LIMIT );
         updateActualBufSize();
         
         // tell the router about the new rate limit
-        src.getController().command( RouterCmd.CMD_SET_RATE, queueID, regValue );
+        rateLimitAck = src.getController().commandAsync( RouterCmd.CMD_SET_RATE, queueID, regValue );
         
         // add the start point of the new rate and buffer size
         if( autoThreshLines ) {
@@ -886,6 +1521,7 @@ public class BottleneckLink extends Link<Router> {
         // refresh the measured results data being displayed (displays for the specified capacity)
         populateTheoreticalResults();
         populateMeasuredResults();
+        return new_rateLimit_kbps;
     }
 
     public Class getTGen() {
@@ -896,43 +1532,90 @@ public class BottleneckLink extends Link<Router> {
         if( tgen != null )
             tgen.destroy();
             
-        if( cls == Iperf.class ) 
+        if( cls == Iperf.class ) {
             tgen = new Iperf(Demo.DEFAULT_DST_IP);
+            ((Iperf)tgen).setControllerPool(iperfPool);
+        }
         else if( cls == Tomahawk.class )
             tgen = new Tomahawk(Demo.DEFAULT_DST_IP);
         else
             throw( new Error("BottleneckLink::setTGen does not yet support " + tgen.getClass().getName()) );
     }
     
-    public XYSeries getDataThroughput() {
+    /** sets the iperf controllers which generate this link's flows (when its tgen is iperf) */
+    public void setIperfControllerPool( IperfController.Pool pool ) {
+        iperfPool = pool;
+        if( tgen instanceof Iperf )
+            ((Iperf)tgen).setControllerPool(pool);
+    }
+    
+    public RingSeries getDataThroughput() {
         return dataThroughput;
     }
     
-    public XYSeries getDataThroughputPer() {
+    public RingSeries getDataThroughputPer() {
         return dataThroughputPer;
     }
 
-    public XYSeries getDataQueueOcc() {
+    public RingSeries getDataQueueOcc() {
         return dataQueueOcc;
     }
 
-    public XYSeries getDataQueueOccPer() {
+    /** every occupancy point (bytes, or packets with USE_PACKETS) since the data was last cleared (only use it while holding this link's lock) */
+    public CompressedSeries getCompressedQueueOcc() {
+        return compQueueOcc;
+    }
+    
+    /** every throughput point (bps) since the data was last cleared (only use it while holding this link's lock) */
+    public CompressedSeries getCompressedThroughput() {
+        return compThroughput;
+    }
+    
+    /**
+     * Writes every occupancy and throughput point kept since the data was
+     * last cleared to <name>-occ.txt and <name>-xput.txt in dir as "time_ns8
+     * value" lines.  The compressed series are copied while holding the
+     * link's lock and decoded after releasing it.
+     */
+    public void exportHistory( File dir ) throws IOException {
+        CompressedSeries occ, xput;
+        synchronized( this ) {
+            occ = new CompressedSeries( compQueueOcc );
+            xput = new CompressedSeries( compThroughput );
+        }
+        
+        exportSeries( occ, new File(dir, getNameShort() + "-occ.txt") );
+        exportSeries( xput, new File(dir, getNameShort() + "-xput.txt") );
+    }
+    
+    private static void exportSeries( CompressedSeries s, File f ) throws IOException {
+        BufferedWriter out = new BufferedWriter( new FileWriter(f) );
+        try {
+            int n = s.writeTo( out );
+            System.err.println( "Exported " + n + " " + s.getKey() + " points to " + f );
+        }
+        finally {
+            out.close();
+        }
+    }
+    
+    public RingSeries getDataQueueOccPer() {
         return dataQueueOccPer;
     }
 
-    public XYSeries getDataNumDropped() {
+    public RingSeries getDataNumDropped() {
         return dataNumDropped;
     }
 
-    public XYSeries getDataNumDroppedPer() {
+    public RingSeries getDataNumDroppedPer() {
         return dataNumDroppedPer;
     }
 
-    public XYSeries getDataBufSize() {
+    public RingSeries getDataBufSize() {
         return dataBufSize;
     }
 
-    public XYSeries getDataRateLimit() {
+    public RingSeries getDataRateLimit() {
         return dataRateLimit;
     }
     
@@ -942,6 +1625,13 @@ public class BottleneckLink extends Link<Router> {
 
     public void setSelected(boolean selected) {
         this.selected = selected;
+        if( selected )
+            showCurrentResultColor();
+    }
+    
+    /** returns a short name for the link (its source and queue) */
+    public String getNameShort() {
+        return src.getNameShort() + "-q" + queueID;
     }
     
     public String toString() {
@@ -0,0 +1,170 @@
+package dgu.bufsizing;
+
+/**
+ * A noisy (probabilistic) bisection search for the smallest buffer size which
+ * fully utilizes a link.  Rather than keeping a hard [lo, hi] range, it keeps
+ * a posterior distribution over the threshold buffer size on a grid.  Each
+ * probe reports whether the link was fully utilized, which is assumed to be
+ * right with some probability (the reliability); the posterior is updated by
+ * Bayes' rule so one wrong reading only shifts some weight to the wrong side
+ * instead of throwing the right answer out of the range.
+ *
+ * With a symmetric reliability, the probe which maximizes the expected
+ * information gained is the posterior median, so that is what getNextProbe()
+ * returns.  The prior is a log-normal centered on the flow sensitive buffer
+ * size (RTT*C/sqrt(N)) mixed with a little uniform weight so a wrong prior can
+ * still be overcome.
+ *
+ * @author David Underhill
+ */
+public class BufferSizeSearch {
+    /** most grid cells the posterior is kept on */
+    public static final int MAX_CELLS = 2048;
+    
+    /** standard deviation of the prior in log space (e => a factor of ~2.7) */
+    public static final double PRIOR_LOG_SIGMA = 1.0;
+    
+    /** fraction of the prior spread uniformly across the whole range */
+    public static final double PRIOR_UNIFORM_WEIGHT = 0.1;
+    
+    /** probability mass the reported credible interval holds */
+    public static final double CREDIBLE_MASS = 0.9;
+    
+    /** confidence (see getConfidence()) at which the search is done */
+    public static final double CONFIDENCE_TARGET = 0.8;
+    
+    private final int max_B;
+    private final int cellWidth_B;
+    private final double[] post;
+    
+    /** number of probes reported so far */
+    private int numProbes = 0;
+    
+    /**
+     * Creates a search over buffer sizes from 1 to max_B bytes.
+     * @param max_B       largest buffer size which may be probed
+     * @param expected_B  the expected threshold (center of the prior)
+     */
+    public BufferSizeSearch( int max_B, int expected_B ) {
+        this.max_B = Math.max( 1, max_B );
+        cellWidth_B = (this.max_B + MAX_CELLS - 1) / MAX_CELLS;
+        post = new double[(this.max_B + cellWidth_B - 1) / cellWidth_B];
+        
+        // log-normal prior around the expected value plus a uniform floor
+        double mu = Math.log( Math.max(1, Math.min(this.max_B, expected_B)) );
+        double sum = 0;
+        for( int c=0; c<post.length; c++ ) {
+            double z = (Math.log( getCellCenter_B(c) ) - mu) / PRIOR_LOG_SIGMA;
+            post[c] = Math.exp( -0.5 * z * z ) * cellWidth_B / getCellCenter_B(c);
+            sum += post[c];
+        }
+        for( int c=0; c<post.length; c++ )
+            post[c] = (1 - PRIOR_UNIFORM_WEIGHT) * post[c] / sum + PRIOR_UNIFORM_WEIGHT / post.length;
+    }
+    
+    /** returns the largest buffer size in cell c */
+    private int getCellHigh_B( int c ) {
+        return Math.min( max_B, (c + 1) * cellWidth_B );
+    }
+    
+    private double getCellCenter_B( int c ) {
+        return c * cellWidth_B + (getCellHigh_B(c) - c * cellWidth_B + 1) / 2.0;
+    }
+    
+    /** returns the cell holding buffer size b_B */
+    private int getCell( int b_B ) {
+        int c = (Math.max(1, b_B) - 1) / cellWidth_B;
+        return Math.min( post.length - 1, c );
+    }
+    
+    /** returns the number of probes reported so far */
+    public int getNumProbes() {
+        return numProbes;
+    }
+    
+    /**
+     * Updates the posterior with the result of a probe.
+     * @param probe_B      the buffer size probed
+     * @param saturated    whether the link was fully utilized with it
+     * @param reliability  probability that this call is right (> 0.5)
+     */
+    public void update( int probe_B, boolean saturated, double reliability ) {
+        double p = Math.max( 0.5, Math.min(0.999, reliability) );
+        
+        // thresholds at or below the probe predict saturation
+        int probeCell = getCell( probe_B );
+        double sum = 0;
+        for( int c=0; c<post.length; c++ ) {
+            boolean predictsSaturated = (c <= probeCell);
+            post[c] *= (predictsSaturated == saturated) ? p : 1 - p;
+            sum += post[c];
+        }
+        for( int c=0; c<post.length; c++ )
+            post[c] /= sum;
+        
+        numProbes += 1;
+    }
+    
+    /** returns the smallest buffer size at which the posterior's CDF reaches q */
+    public int getQuantile_B( double q ) {
+        double cdf = 0;
+        for( int c=0; c<post.length; c++ ) {
+            cdf += post[c];
+            if( cdf >= q )
+                return getCellHigh_B( c );
+        }
+        return max_B;
+    }
+    
+    /** returns the buffer size to probe next (the posterior median) */
+    public int getNextProbe() {
+        return getQuantile_B( 0.5 );
+    }
+    
+    /** returns the current estimate of the threshold (the posterior median) */
+    public int getEstimate_B() {
+        return getQuantile_B( 0.5 );
+    }
+    
+    /** returns the low end of the central CREDIBLE_MASS credible interval */
+    public int getCredibleLow_B() {
+        return getQuantile_B( (1 - CREDIBLE_MASS) / 2 );
+    }
+    
+    /** returns the high end of the central CREDIBLE_MASS credible interval */
+    public int getCredibleHigh_B() {
+        return getQuantile_B( 1 - (1 - CREDIBLE_MASS) / 2 );
+    }
+    
+    /**
+     * Returns the probability that the threshold is within precision_B of
+     * the current estimate.
+     */
+    public double getConfidence( int precision_B ) {
+        int est = getEstimate_B();
+        int lo = getCell( est - precision_B );
+        int hi = getCell( est + precision_B );
+        double mass = 0;
+        for( int c=lo; c<=hi; c++ )
+            mass += post[c];
+        return Math.min( 1.0, mass );
+    }
+    
+    /** returns true once the threshold is within precision_B of the estimate with CONFIDENCE_TARGET probability */
+    public boolean isDone( int precision_B ) {
+        return getConfidence( precision_B ) >= CONFIDENCE_TARGET;
+    }
+    
+    /**
+     * Returns the most probes a search to precision_B should take: one more
+     * than a plain bisection from max_B down to precision_B.
+     */
+    public static int getMaxProbes( int max_B, int precision_B ) {
+        return (int)Math.ceil( Math.log(max_B / (double)Math.max(1, precision_B)) / Math.log(2) ) + 1;
+    }
+    
+    public String toString() {
+        return "estimate=" + getEstimate_B() + "B " + (int)(CREDIBLE_MASS * 100) + "% interval=["
+               + getCredibleLow_B() + "B, " + getCredibleHigh_B() + "B]";
+    }
+}
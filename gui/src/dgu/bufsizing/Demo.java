@@ -19,6 +19,9 @@ public class Demo {
     public static final int DEFAULT_RATE_LIMIT_KBPS         = 62500;
     public static final int DEFAULT_DATA_POINTS_TO_KEEP     = 2000;
     
+    /** system property naming a directory to keep each link's history files in */
+    public static final String HISTORY_DIR_PROPERTY = "bufsizing.historyDir";
+    
     public static final java.awt.Image RU_ICON = DemoGUI.chooseImage("images/logo-rice-lo.png", "images/logo-rice.png");
     public static final java.awt.Dimension RU_SIZE = DemoGUI.ratio1080(41, 50);
     
@@ -54,6 +57,12 @@ public class Demo {
     }
     
     public void runDemo() {
+        String historyDir = System.getProperty( HISTORY_DIR_PROPERTY );
+        if( historyDir != null )
+            for( Router r : routers )
+                for( BottleneckLink b : r.getBottlenecks() )
+                    b.enableHistoryFiles( new java.io.File(historyDir) );
+        
         final Demo demo = this;
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
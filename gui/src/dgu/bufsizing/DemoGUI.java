@@ -3,6 +3,7 @@ package dgu.bufsizing;
 import dgu.bufsizing.control.IperfController;
 import dgu.bufsizing.control.RedController;
 import dgu.bufsizing.control.RedInfoReceiver;
+import dgu.bufsizing.data.RingSeriesCollection;
 import dgu.util.StringOps;
 import dgu.util.swing.GUIHelper;
 import dgu.util.swing.binding.JComboBoxBound;
@@ -17,6 +18,7 @@ import org.jfree.chart.*;
 import org.jfree.chart.axis.*;
 import org.jfree.chart.plot.*;
 import org.jfree.chart.renderer.xy.*;
+import org.jfree.data.xy.XYDataset;
 import org.jfree.data.xy.XYSeriesCollection;
 import org.jfree.ui.*;
 
@@ -61,8 +63,8 @@ public class DemoGUI extends javax.swing.JFrame {
     public static DemoGUI me;
     public final Demo demo;
     
-    public static final XYSeriesCollection collXput = new XYSeriesCollection();
-    public static final XYSeriesCollection collOcc  = new XYSeriesCollection();
+    public static final RingSeriesCollection collXput = new RingSeriesCollection();
+    public static final RingSeriesCollection collOcc  = new RingSeriesCollection();
     public static final XYSeriesCollection collRes  = new XYSeriesCollection();
     
     public static final int CANVAS_WIDTH;
@@ -302,12 +304,19 @@ public class DemoGUI extends javax.swing.JFrame {
                 while( true ) {
                     d.redraw( gfx );
                     lblMap.setIcon( new ImageIcon( img ) );
-                    BottleneckLink b = getSelectedBottleneck();
-                    if( b != null ) {
-                        synchronized( b ) {
-                            b.extendUserDataPoints( BottleneckLink.currentTime8ns() );
-                            if( !freezeCharts )
-                                DemoGUI.me.refreshCharts();
+                    final BottleneckLink b = getSelectedBottleneck();
+                    if( b != null && !freezeCharts ) {
+                        // ask for the chart changes in the next snapshot and
+                        // chart the latest one on the event thread
+                        b.requestChartData();
+                        final BottleneckLink.Snapshot snap = b.getSnapshot();
+                        if( snap != null && snap != postedSnapshot ) {
+                            postedSnapshot = snap;
+                            SwingUtilities.invokeLater( new Runnable() {
+                                public void run() {
+                                    showSnapshot( b, snap );
+                                }
+                            });
                         }
                     }
                     try {
@@ -322,16 +331,37 @@ public class DemoGUI extends javax.swing.JFrame {
         //startDummyStatsThread();
 
         // start the stats listener threads (! no longer use event cap directly ...)
+        int routerIndex = 0;
         for( Router r : demo.getRouters() )
-            r.startStatsListener();
+            r.startStatsListener( routerIndex++ );
         
                 
         // start the iperf controller(s)
         int baseIPOctet = 81;
-        int numIperfControllers = GUIHelper.getIntFromUser("How many traffic controllers are running?", 0, NUM_IPERF_CONTROLLERS, 9);
-        for( int i=0; i<numIperfControllers; i++ ) {
-            String ip = GUIHelper.getInput("What is the IP or hostname of iperf controller server #" + i + "?", "b" + (baseIPOctet + i));
-            new IperfController(ip, IperfController.BASE_PORT);
+        java.util.LinkedList<BottleneckLink> links = new java.util.LinkedList<BottleneckLink>();
+        for( Router r : demo.getRouters() )
+            for( BottleneckLink b : r.getBottlenecks() )
+                links.add( b );
+        
+        if( links.size() <= 1 ) {
+            int numIperfControllers = GUIHelper.getIntFromUser("How many traffic controllers are running?", 0, NUM_IPERF_CONTROLLERS, 9);
+            for( int i=0; i<numIperfControllers; i++ ) {
+                String ip = GUIHelper.getInput("What is the IP or hostname of iperf controller server #" + i + "?", "b" + (baseIPOctet + i));
+                new IperfController(ip, IperfController.BASE_PORT);
+            }
+        }
+        else {
+            // give each link its own controllers so they can be swept at the same time
+            int i = 0;
+            for( BottleneckLink b : links ) {
+                IperfController.Pool pool = new IperfController.Pool();
+                int numIperfControllers = GUIHelper.getIntFromUser("How many traffic controllers are running for " + b.getNameShort() + "?", 0, NUM_IPERF_CONTROLLERS, 0);
+                for( int j=0; j<numIperfControllers; j++, i++ ) {
+                    String ip = GUIHelper.getInput("What is the IP or hostname of iperf controller server #" + j + " for " + b.getNameShort() + "?", "b" + (baseIPOctet + i));
+                    new IperfController(ip, IperfController.BASE_PORT, pool);
+                }
+                b.setIperfControllerPool( pool );
+            }
         }
     }
     
@@ -407,6 +437,33 @@ public class DemoGUI extends javax.swing.JFrame {
         });
         mnuPopup.add(mnuTogglePerData);
         
+        // export every occupancy and throughput point kept for the selected link
+        JMenuItem mnuExportHistory = new JMenuItem("Export Raw History");
+        mnuExportHistory.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                final BottleneckLink bl = DemoGUI.me.getSelectedBottleneck();
+                if( bl == null )
+                    return;
+                
+                final String dir = GUIHelper.getInput("Which directory should the history be exported to?", ".");
+                if( dir == null )
+                    return;
+                
+                // decoding millions of points takes a while, so keep it off the GUI thread
+                new Thread("History Export: " + bl) {
+                    public void run() {
+                        try {
+                            bl.exportHistory(new File(dir));
+                        }
+                        catch( IOException e ) {
+                            System.err.println("Error: unable to export history: " + e.getMessage());
+                        }
+                    }
+                }.start();
+            }
+        });
+        mnuPopup.add(mnuExportHistory);
+        
         // add options to control auto mode parameters
         JMenu mnuAutoModeConfig = new JMenu("Auto Mode Config");
         mnuPopup.add(mnuAutoModeConfig);
@@ -488,6 +545,15 @@ public class DemoGUI extends javax.swing.JFrame {
             }
         });
         mnuAutoModeConfig.add(mnuAMCSaveToFile);
+        
+        // run (or resume) a checkpointed grid of auto mode experiments
+        JMenuItem mnuRunExperimentGrid = new JMenuItem("Run Experiment Grid");
+        mnuRunExperimentGrid.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                startExperimentGrid();
+            }
+        });
+        mnuPopup.add(mnuRunExperimentGrid);
 
 
         // red controller
@@ -552,18 +618,61 @@ public class DemoGUI extends javax.swing.JFrame {
 
     private double redK=1.0, redA=0.02, redMaxp=1.0, redMint=0.65;
     
-    private void populateCollXputAndOcc() {
+    /** the newest snapshot the refresh thread has asked the event thread to chart */
+    private BottleneckLink.Snapshot postedSnapshot = null;
+    
+    /** the link whose chart view is in collXput, collOcc and collRes */
+    private BottleneckLink shownLink = null;
+    
+    /** charts snap if b's chart view is the one shown (call on the event thread) */
+    private void showSnapshot( BottleneckLink b, BottleneckLink.Snapshot snap ) {
+        if( b != shownLink )
+            return;
+        
+        b.setOccupancyResolution( getOccupancyResolution_ns8() );
+        if( b.updateChartView(snap) )
+            refreshCharts();
+    }
+    
+    /** puts b's chart view into collXput, collOcc and collRes (the caller refreshes the charts) */
+    private void showChartView( BottleneckLink b ) {
+        shownLink = b;
         DemoGUI.collXput.removeAllSeries(false);
         DemoGUI.collOcc.removeAllSeries(false);
+        DemoGUI.collRes.removeAllSeries(false);
+        if( b == null )
+            return;
+        
+        b.setOccupancyResolution( getOccupancyResolution_ns8() );
+        b.updateChartView( b.getSnapshot() );
+        b.requestChartData();
+        BottleneckLink.ChartView v = b.getChartView();
+        if( !mnuTogglePerData.isSelected() ) {
+            DemoGUI.collXput.addSeries( v.dataThroughput, false );
+            DemoGUI.collXput.addSeries( v.dataRateLimit,  false );
+            DemoGUI.collOcc.addSeries(  v.dataQueueOcc,   false );
+            DemoGUI.collOcc.addSeries(  v.dataBufSize,    false );
+            DemoGUI.collOcc.addSeries(  v.dataNumDropped, false );
+        }
+        else {
+            DemoGUI.collXput.addSeries( v.dataThroughputPer, false );
+            DemoGUI.collOcc.addSeries(  v.dataQueueOccPer,   false );
+            DemoGUI.collOcc.addSeries(  v.dataNumDroppedPer, false );
+        }
+        
+        DemoGUI.collRes.addSeries( v.dataRTheROT,   false );
+        DemoGUI.collRes.addSeries( v.dataRTheGuido, false );
+        DemoGUI.collRes.addSeries( v.dataRMea,      false );
+        DemoGUI.collRes.addSeries( v.dataRToday,    false );
+        DemoGUI.collRes.addSeries( v.dataRCur,      false );
+        DemoGUI.collRes.addSeries( v.dataRCurRange, false );
+    }
+    
+    private void populateCollXputAndOcc() {
         BottleneckLink bl = DemoGUI.me.getSelectedBottleneck();
+        showChartView( bl );
         if( bl != null ) {
             if( !mnuTogglePerData.isSelected() ) {
-                DemoGUI.collXput.addSeries( bl.getDataThroughput(), false );
-                DemoGUI.collXput.addSeries( bl.getDataRateLimit(),  false );
-                DemoGUI.collOcc.addSeries(  bl.getDataQueueOcc(),   false );
-                DemoGUI.collOcc.addSeries(  bl.getDataBufSize(),    false );
-                DemoGUI.collOcc.addSeries(  bl.getDataNumDropped(), false );
-                
                 ValueAxis rangeXput = ((XYPlot)chartXput.getPlot()).getRangeAxis();
                 ValueAxis rangeOcc = ((XYPlot)chartOcc.getPlot()).getRangeAxis();
                 
@@ -580,10 +689,6 @@ public class DemoGUI extends javax.swing.JFrame {
                 rangeOcc.setStandardTickUnits( NumberAxis.createIntegerTickUnits() );
             }
             else {
-                DemoGUI.collXput.addSeries( bl.getDataThroughputPer(), false );
-                DemoGUI.collOcc.addSeries(  bl.getDataQueueOccPer(),   false );
-                DemoGUI.collOcc.addSeries(  bl.getDataNumDroppedPer(),   false );
-                
                 ValueAxis rangeXput = ((XYPlot)chartXput.getPlot()).getRangeAxis();
                 ValueAxis rangeOcc = ((XYPlot)chartOcc.getPlot()).getRangeAxis();
                 
@@ -605,7 +710,7 @@ public class DemoGUI extends javax.swing.JFrame {
         }
     }
     
-    private JFreeChart prepareChart( String title, String xAxis, String yAxis, XYSeriesCollection coll ) {
+    private JFreeChart prepareChart( String title, String xAxis, String yAxis, XYDataset coll ) {
         JFreeChart chart = ChartFactory.createXYLineChart(
             title,
             xAxis,
@@ -792,14 +897,6 @@ public class DemoGUI extends javax.swing.JFrame {
 
                             // bind this bottleneck's data to the chart and remove old data
                             populateCollXputAndOcc();
-                            DemoGUI.collRes.removeAllSeries( false );
-                            DemoGUI.collRes.addSeries( b.getDataRTheROT(), false  );
-                            DemoGUI.collRes.addSeries( b.getDataRTheGuido(), false  );
-                            DemoGUI.collRes.addSeries( b.getDataRMea(), false  );
-                            DemoGUI.collRes.addSeries( b.getDataRToday(), false );
-                            DemoGUI.collRes.addSeries( b.getDataRCur(), false );
-                            DemoGUI.collRes.addSeries( b.getDataRCurRange(), false );
-                            
                             DemoGUI.me.refreshCharts();
                             
                             // refresh the text
@@ -846,9 +943,26 @@ public class DemoGUI extends javax.swing.JFrame {
     }
     
     /**
-     * Refreshses the charts.  This should be called while the current 
-     * bottleneck link's lock is held to prevent it data from changing during 
-     * the refresh this induces.
+     * Returns the time spanned by one pixel column of the occupancy chart so
+     * that occupancy can be decimated to (at most) a few points per pixel.
+     */
+    private long getOccupancyResolution_ns8() {
+        double domain_ns8 = ((XYPlot)chartOcc.getPlot()).getDomainAxis().getRange().getLength();
+        double width_px = pnlChartRight.getScreenDataArea().getWidth();
+        if( width_px <= 0 )
+            width_px = pnlChartRight.getWidth();
+        
+        if( width_px <= 0 || domain_ns8 <= 0 )
+            return 0; /* not laid out yet => don't decimate */
+        
+        // never use more buckets than the occupancy series have room for
+        width_px = Math.min( width_px, BottleneckLink.MAX_OCC_CHART_WIDTH );
+        return Math.max( 1, (long)(domain_ns8 / width_px) );
+    }
+    
+    /**
+     * Refreshses the charts.  They all show the link's chart view, which only
+     * the event thread touches, so no lock is needed.
      */
     private void refreshCharts() {
         // wrapped in try-catch blocks b/c JFreeChart sometimes throws exceptions
@@ -1401,19 +1515,12 @@ private void prepForAutoMode() {
 
 private void optAutoForCurrentNActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_optAutoForCurrentNActionPerformed
     prepForAutoMode();
-    final BottleneckLink b = getSelectedBottleneck();
+    BottleneckLink b = getSelectedBottleneck();
     if( b != null ) {
-        new Thread() {
-            public void run() {
-                autoStatsState = ThreadState.ON;
-                
-                int res = computeBufferSizeForN(b, slNumFlows.getValue());
-                if( autoStatsState == ThreadState.ON && res!=-1 )
-                    b.addMeasuredResult( res );
-                
-                autoStatsState = ThreadState.OFF;
-            }
-        }.start();
+        System.err.print(getParamsAsString());
+        java.util.LinkedList<AutoSweep> sweeps = new java.util.LinkedList<AutoSweep>();
+        sweeps.add( new AutoSweep(b, new int[]{ slNumFlows.getValue() }, getAutoModeParams(), false) );
+        startAutoSweeps(sweeps);
     }
 }//GEN-LAST:event_optAutoForCurrentNActionPerformed
 
@@ -1503,7 +1610,136 @@ private void lblNumFlowsMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST
     
     private static final boolean GEN_DEBUG_FAKE_STATS = false;
     private static ThreadState autoStatsState = ThreadState.OFF;
+    
     private void startAutoStatsThread() {
+        if( GEN_DEBUG_FAKE_STATS ) {
+            startDummyAutoStatsThread();
+            return;
+        }
+        
+        // sweep every bottleneck link at once (each drives its own link and 
+        // traffic generators)
+        System.err.print(getParamsAsString());
+        java.util.LinkedList<AutoSweep> sweeps = new java.util.LinkedList<AutoSweep>();
+        for( Router r : demo.getRouters() )
+            for( BottleneckLink b : r.getBottlenecks() )
+                sweeps.add( new AutoSweep(b, BottleneckLink.interestingN, getAutoModeParams(), true) );
+        
+        startAutoSweeps(sweeps);
+    }
+    
+    /** prefix of each link's experiment grid checkpoint file (the link's short name follows) */
+    private static final String EXPERIMENT_CHECKPOINT_PREFIX = "experiment-";
+    
+    /**
+     * Runs an experiment grid on every bottleneck link.  A link with a
+     * checkpoint resumes the grid saved in it; the others run a grid asked
+     * for from the user.
+     */
+    private void startExperimentGrid() {
+        if( autoStatsState != ThreadState.OFF ) {
+            GUIHelper.displayError("Auto mode is already running");
+            return;
+        }
+        
+        int[][] grid = null;
+        java.util.LinkedList<AutoSweep> sweeps = new java.util.LinkedList<AutoSweep>();
+        for( Router r : demo.getRouters() ) {
+            for( BottleneckLink b : r.getBottlenecks() ) {
+                File checkpoint = new File(EXPERIMENT_CHECKPOINT_PREFIX + b.getNameShort() + ".txt");
+                ExperimentScheduler s = ExperimentScheduler.resume(b, getAutoModeParams(), checkpoint);
+                if( s == null ) {
+                    if( checkpoint.exists() ) {
+                        GUIHelper.displayError("Unable to resume from " + checkpoint + " (delete it to start over)");
+                        return;
+                    }
+                    
+                    if( grid == null )
+                        grid = getExperimentGridFromUser(b);
+                    if( grid == null )
+                        return;
+                    
+                    s = new ExperimentScheduler(b, grid[0], grid[1], grid[2], getAutoModeParams(), checkpoint);
+                }
+                else
+                    System.err.println("Resuming experiment grid from " + checkpoint);
+                
+                sweeps.add( s );
+            }
+        }
+        
+        optAuto.setSelected(true);
+        prepForAutoMode();
+        System.err.print(getParamsAsString());
+        startAutoSweeps(sweeps);
+    }
+    
+    /** 
+     * asks the user for the N, RTT, and rate limit register values of an 
+     * experiment grid (defaults are based on b)
+     * @return {ns, rtts_ms, rateRegs} or null if the user cancelled
+     */
+    private int[][] getExperimentGridFromUser(BottleneckLink b) {
+        String ns = GUIHelper.getInput("Which numbers of flows should the experiment grid measure?", 
+                                       ExperimentScheduler.formatList(BottleneckLink.interestingN));
+        if( ns == null )
+            return null;
+        
+        String rtts = GUIHelper.getInput("Which RTTs (ms) should each N be measured at?", Integer.toString(b.getRTT_ms()));
+        if( rtts == null )
+            return null;
+        
+        String regs = GUIHelper.getInput("Which rate limit register values (" + RATE_LIM_MIN_REG_VAL + " to " + (RATE_LIM_VALUE_COUNT-1) + ") should each RTT be measured at?", 
+                                         Integer.toString(b.getRateLimit_regValue()));
+        if( regs == null )
+            return null;
+        
+        try {
+            int[][] grid = new int[][]{ ExperimentScheduler.parseList(ns), ExperimentScheduler.parseList(rtts), ExperimentScheduler.parseList(regs) };
+            for( int reg : grid[2] ) {
+                if( reg < RATE_LIM_MIN_REG_VAL || reg >= RATE_LIM_VALUE_COUNT ) {
+                    GUIHelper.displayError("Invalid rate limit register value: " + reg);
+                    return null;
+                }
+            }
+            return grid;
+        }
+        catch( NumberFormatException e ) {
+            GUIHelper.displayError("Invalid list of numbers: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /** 
+     * Starts sweeps and a thread which turns auto mode off once they have all
+     * finished (or stops them once auto mode is being turned off).
+     */
+    private void startAutoSweeps(final java.util.List<AutoSweep> sweeps) {
+        autoStatsState = ThreadState.ON;
+        for( AutoSweep s : sweeps )
+            s.start();
+        
+        new Thread() {
+            public void run() {
+                boolean running;
+                do {
+                    msleep(100);
+                    
+                    running = false;
+                    for( AutoSweep s : sweeps ) {
+                        if( autoStatsState != ThreadState.ON )
+                            s.stop();
+                        running = running || s.isRunning();
+                    }
+                }
+                while( running );
+                
+                autoStatsState = ThreadState.OFF;
+            }
+        }.start();
+    }
+    
+    private void startDummyAutoStatsThread() {
         autoStatsState = ThreadState.ON;
         
         // starts a dummy thread to generate bogus measured data for testing
@@ -1515,26 +1751,14 @@ private void lblNumFlowsMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST
                 while( autoStatsState == ThreadState.ON ) {
                     BottleneckLink b = getSelectedBottleneck();
                     if( b != null ) {
-                        if( GEN_DEBUG_FAKE_STATS ) {
-                            double c = Math.random();
-                            bfsz_B = (int)(0.1 * Math.random() * 200 * 1024 + 0.9 * bfsz_B);
-                            b.noteCurrentMeasuredResult(bfsz_B, c);
-                            if( c >= 0.95 ) {
-                                b.addMeasuredResult(bfsz_B);
-
-                                i = (i + 1) % BottleneckLink.interestingN.length;
-                                DemoGUI.me.slNumFlows.setValue( BottleneckLink.interestingN[i] );
-                            }
-                        }
-                        else {
-                            for( int n : BottleneckLink.interestingN ) {
-                                int res = computeBufferSizeForN(b, n);
-                                if( autoStatsState != ThreadState.ON )
-                                    break;
-                                
-                                if( res != -1 )
-                                    b.addMeasuredResult( res );
-                            }
+                        double c = Math.random();
+                        bfsz_B = (int)(0.1 * Math.random() * 200 * 1024 + 0.9 * bfsz_B);
+                        b.noteCurrentMeasuredResult(bfsz_B, c);
+                        if( c >= 0.95 ) {
+                            b.addMeasuredResult(bfsz_B);
+
+                            i = (i + 1) % BottleneckLink.interestingN.length;
+                            DemoGUI.me.slNumFlows.setValue( BottleneckLink.interestingN[i] );
                         }
                     }
                     msleep(100);
@@ -1566,8 +1790,20 @@ private void lblNumFlowsMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST
         searchPrecision_bytes = searchPrecision_packets*BottleneckLink.BYTES_PER_PACKET;
     }
     
+    /** returns the current auto mode parameters for a new sweep */
+    private AutoSweep.Params getAutoModeParams() {
+        AutoSweep.Params p = new AutoSweep.Params();
+        p.fullUtilThreshold = fullUtilThreshold;
+        p.flowStabilizeTime_msec = flowStabilizeTime_msec;
+        p.bufszStabilizeTime_msec = bufszStabilizeTime_msec;
+        p.xputSampleTime_msec = xputSampleTime_msec;
+        p.searchPrecision_bytes = searchPrecision_bytes;
+        p.maxBufSize_bytes = slCustomBufferSize.getMaximum();
+        return p;
+    }
+    
     private double getUpperBound_msec() {
-        return getBound_msec( slCustomBufferSize.getMaximum() );
+        return getAutoModeParams().getBound_msec( slCustomBufferSize.getMaximum() );
     }
     
     private double getExpectedBound_msec(int n) {
@@ -1575,11 +1811,7 @@ private void lblNumFlowsMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST
         if( b == null ) 
             return getUpperBound_msec();
         
-        return getBound_msec( BottleneckLink.computeBufSize(BufferSizeRule.FLOW_SENSITIVE, b.getRTT_ms(), b.getRateLimit_kbps(), n) );
-    }
-    
-    private double getBound_msec(int bfszStart) {
-        return flowStabilizeTime_msec + (Math.ceil( Math.log(bfszStart / searchPrecision_bytes) / Math.log(2)) + 2) * (bufszStabilizeTime_msec + xputSampleTime_msec);
+        return getAutoModeParams().getExpectedBound_msec( b, n );
     }
     
     private String getParamsAsString() {
@@ -1667,163 +1899,6 @@ private void lblNumFlowsMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST
         System.err.println(getParamsAsString());
     }
 
-    public static final boolean REVERIFY_OVEREXPECTED = false;
-
-    /** 
-     * returns the measured buffer size in B needed to achieve maximum link 
-     * utilization with n flows; retries the measurement up to three times if 
-     * the first one is higher than expected 
-     */
-    private int computeBufferSizeForN(BottleneckLink b, int n) {
-        int expectedPlus10Percent = b.computeBufSize(BufferSizeRule.FLOW_SENSITIVE,b.getRTT_ms(),b.getRateLimit_kbps(),n) * 11 / 10;
-        int numTries = 3;
-        
-        // try it once
-        int res = computeBufferSizeForN_once(b, n);
-        
-        // if more than 10% over expected, then try again
-        if(REVERIFY_OVEREXPECTED) {
-            while( --numTries > 0 && res > expectedPlus10Percent ) {
-                System.err.println("Yuck, res is > 10% bigger than expected ... trying again in case it was noise");
-                res = computeBufferSizeForN_once(b, n);
-            }
-
-            if( res > expectedPlus10Percent ) {
-                System.err.println("Still no dice -- skipping this data point because we can't get a good reading");
-                return -1;
-            }
-            else
-                return res;
-        }
-        else
-            return res;
-    }
-    
-    /** 
-     * returns the measured buffer size in B needed to achieve maximum link 
-     * utilization with n flows
-     */
-    private int computeBufferSizeForN_once(BottleneckLink b, int n) {
-        long startTime = System.currentTimeMillis();
-        
-        // convenience ...
-        dgu.util.swing.binding.JSliderBound bfsz = slCustomBufferSize;
-        
-        // initialize buffer size to its maximum size
-        int bfszMax = bfsz.getMaximum();
-        bfsz.setValue( bfszMax );
-        
-        // set the number of flows to the requested value
-        slNumFlows.setValue(n);
-        System.err.println("Measuring buffer size needed for n = " + n);
-        System.err.print(getParamsAsString());
-        
-        // wait for the new # of flows to stabalize
-        System.err.println("  Waiting for flows to stabalize ...");
-        msleep(flowStabilizeTime_msec);
-        
-        // get the throughput for when the buffer size is maximized => maximum throughput
-        int maxThroughput_bps = getAvgThroughputReading_bps(b, xputSampleTime_msec);
-        int maxThroughputThresh_bps = (int)(fullUtilThreshold * maxThroughput_bps);
-        System.err.println("  Max throughput = " + maxThroughput_bps + "bps ... thresh=" + maxThroughputThresh_bps );
-        
-        // debugging code (temporary!)
-        int escapeWarnings = 0;
-        double prevSpread = Double.POSITIVE_INFINITY;
-        
-        // perform a binary search for the minimum buffer size which maximizes throughput
-        boolean first = true;
-        int currentThroughput_bps = maxThroughput_bps;
-        int bfszLo = 1;
-        int bfszHi = bfszMax;
-        b.noteCurrentMeasuredResultRange(bfszLo, bfszHi);
-        do {
-            if( autoStatsState != ThreadState.ON )
-                return -1;
-            
-            System.err.println("  Measurement: bfsz=" + bfsz.getValue() + "B ... xput=" + currentThroughput_bps + "bps" );
-            if( currentThroughput_bps >= maxThroughputThresh_bps ) {
-                // link is saturated!
-                // save current bf sz if it is the smallest to achieve this value
-                bfszHi = bfsz.getValue();
-                System.err.println( "  ==> fully utilized ... new min bfsz!" );
-            }
-            else {
-                // link is not saturated!
-                // save current bf sz as a new lo (no reason to try any smaller bf sizes)
-                bfszLo = bfsz.getValue();
-                System.err.println( "  ==> underutilized!" );
-            }
-            
-            // pick a new buffer size to test
-            int newBfSz;
-            if( first && bfsz.getValue() == bfsz.getMaximum() ) {
-                // skip straight to the expected result (can always go back up ...)
-                newBfSz = b.getActualBufSize(BufferSizeRule.FLOW_SENSITIVE);
-                first = false;
-            }
-            else {
-                // set the buffer size halfway between our current min and max
-                // buffer size for this search
-                newBfSz = (bfszHi - bfszLo) / 2 + bfszLo;
-            }
-            
-            // if the change is sufficiently small, the search is over
-            double spread = Math.abs(bfszHi - bfszLo);
-            if( spread <= searchPrecision_bytes )
-                break;
-            
-            // debugging, temp: don't get stuck!
-            if( spread > prevSpread ) {
-                System.err.println("posible oscillation?  range grew from " + prevSpread + " to " + spread);
-                if( escapeWarnings++ >= 3 ) {
-                    System.err.println("escaping possible oscillation");
-                    break;
-                }
-            }
-            prevSpread = spread;
-
-            // set the new buffer size
-            bfsz.setValue( newBfSz );
-            b.noteCurrentMeasuredResultRange(bfszLo, bfszHi);
-
-            // give the new buffer size a chance to stabalize
-            msleep(bufszStabilizeTime_msec);
-            if( n == 1 ) // extra time for n == 1
-                msleep(bufszStabilizeTime_msec);
-            
-            // get the throughput for this buffer size
-            currentThroughput_bps = getAvgThroughputReading_bps(b, xputSampleTime_msec);
-        }
-        while( true );
-        
-        // cleanup the old progress point
-        b.clearInProgressPoint();
-        
-        // compare expected and actual runtimes
-        long runtime_msec = System.currentTimeMillis() - startTime;
-        double expected_msec = getExpectedBound_msec(n);
-        double delta_msec = runtime_msec - expected_msec;
-        double abs_delta_msec = Math.abs(delta_msec);
-        double percentOff = delta_msec / expected_msec * 100;
-        String deltaNote = (runtime_msec > expected_msec) ? "Slower" : "Faster";
-        System.err.println( "Runtime stats: " +
-                            "    Upper bound: " + (int)(getUpperBound_msec() / 1000) + "sec\n" +
-                            "    Expected:    " + (int)(expected_msec / 1000) + "sec\n" +
-                            "    Actual:      " + (int)(runtime_msec / 1000) + "sec\n" +
-                            "      =========> " + deltaNote + " than expected by " + (int)(abs_delta_msec / 1000) + "sec (" + (int)percentOff + "% from expected)\n" );
-        
-        // return the measured minimum buffer size value
-        return bfszHi;
-    }
-    
-    /** gets the average throughput reading over the specified time interval */
-    private int getAvgThroughputReading_bps(BottleneckLink b, int time_msec) {
-        b.resetXputMovingAverage();
-        msleep(time_msec);
-        return b.getXputMovingAverage();
-    }
-    
     /** Block until the automatic stats thread is off. */
     private void stopAutoStatsThread() {
         if( autoStatsState != ThreadState.OFF ) {
@@ -0,0 +1,330 @@
+package dgu.bufsizing;
+
+import dgu.bufsizing.control.RouterController;
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Runs auto mode over a grid of flow counts, RTTs and rate limit register
+ * values on one bottleneck link, checkpointing each result to a file so an
+ * interrupted grid picks up where it left off when it is started again.
+ *
+ * Runs are ordered to keep costly reconfigurations rare: every run at one
+ * rate limit is done before the rate changes (which reprograms the router and
+ * the traffic generators), RTTs go in order within a rate, and N snakes up and
+ * down so each run only adds or removes a few flows instead of tearing them
+ * all down and ramping back up.  The order only depends on the grid, so a
+ * resumed grid continues with the same run it would have done next.
+ *
+ * The checkpoint is a text file which starts with the grid and gets a line
+ * "rateReg rtt_ms n result_B" appended (and synced to disk) after each run.  A
+ * run which could not be measured is recorded with a result of -1 so it is not
+ * retried, and a partly written last line (e.g. from a crash) is dropped.
+ * Results already in the checkpoint are added to the link's results chart
+ * when the grid is resumed.  Delete the checkpoint to run a grid again.
+ *
+ * @author David Underhill
+ */
+public class ExperimentScheduler extends AutoSweep {
+    /** one (rate, RTT, N) point in the grid */
+    public static class Run {
+        public final int rateReg;
+        public final int rtt_ms;
+        public final int n;
+        
+        public Run( int rateReg, int rtt_ms, int n ) {
+            this.rateReg = rateReg;
+            this.rtt_ms = rtt_ms;
+            this.n = n;
+        }
+        
+        /** returns how this run is identified in the checkpoint */
+        public String getKey() {
+            return rateReg + " " + rtt_ms + " " + n;
+        }
+        
+        public String toString() {
+            return "rateReg=" + rateReg + " rtt=" + rtt_ms + "ms n=" + n;
+        }
+    }
+    
+    private static final String GRID_PREFIX = "grid ";
+    
+    private final int[] ns;
+    private final int[] rtts_ms;
+    private final int[] rateRegs;
+    private final Params p;
+    private final File checkpoint;
+    
+    /** results of the runs in the checkpoint, by run key */
+    private final HashMap<String, Integer> done = new HashMap<String, Integer>();
+    
+    /**
+     * Creates a scheduler (call start() to run it).
+     * @param b           the link to measure
+     * @param ns          the numbers of flows to measure
+     * @param rtts_ms     the RTTs to measure each N at
+     * @param rateRegs    the rate limit register values to measure each RTT at
+     * @param p           the parameters to measure with
+     * @param checkpoint  file to resume from (if it exists) and record results in
+     */
+    public ExperimentScheduler( BottleneckLink b, int[] ns, int[] rtts_ms, int[] rateRegs, Params p, File checkpoint ) {
+        super( b, ns, p, false );
+        this.ns = sortedDistinct( ns );
+        this.rtts_ms = sortedDistinct( rtts_ms );
+        this.rateRegs = sortedDistinct( rateRegs );
+        this.p = p;
+        this.checkpoint = checkpoint;
+    }
+    
+    /**
+     * Creates a scheduler which resumes the grid saved in a checkpoint.
+     * @return the scheduler, or null if there is no readable checkpoint
+     */
+    public static ExperimentScheduler resume( BottleneckLink b, Params p, File checkpoint ) {
+        if( !checkpoint.exists() )
+            return null;
+        
+        try {
+            for( String line : readCompleteLines(checkpoint, false) ) {
+                if( !line.startsWith(GRID_PREFIX) )
+                    continue;
+                
+                String[] vals = line.substring(GRID_PREFIX.length()).split(" ");
+                if( vals.length != 3 )
+                    break;
+                
+                return new ExperimentScheduler( b, parseList(vals[0]), parseList(vals[1]), parseList(vals[2]), p, checkpoint );
+            }
+        }
+        catch( IOException e ) {
+            System.err.println( "Error: unable to read checkpoint " + checkpoint + ": " + e.getMessage() );
+            return null;
+        }
+        catch( NumberFormatException e ) {
+            // fall through to the error below
+        }
+        
+        System.err.println( "Error: " + checkpoint + " does not start with a valid grid" );
+        return null;
+    }
+    
+    /**
+     * Returns the runs of a grid in the order they should be done: grouped by
+     * rate limit and then RTT, with N alternately increasing and decreasing.
+     */
+    public static List<Run> schedule( int[] ns, int[] rtts_ms, int[] rateRegs ) {
+        int[] sn = sortedDistinct( ns );
+        LinkedList<Run> runs = new LinkedList<Run>();
+        boolean up = true;
+        for( int reg : sortedDistinct(rateRegs) ) {
+            for( int rtt : sortedDistinct(rtts_ms) ) {
+                for( int i=0; i<sn.length; i++ )
+                    runs.add( new Run(reg, rtt, sn[up ? i : sn.length - 1 - i]) );
+                up = !up;
+            }
+        }
+        return runs;
+    }
+    
+    /** parses a comma separated list of integers (e.g. "1,5,10") */
+    public static int[] parseList( String s ) throws NumberFormatException {
+        String[] vals = s.trim().split("\\s*,\\s*");
+        int[] ret = new int[vals.length];
+        for( int i=0; i<vals.length; i++ )
+            ret[i] = Integer.valueOf( vals[i] );
+        return ret;
+    }
+    
+    /** formats a list of integers as parseList() expects it */
+    public static String formatList( int[] vals ) {
+        String ret = "";
+        for( int i=0; i<vals.length; i++ )
+            ret += (i == 0 ? "" : ",") + vals[i];
+        return ret;
+    }
+    
+    private static int[] sortedDistinct( int[] vals ) {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for( int v : vals )
+            set.add( v );
+        
+        int[] ret = new int[set.size()];
+        int i = 0;
+        for( int v : set )
+            ret[i++] = v;
+        return ret;
+    }
+    
+    public File getCheckpoint() {
+        return checkpoint;
+    }
+    
+    /** returns the line which identifies this grid in the checkpoint */
+    private String getGridLine() {
+        return GRID_PREFIX + formatList(ns) + " " + formatList(rtts_ms) + " " + formatList(rateRegs);
+    }
+    
+    protected void sweep() {
+        List<Run> runs = schedule( ns, rtts_ms, rateRegs );
+        if( !loadCheckpoint() )
+            return;
+        
+        log( "Experiment grid of " + runs.size() + " runs with " + done.size() + " already done (checkpoint: " + checkpoint + ")" );
+        
+        // the sweep sizes the buffer itself
+        BottleneckLink b = getLink();
+        b.setBufSizeRule( BufferSizeRule.CUSTOM );
+        
+        int rateReg = -1, rtt_ms = -1;
+        int runOn = 0;
+        for( Run r : runs ) {
+            runOn += 1;
+            if( done.containsKey(r.getKey()) )
+                continue;
+            if( isStopping() )
+                break;
+            
+            // only reconfigure what changed since the last run
+            if( r.rateReg != rateReg ) {
+                b.setRateLimitReg( r.rateReg );
+                rateReg = r.rateReg;
+            }
+            if( r.rtt_ms != rtt_ms ) {
+                b.setRTT_ms( r.rtt_ms );
+                rtt_ms = r.rtt_ms;
+            }
+            b.awaitPendingChanges( p.flowStabilizeTime_msec );
+            
+            log( "Run " + runOn + " of " + runs.size() + ": " + r );
+            int res = computeBufferSizeForN( r.n );
+            if( isStopping() )
+                break; /* redo the interrupted run when resumed */
+            
+            if( res != -1 )
+                b.addMeasuredResult( res );
+            
+            if( !appendToCheckpoint(r.getKey() + " " + res) )
+                break;
+            done.put( r.getKey(), res );
+        }
+        
+        if( done.size() == runs.size() )
+            log( "Experiment grid done (delete " + checkpoint + " to run it again)" );
+        
+        // remove the unsettled point
+        b.clearInProgressPoint();
+    }
+    
+    /**
+     * Loads the finished runs from the checkpoint (and charts their results),
+     * or starts a new checkpoint if there is none yet.
+     * @return false if the checkpoint could not be used
+     */
+    private boolean loadCheckpoint() {
+        done.clear();
+        if( !checkpoint.exists() )
+            return appendToCheckpoint( "# experiment grid checkpoint for " + getLink().getNameShort() + " (rateReg rtt_ms n result_B)\n" + getGridLine() );
+        
+        String grid = null;
+        LinkedList<Run> results = new LinkedList<Run>();
+        try {
+            for( String line : readCompleteLines(checkpoint, true) ) {
+                // ignore comments
+                if( line.length() == 0 || line.charAt(0) == '#' )
+                    continue;
+                
+                if( line.startsWith(GRID_PREFIX) ) {
+                    grid = line;
+                    continue;
+                }
+                
+                String[] vals = line.split(" ");
+                try {
+                    if( vals.length != 4 )
+                        throw new NumberFormatException();
+                    
+                    Run r = new Run( Integer.valueOf(vals[0]), Integer.valueOf(vals[1]), Integer.valueOf(vals[2]) );
+                    if( done.put(r.getKey(), Integer.valueOf(vals[3])) == null )
+                        results.add( r );
+                }
+                catch( NumberFormatException e ) {
+                    log( "Warning: ignoring invalid line in " + checkpoint + ": " + line );
+                }
+            }
+        }
+        catch( IOException e ) {
+            log( "Error: unable to read checkpoint " + checkpoint + ": " + e.getMessage() );
+            return false;
+        }
+        
+        if( !getGridLine().equals(grid) ) {
+            log( "Error: " + checkpoint + " is for a different grid (" + grid + ")" );
+            return false;
+        }
+        
+        // put the results from before the restart back on the chart
+        BottleneckLink b = getLink();
+        for( Run r : results ) {
+            int res = done.get( r.getKey() );
+            if( res != -1 )
+                b.addMeasuredResult( r.n, RouterController.translateRateLimitRegToBitsPerSec(r.rateReg) / 1000, r.rtt_ms, res );
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the lines of a file which end in a newline.
+     * @param truncate  whether to cut off a partly written last line so new
+     *                  lines start cleanly (else the file is only read)
+     */
+    private static List<String> readCompleteLines( File f, boolean truncate ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( f, truncate ? "rw" : "r" );
+        byte[] buf;
+        int end;
+        try {
+            buf = new byte[(int)raf.length()];
+            raf.readFully( buf );
+        
+            end = buf.length;
+            while( end > 0 && buf[end - 1] != '\n' )
+                end -= 1;
+            if( truncate && end < buf.length )
+                raf.setLength( end );
+        }
+        finally {
+            raf.close();
+        }
+        
+        LinkedList<String> lines = new LinkedList<String>();
+        BufferedReader br = new BufferedReader( new InputStreamReader(new ByteArrayInputStream(buf, 0, end)) );
+        String line;
+        while( (line = br.readLine()) != null )
+            lines.add( line );
+        br.close();
+        return lines;
+    }
+    
+    /** appends a line to the checkpoint and syncs it to disk */
+    private boolean appendToCheckpoint( String line ) {
+        try {
+            FileOutputStream fos = new FileOutputStream( checkpoint, true );
+            try {
+                fos.write( (line + "\n").getBytes() );
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+            return true;
+        }
+        catch( IOException e ) {
+            log( "Error: unable to write checkpoint " + checkpoint + ": " + e.getMessage() );
+            return false;
+        }
+    }
+}
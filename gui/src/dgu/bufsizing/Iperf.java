@@ -19,6 +19,9 @@ public class Iperf extends TrafficGenerator {
     private int portOn = 5000;
     private final String cmd;
     
+    /** the controllers which start and stop this generator's flows */
+    private IperfController.Pool pool = IperfController.DEFAULT_POOL;
+    
     /** creates a default iperf traffic generator which uses TCP */
     public Iperf(String dstIP) {
         this( dstIP, "iperf", "iperf", Importance.IMPORTANT, 0, 0, true, 0 );
@@ -40,7 +43,15 @@ public class Iperf extends TrafficGenerator {
     }
     
     public void setNumFlows(int n) {
-        IperfController.setNumFlows(n);
+        pool.setNumFlows(n);
+    }
+    
+    public IperfController.Pool getControllerPool() {
+        return pool;
+    }
+    
+    public void setControllerPool( IperfController.Pool pool ) {
+        this.pool = pool;
     }
     
     public void setNumFlowsLocal(int n) {
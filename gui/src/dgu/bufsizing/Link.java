@@ -41,6 +41,10 @@ public class Link<SOURCE_TYPE extends Node> implements Drawable {
         return dst;
     }
     
+    public int getQueueID() {
+        return queueID;
+    }
+    
     public String toString() {
         return src.toString() + " ===> " + dst.toString();
     }
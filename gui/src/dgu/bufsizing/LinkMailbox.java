@@ -0,0 +1,116 @@
+package dgu.bufsizing;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The mailbox of a BottleneckLink's owner thread.  Control-plane changes to
+ * the link (from sliders, menus and auto mode) are posted here as typed
+ * messages and applied one at a time, in order, by the owner thread.  The
+ * owner thread talks to the traffic generators without holding the link's
+ * lock, so a slow controller never stalls the packet accounting done by the
+ * event applier threads.  While the mailbox is empty, the owner thread also
+ * publishes the link's snapshot when no traffic is arriving to publish it.
+ *
+ * @author David Underhill
+ */
+public class LinkMailbox {
+    /** kinds of messages */
+    public enum Kind {
+        SET_NUM_FLOWS,
+        ADJUST_NUM_FLOWS,
+        SET_CUSTOM_BUF_SIZE,
+        SET_RATE_LIMIT_REG,
+        SET_RTT,
+        SET_BUF_SIZE_RULE,
+        
+        /** no change; counts down the latch in arg once every earlier message is applied */
+        SYNC
+    }
+    
+    /** one request for the owner thread */
+    static class Message {
+        final Kind kind;
+        final int value;
+        final Object arg;
+        
+        Message( Kind kind, int value, Object arg ) {
+            this.kind = kind;
+            this.value = value;
+            this.arg = arg;
+        }
+    }
+    
+    private final BottleneckLink link;
+    private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+    private Thread owner = null;
+    
+    LinkMailbox( BottleneckLink link ) {
+        this.link = link;
+    }
+    
+    /** queues a message for the owner thread (starting it if needed) */
+    public void post( Kind kind, int value, Object arg ) {
+        start();
+        queue.add( new Message(kind, value, arg) );
+    }
+    
+    /** returns the number of messages waiting to be applied */
+    public int size() {
+        return queue.size();
+    }
+    
+    /**
+     * Waits until every message posted so far has been applied.
+     * @return true if they were applied before timeout_msec passed
+     */
+    public boolean sync( long timeout_msec ) {
+        if( Thread.currentThread() == owner )
+            return true; /* everything before us has been applied */
+        
+        CountDownLatch done = new CountDownLatch( 1 );
+        post( Kind.SYNC, 0, done );
+        try {
+            return done.await( timeout_msec, TimeUnit.MILLISECONDS );
+        }
+        catch( InterruptedException e ) {
+            return false;
+        }
+    }
+    
+    /** starts the owner thread if it is not running yet */
+    synchronized void start() {
+        if( owner != null )
+            return;
+        
+        owner = new Thread( "Link Owner: " + link ) {
+            public void run() {
+                while( true ) {
+                    Message m;
+                    try {
+                        m = queue.poll( BottleneckLink.PUBLISH_INTERVAL_MSEC, TimeUnit.MILLISECONDS );
+                    }
+                    catch( InterruptedException e ) {
+                        continue;
+                    }
+                    
+                    try {
+                        if( m == null )
+                            link.publishIfIdle();
+                        else if( m.kind == Kind.SYNC )
+                            ((CountDownLatch)m.arg).countDown();
+                        else
+                            link.apply( m );
+                    }
+                    catch( RuntimeException e ) {
+                        // don't let one bad message kill the link's owner
+                        System.err.println( "Error: link owner failed to apply " + ((m == null) ? "snapshot" : m.kind) + ": " + e );
+                    }
+                }
+            }
+        };
+        owner.setDaemon( true );
+        owner.start();
+    }
+}
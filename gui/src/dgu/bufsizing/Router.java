@@ -28,11 +28,15 @@ public class Router extends Node {
         this.statsPort = statsPort;
     }
     
-    public void startStatsListener() {
+    /**
+     * Starts receiving stats from this router.
+     * @param routerIndex  index of this router in the demo's list of routers
+     */
+    public void startStatsListener( int routerIndex ) {
         controller.startUpdateInfoProcessorThread();
         
         //if( statsPort != 0 )
-        //    new EventProcessor( statsPort ).start();
+        //    new EventProcessor( statsPort, routerIndex, true, EventProcessor.DIRECT ).start();
     }
     
     protected void drawNode( Graphics2D gfx ) {
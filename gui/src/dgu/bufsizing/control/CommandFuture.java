@@ -0,0 +1,126 @@
+package dgu.bufsizing.control;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a router command.  It completes when the router
+ * controller acknowledges that the register holds the requested value; the
+ * result is the value the router read back from the register.
+ *
+ * @author David Underhill
+ */
+public class CommandFuture implements Future<Integer> {
+    final byte code;
+    final byte queueNum;
+    final int value;
+    
+    /** when the command was issued */
+    final long issued_millis = System.currentTimeMillis();
+    
+    private boolean done = false;
+    private boolean cancelled = false;
+    private int result = 0;
+    private String failure = null;
+    
+    CommandFuture( byte code, byte queueNum, int value ) {
+        this.code = code;
+        this.queueNum = queueNum;
+        this.value = value;
+    }
+    
+    /** returns the value which was requested */
+    public int getRequestedValue() {
+        return value;
+    }
+    
+    /** called when the router acknowledges the command */
+    synchronized void complete( int readBackValue ) {
+        if( done )
+            return;
+        
+        result = readBackValue;
+        done = true;
+        notifyAll();
+    }
+    
+    /** called when the command can no longer be acknowledged */
+    synchronized void fail( String why ) {
+        if( done )
+            return;
+        
+        failure = why;
+        done = true;
+        notifyAll();
+    }
+    
+    public synchronized boolean cancel( boolean mayInterruptIfRunning ) {
+        if( done )
+            return false;
+        
+        cancelled = true;
+        done = true;
+        notifyAll();
+        return true;
+    }
+    
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+    
+    public synchronized boolean isDone() {
+        return done;
+    }
+    
+    /** returns true if the command was acknowledged */
+    public synchronized boolean isAcknowledged() {
+        return done && !cancelled && failure == null;
+    }
+    
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while( !done )
+            wait();
+        
+        return getResult();
+    }
+    
+    public synchronized Integer get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline_nanos = System.nanoTime() + unit.toNanos( timeout );
+        while( !done ) {
+            long wait_nanos = deadline_nanos - System.nanoTime();
+            if( wait_nanos <= 0 )
+                throw new TimeoutException( "command " + code + " (queue " + queueNum + ") was not acknowledged" );
+            
+            TimeUnit.NANOSECONDS.timedWait( this, wait_nanos );
+        }
+        
+        return getResult();
+    }
+    
+    /** must hold this and be done */
+    private Integer getResult() throws ExecutionException {
+        if( cancelled )
+            throw new java.util.concurrent.CancellationException();
+        else if( failure != null )
+            throw new ExecutionException( new java.io.IOException( failure ) );
+        else
+            return result;
+    }
+    
+    /**
+     * Waits up to timeout_msec for the router to acknowledge the command.
+     * @return true if it was acknowledged (false if it timed out, failed, or
+     *         the wait was interrupted)
+     */
+    public boolean awaitAck( long timeout_msec ) {
+        try {
+            get( timeout_msec, TimeUnit.MILLISECONDS );
+            return true;
+        }
+        catch( Exception e ) {
+            return false;
+        }
+    }
+}
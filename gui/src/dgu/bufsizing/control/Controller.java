@@ -1,10 +1,8 @@
 package dgu.bufsizing.control;
 
-import dgu.bufsizing.DemoGUI;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.util.HashMap;
 
 /**
@@ -39,19 +37,19 @@ public abstract class Controller {
     
     protected String serverIP;
     protected int serverPort;
-    boolean tryingToConnect = false;
     
-    /** the socket which connects this Command to its client */
-    protected Socket s;
+    /** the connection to the client (serviced by the ControllerEventLoop) */
+    protected final ControllerConnection conn;
 
-    /** output stream to write to the socket */
-    protected OutputStream out;
+    /** output stream to write to the socket (queues bytes for the event loop) */
+    protected final OutputStream out;
 
-    /** input stream to read from the socket */
-    protected InputStream in;
+    /** input stream to read from the socket (blocks until bytes are received) */
+    protected final InputStream in;
 
     /** 
-     * Connect to the client on the specified port.
+     * Connect to the client on the specified port.  The connection is made
+     * (and remade if it is lost) by the ControllerEventLoop.
      * 
      * @param ip    the IP of the client to connect to
      * @param port  the TCP port to connect on
@@ -59,151 +57,65 @@ public abstract class Controller {
     public Controller( String ip, int port ) {
         serverIP = getIPFromNameOrIP(ip);
         serverPort = port;
-        asynchronousConnect();
+        conn = new ControllerConnection( this, serverIP, serverPort );
+        out = conn.getOutputStream();
+        in = conn.getInputStream();
+        ControllerEventLoop.get().register( conn );
     }
     
-    private void asynchronousConnect() {
-        if( tryingToConnect || (s!=null && out!=null && in!=null) )
-            return;
-        
-        new Thread() { 
-            public void run() {
-                connect();
-            }
-        }.start();
-    }
-    
-    /** Continuously tries to connect to the server. */
-    private synchronized void connect() {
-        tryingToConnect = true;
-        
-        int tries = 0;
-        while( s==null ) {
-            close();
-            
-            if( tries++ > 0 ) {
-                System.err.println(getName() + ": Retrying to establish connection (try #" + tries + ")");
-                close();
-            }
-            else
-                System.err.println(getName() + ": Trying to establish connection");
-
-            // setup socket for listening for new clients connection requests
-            try {
-                s = new Socket(serverIP, serverPort);
-            }
-            catch( IOException e ) {
-                System.err.println( getName() + ": " + e.getMessage() );
-                s = null;
-            }
-
-            //try to establish the I/O streams: if we can't establish either, then close the socket
-            try {
-                if( s != null )
-                    out = s.getOutputStream();
-            } catch( IOException e ) {
-                System.err.println( getName() + ": Client Socket Setup Error: " + e.getMessage() );
-                out = null;
-            } 
-            
-            try {
-                if( out != null )
-                    in = s.getInputStream();
-            } catch( IOException e ) {
-                System.err.println( getName() + ": Client Socket Setup Error: " + e.getMessage() );
-                in = null;
-            }
-
-            if( in == null ) {
-                System.err.println( getName() + ": Failed to establish connection! (will retry in 1 second)");
-                DemoGUI.msleep(1000); 
-            }
-        }
-        
-        System.err.println(getName() + ": now connected");
-        tryingToConnect = false;
-    }
-     
-    private void close() {
-        if( tryingToConnect )
-            return;
-        
-        synchronized(this) {
-        if( s != null ) {
-            try {
-                s.close();
-            } catch(IOException e){}
-            s = null;
-        }
-        if( out != null ) {
-            try {
-                out.close();
-            } catch(IOException e){}
-            out = null;
-        }
-        if( in != null ) {
-            try {
-                in.close();
-            } catch(IOException e){}
-            in = null;
-        }
-        } // synchronized(this)
+    /** returns true if the connection to the client is established */
+    public boolean isConnected() {
+        return conn.isConnected();
     }
     
     public abstract String getTypeString();
     public String getName() { return getTypeString() + " controller (" + serverIP + ":" + serverPort + ")"; }
 
-    protected synchronized void sendCommand( byte code, int value ) {
+    protected void sendCommand( byte code, int value ) {
         sendCommand(code, (byte)0, value, false);
     }
     
-    protected synchronized void sendCommand( byte code, byte extra, int value ) {
+    protected void sendCommand( byte code, byte extra, int value ) {
         sendCommand(code, extra, value, true);
     }
     
-    protected synchronized void sendCommand( byte code, byte extra, int value, boolean usesExtra ) {
-        OutputStream myOut = out;
-        
-        if(tryingToConnect || myOut==null) {
+    /**
+     * Queues a command to be sent by the event loop.  This never blocks on the
+     * network.  Commands are held for a few milliseconds so that a burst of
+     * commands with the same code (and extra value) is collapsed to the latest.
+     */
+    protected void sendCommand( byte code, byte extra, int value, boolean usesExtra ) {
+        if( !conn.isConnected() ) {
             System.err.println(getName() + ": could not send command " + code + "," + value);
-            asynchronousConnect();
             return;
         }
         
         try {
-            //write the code (one byte)
-            myOut.write( code );
-            
-            //write the extra value if applicable
-            if( usesExtra )
-                myOut.write( extra );
-
-            //write each byte in the value
-            myOut.write(  value >> 24 );
-            myOut.write( (value >> 16) & 0x000000FF );
-            myOut.write( (value >>  8) & 0x000000FF );
-            myOut.write(  value        &  0x000000FF );
+            conn.queueCommand( code, extra, value, usesExtra );
         } catch( IOException e ) {
             System.err.println( getName() + ": command " + code + " / " + value + " => failed: " + e.getMessage() );
-            asynchronousConnect();
         }
     }
     
+    /** 
+     * Reads one byte, blocking until it is received.
+     * @throws IOException if the connection is lost while waiting
+     */
     public int readByteOrDie() throws IOException {
-        InputStream myIn = in;
-        
-        if(tryingToConnect || myIn==null) {
-            asynchronousConnect();
-            throw new IOException("input socket is not open");
-        }
-        
-        int ret = myIn.read();
-        if( ret == -1 ) {
-            asynchronousConnect();
-            throw new IOException("Socket received EOF");
-        }
+        return in.read();
+    }
+    
+    /**
+     * Reads at least min bytes (and at most max bytes) into buf with as few
+     * reads as possible.
+     * @return the number of bytes read
+     */
+    public int readAtLeast( byte[] buf, int off, int min, int max ) throws IOException {
+        int got = 0;
+        while( got < min )
+            got += in.read( buf, off + got, max - got );
         
-        return ret;
+        return got;
     }
     
     /** reads byte i to i+3 to form an int */
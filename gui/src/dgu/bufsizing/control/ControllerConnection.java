@@ -0,0 +1,445 @@
+package dgu.bufsizing.control;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One controller's non-blocking connection to its client.  The socket itself
+ * is only touched by the ControllerEventLoop thread.  Bytes it receives are put
+ * in a read queue which blocking readers consume through getInputStream(), and
+ * bytes written to getOutputStream() are put in a write queue which the event
+ * loop sends when the socket is ready.
+ *
+ * When the connection is lost, both queues are cleared, any blocked reader gets
+ * an IOException, and the event loop reconnects after a short delay.
+ *
+ * @author David Underhill
+ */
+public class ControllerConnection {
+    /** maximum number of received bytes which may wait for a reader */
+    public static final int READ_QUEUE_SIZE = 64 * 1024;
+    
+    /** initial size of the write queue (it grows if needed) */
+    public static final int WRITE_QUEUE_SIZE = 1024;
+    
+    /** how long to wait between connection attempts */
+    public static final long RECONNECT_DELAY_MILLIS = 1000;
+    
+    /** how long a queued command waits for newer values to replace it before it is sent */
+    public static final long COMMAND_FLUSH_DELAY_MILLIS = 10;
+    
+    private final Controller owner;
+    private final String ip;
+    private final int port;
+    
+    // connection state (only used by the event loop thread)
+    SocketChannel channel = null;
+    SelectionKey key = null;
+    long reconnectAt_millis = 0;
+    private int tries = 0;
+    
+    private volatile boolean connected = false;
+    
+    // received bytes waiting for a reader (a circular buffer guarded by readLock)
+    private final Object readLock = new Object();
+    private final byte[] readQueue = new byte[READ_QUEUE_SIZE];
+    private final ByteBuffer readQueueBB = ByteBuffer.wrap( readQueue );
+    private int readStart = 0;
+    private int readCount = 0;
+    
+    /** incremented each time the connection is lost so waiting readers know */
+    private int generation = 0;
+    
+    // bytes waiting to be sent (guarded by writeLock)
+    private final Object writeLock = new Object();
+    private ByteBuffer writeQueue = ByteBuffer.allocate( WRITE_QUEUE_SIZE );
+    
+    // commands waiting to be framed into the write queue, at most one per
+    // (code, extra) key and in the order each key was last queued (guarded by writeLock)
+    private int[] cmdKey = new int[8];
+    private int[] cmdValue = new int[8];
+    private int numCmds = 0;
+    private long cmdFlushAt_millis = 0;
+    
+    private volatile long numCommandsQueued = 0;
+    private volatile long numCommandsCoalesced = 0;
+    
+    private final InputStream in = new InputStream() {
+        public int read() throws IOException {
+            return readByte();
+        }
+        
+        public int read( byte[] b, int off, int len ) throws IOException {
+            return ControllerConnection.this.read( b, off, len );
+        }
+        
+        public int available() {
+            synchronized( readLock ) {
+                return readCount;
+            }
+        }
+    };
+    
+    private final OutputStream out = new OutputStream() {
+        public void write( int b ) throws IOException {
+            ControllerConnection.this.write( new byte[]{(byte)b}, 0, 1 );
+        }
+        
+        public void write( byte[] b, int off, int len ) throws IOException {
+            ControllerConnection.this.write( b, off, len );
+        }
+    };
+    
+    /**
+     * Creates a connection (it is not opened until it is registered with the
+     * event loop).
+     */
+    public ControllerConnection( Controller owner, String ip, int port ) {
+        this.owner = owner;
+        this.ip = ip;
+        this.port = port;
+    }
+    
+    /** returns true if the connection is established */
+    public boolean isConnected() {
+        return connected;
+    }
+    
+    /** returns a stream which blocks until received bytes are available */
+    public InputStream getInputStream() {
+        return in;
+    }
+    
+    /** returns a stream which queues bytes to be sent by the event loop */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+    
+    /**
+     * Reads up to len bytes, blocking until at least one is available.
+     * @throws IOException if the connection is lost while waiting
+     */
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if( len == 0 )
+            return 0;
+        
+        synchronized( readLock ) {
+            waitForData();
+            
+            boolean wasFull = (readCount == readQueue.length);
+            int n = Math.min( len, readCount );
+            int first = Math.min( n, readQueue.length - readStart );
+            System.arraycopy( readQueue, readStart, b, off, first );
+            System.arraycopy( readQueue, 0, b, off + first, n - first );
+            consumed( n );
+            
+            if( wasFull )
+                ControllerEventLoop.get().wakeup(); /* it can read again */
+            
+            return n;
+        }
+    }
+    
+    /** reads one byte (0-255), blocking until it is available */
+    public int readByte() throws IOException {
+        synchronized( readLock ) {
+            waitForData();
+            
+            boolean wasFull = (readCount == readQueue.length);
+            int ret = readQueue[readStart] & 0xFF;
+            consumed( 1 );
+            
+            if( wasFull )
+                ControllerEventLoop.get().wakeup();
+            
+            return ret;
+        }
+    }
+    
+    /** must hold readLock */
+    private void waitForData() throws IOException {
+        int gen = generation;
+        while( readCount == 0 ) {
+            try {
+                readLock.wait();
+            } catch( InterruptedException e ) {
+                throw new IOException( "interrupted while waiting for data" );
+            }
+            
+            if( gen != generation )
+                throw new IOException( "Socket received EOF" );
+        }
+    }
+    
+    /** must hold readLock */
+    private void consumed( int n ) {
+        readStart = (readStart + n) % readQueue.length;
+        readCount -= n;
+    }
+    
+    /**
+     * Queues bytes to be sent.
+     * @throws IOException if the connection is not established
+     */
+    public void write( byte[] b, int off, int len ) throws IOException {
+        if( !connected )
+            throw new IOException( "output socket is not open" );
+        
+        synchronized( writeLock ) {
+            ensureWriteSpace( len );
+            writeQueue.put( b, off, len );
+        }
+        
+        ControllerEventLoop.get().wakeup();
+    }
+    
+    /** must hold writeLock */
+    private void ensureWriteSpace( int len ) {
+        if( writeQueue.remaining() < len ) {
+            ByteBuffer bigger = ByteBuffer.allocate( 2 * (writeQueue.position() + len) );
+            writeQueue.flip();
+            bigger.put( writeQueue );
+            writeQueue = bigger;
+        }
+    }
+    
+    /**
+     * Queues a command to be sent shortly.  If a command with the same code
+     * (and extra value, if used) is already waiting to be sent, it is dropped
+     * since the router only cares about the latest value; the new value goes
+     * at the end so commands are still sent in the order of their last writes.
+     * @throws IOException if the connection is not established
+     */
+    public void queueCommand( byte code, byte extra, int value, boolean usesExtra ) throws IOException {
+        if( !connected )
+            throw new IOException( "output socket is not open" );
+        
+        // bit 16 distinguishes commands which have an extra byte
+        int key = (usesExtra ? 0x10000 | ((code & 0xFF) << 8) | (extra & 0xFF) : (code & 0xFF) << 8);
+        numCommandsQueued += 1;
+        
+        synchronized( writeLock ) {
+            boolean superseded = false;
+            for( int i=0; i<numCmds; i++ ) {
+                if( cmdKey[i] == key ) {
+                    // remove the superseded command
+                    System.arraycopy( cmdKey, i + 1, cmdKey, i, numCmds - i - 1 );
+                    System.arraycopy( cmdValue, i + 1, cmdValue, i, numCmds - i - 1 );
+                    numCmds -= 1;
+                    numCommandsCoalesced += 1;
+                    superseded = true;
+                    break;
+                }
+            }
+            
+            if( numCmds == cmdKey.length ) {
+                int[] biggerKey = new int[2 * numCmds];
+                int[] biggerValue = new int[2 * numCmds];
+                System.arraycopy( cmdKey, 0, biggerKey, 0, numCmds );
+                System.arraycopy( cmdValue, 0, biggerValue, 0, numCmds );
+                cmdKey = biggerKey;
+                cmdValue = biggerValue;
+            }
+            
+            cmdKey[numCmds] = key;
+            cmdValue[numCmds] = value;
+            numCmds += 1;
+            if( numCmds > 1 || superseded )
+                return; /* the event loop already knows when to flush */
+            
+            cmdFlushAt_millis = System.currentTimeMillis() + COMMAND_FLUSH_DELAY_MILLIS;
+        }
+        
+        ControllerEventLoop.get().wakeup();
+    }
+    
+    /** returns when the queued commands should be sent (0 if none are queued) */
+    long getCommandFlushTime() {
+        synchronized( writeLock ) {
+            return (numCmds == 0) ? 0 : cmdFlushAt_millis;
+        }
+    }
+    
+    /** frames every queued command into the write queue (called by the event loop) */
+    void flushCommands() {
+        synchronized( writeLock ) {
+            ensureWriteSpace( 6 * numCmds );
+            for( int i=0; i<numCmds; i++ ) {
+                int key = cmdKey[i];
+                int value = cmdValue[i];
+                
+                // code, extra (if used), and then the value's bytes
+                writeQueue.put( (byte)(key >> 8) );
+                if( (key & 0x10000) != 0 )
+                    writeQueue.put( (byte)key );
+                writeQueue.putInt( value );
+            }
+            numCmds = 0;
+        }
+    }
+    
+    /** returns the number of commands queued */
+    public long getNumCommandsQueued() {
+        return numCommandsQueued;
+    }
+    
+    /** returns the number of commands which were replaced by a newer value before being sent */
+    public long getNumCommandsCoalesced() {
+        return numCommandsCoalesced;
+    }
+    
+    /** starts connecting (called by the event loop) */
+    void startConnect( Selector selector ) {
+        if( tries++ > 0 )
+            System.err.println( owner.getName() + ": Retrying to establish connection (try #" + tries + ")" );
+        else
+            System.err.println( owner.getName() + ": Trying to establish connection" );
+        
+        try {
+            InetSocketAddress addr = new InetSocketAddress( ip, port );
+            if( addr.isUnresolved() )
+                throw new IOException( "unknown host " + ip );
+            
+            channel = SocketChannel.open();
+            channel.configureBlocking( false );
+            channel.socket().setTcpNoDelay( true );
+            key = channel.register( selector, SelectionKey.OP_CONNECT, this );
+            if( channel.connect(addr) )
+                finishConnect();
+        }
+        catch( IOException e ) {
+            System.err.println( owner.getName() + ": " + e.getMessage() );
+            connectionFailed();
+        }
+    }
+    
+    /** completes a pending connection (called by the event loop) */
+    void finishConnect() {
+        try {
+            if( !channel.finishConnect() )
+                return;
+        }
+        catch( IOException e ) {
+            System.err.println( owner.getName() + ": " + e.getMessage() );
+            connectionFailed();
+            return;
+        }
+        
+        tries = 0;
+        connected = true;
+        key.interestOps( SelectionKey.OP_READ );
+        System.err.println( owner.getName() + ": now connected" );
+    }
+    
+    /** reads what the socket has into the read queue (called by the event loop) */
+    void readReady() {
+        synchronized( readLock ) {
+            int space = readQueue.length - readCount;
+            if( space == 0 )
+                return;
+            
+            int tail = (readStart + readCount) % readQueue.length;
+            readQueueBB.limit( tail + Math.min(space, readQueue.length - tail) );
+            readQueueBB.position( tail );
+            
+            int n;
+            try {
+                n = channel.read( readQueueBB );
+            }
+            catch( IOException e ) {
+                System.err.println( owner.getName() + ": " + e.getMessage() );
+                n = -1;
+            }
+            
+            if( n == -1 ) {
+                connectionLost();
+                return;
+            }
+            
+            if( n > 0 ) {
+                readCount += n;
+                readLock.notifyAll();
+            }
+        }
+    }
+    
+    /** sends as much of the write queue as the socket will take (called by the event loop) */
+    void writeReady() {
+        synchronized( writeLock ) {
+            writeQueue.flip();
+            try {
+                channel.write( writeQueue );
+            }
+            catch( IOException e ) {
+                System.err.println( owner.getName() + ": send failed: " + e.getMessage() );
+                writeQueue.clear();
+                connectionLost();
+                return;
+            }
+            writeQueue.compact();
+        }
+    }
+    
+    /** updates which events the event loop waits for (called by the event loop) */
+    void updateInterest() {
+        if( !connected || !key.isValid() )
+            return;
+        
+        int ops = 0;
+        synchronized( readLock ) {
+            if( readCount < readQueue.length )
+                ops |= SelectionKey.OP_READ;
+        }
+        synchronized( writeLock ) {
+            if( writeQueue.position() > 0 )
+                ops |= SelectionKey.OP_WRITE;
+        }
+        
+        if( key.interestOps() != ops )
+            key.interestOps( ops );
+    }
+    
+    private void connectionFailed() {
+        closeChannel();
+        System.err.println( owner.getName() + ": Failed to establish connection! (will retry in 1 second)" );
+    }
+    
+    private void connectionLost() {
+        closeChannel();
+        System.err.println( owner.getName() + ": connection lost (will reconnect in 1 second)" );
+    }
+    
+    /** closes the socket, discards queued data and schedules a reconnect */
+    private void closeChannel() {
+        connected = false;
+        
+        if( key != null ) {
+            key.cancel();
+            key = null;
+        }
+        if( channel != null ) {
+            try {
+                channel.close();
+            } catch( IOException e ){}
+            channel = null;
+        }
+        
+        synchronized( readLock ) {
+            readStart = readCount = 0;
+            generation += 1;
+            readLock.notifyAll();
+        }
+        synchronized( writeLock ) {
+            writeQueue.clear();
+            numCmds = 0;
+        }
+        
+        reconnectAt_millis = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+    }
+}
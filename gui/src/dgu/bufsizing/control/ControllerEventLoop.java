@@ -0,0 +1,120 @@
+package dgu.bufsizing.control;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread which multiplexes every controller's connection with one
+ * selector.  It connects (and reconnects) without blocking, moves received
+ * bytes into each connection's read queue, and sends each connection's write
+ * queue when the socket can take it.
+ *
+ * @author David Underhill
+ */
+public class ControllerEventLoop extends Thread {
+    private static ControllerEventLoop me = null;
+    
+    /** returns the event loop, starting it if needed */
+    public static synchronized ControllerEventLoop get() {
+        if( me == null ) {
+            me = new ControllerEventLoop();
+            me.start();
+        }
+        return me;
+    }
+    
+    private final Selector selector;
+    
+    /** connections which have been registered but not yet picked up by the loop */
+    private final ConcurrentLinkedQueue<ControllerConnection> newConnections = new ConcurrentLinkedQueue<ControllerConnection>();
+    
+    /** every connection (only used by the event loop thread) */
+    private final LinkedList<ControllerConnection> connections = new LinkedList<ControllerConnection>();
+    
+    private ControllerEventLoop() {
+        super( "Controller Event Loop" );
+        setDaemon( true );
+        
+        try {
+            selector = Selector.open();
+        }
+        catch( IOException e ) {
+            System.err.println( "Error: unable to create the controller selector: " + e.getMessage() );
+            System.exit( 1 );
+            throw new Error( "unreachable" );
+        }
+    }
+    
+    /** adds a connection to the loop (it will start connecting right away) */
+    public void register( ControllerConnection c ) {
+        newConnections.add( c );
+        selector.wakeup();
+    }
+    
+    /** wakes the loop up so it notices new data to send or space to read into */
+    public void wakeup() {
+        selector.wakeup();
+    }
+    
+    /** returns the smaller of two select timeouts (0 means forever) */
+    private static long earliest( long timeout, long wait_millis ) {
+        return (timeout == 0 || wait_millis < timeout) ? wait_millis : timeout;
+    }
+    
+    public void run() {
+        while( true ) {
+            ControllerConnection nc;
+            while( (nc = newConnections.poll()) != null )
+                connections.add( nc );
+            
+            // start connections and send commands which are due, and figure
+            // out when the next thing is due
+            long now = System.currentTimeMillis();
+            long timeout = 0; /* forever */
+            for( ControllerConnection c : connections ) {
+                if( c.channel == null ) {
+                    if( c.reconnectAt_millis <= now )
+                        c.startConnect( selector );
+                    else
+                        timeout = earliest( timeout, c.reconnectAt_millis - now );
+                }
+                else {
+                    long flushAt_millis = c.getCommandFlushTime();
+                    if( flushAt_millis != 0 ) {
+                        if( flushAt_millis <= now )
+                            c.flushCommands();
+                        else
+                            timeout = earliest( timeout, flushAt_millis - now );
+                    }
+                    c.updateInterest();
+                }
+            }
+            
+            try {
+                selector.select( timeout );
+            }
+            catch( IOException e ) {
+                System.err.println( "Error: controller select failed: " + e.getMessage() );
+                continue;
+            }
+            
+            Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+            while( itr.hasNext() ) {
+                SelectionKey key = itr.next();
+                itr.remove();
+                
+                ControllerConnection c = (ControllerConnection)key.attachment();
+                if( key.isValid() && key.isConnectable() )
+                    c.finishConnect();
+                if( key.isValid() && key.isReadable() )
+                    c.readReady();
+                if( key.isValid() && key.isWritable() )
+                    c.writeReady();
+            }
+        }
+    }
+}
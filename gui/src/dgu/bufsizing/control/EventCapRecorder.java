@@ -0,0 +1,298 @@
+package dgu.bufsizing.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Records raw event capture datagrams to a series of memory-mapped segment
+ * files so an experiment can be replayed later (see EventCapReplayer).
+ *
+ * Each segment starts with a magic number and a version.  It is followed by
+ * records of the form [int length][long receive time (System.nanoTime)][payload].
+ * A length of 0 marks the end of the records in a segment (the unused part of
+ * a mapped file is zero-filled).  When a record does not fit in the current
+ * segment, a new segment is started.
+ *
+ * Each recording gets its own directory (numbered after the highest existing
+ * one) so the receive times of one recording never mix with another's.  The
+ * next segment is created and mapped ahead of time by a helper thread, which
+ * also closes the full ones, so rolling over to a new segment doesn't stall
+ * the receive thread.  Segments are not forced to disk; the OS writes back the
+ * mapped pages on its own.
+ *
+ * This class is not thread-safe; it is meant to be used by the receive thread.
+ *
+ * @author David Underhill
+ */
+public class EventCapRecorder {
+    /** identifies an event capture segment file ("EVCP") */
+    static final int SEGMENT_MAGIC = 0x45564350;
+    static final int SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_LEN = 8;
+    static final int RECORD_HEADER_LEN = 12;
+    static final String SEGMENT_PREFIX = "evcap-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String RECORDING_PREFIX = "rec-";
+    
+    /** default size of each segment file */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    
+    /** a mapped segment file */
+    private static class Segment {
+        final File f;
+        final RandomAccessFile file;
+        final MappedByteBuffer map;
+        
+        Segment( File f, RandomAccessFile file, MappedByteBuffer map ) {
+            this.f = f;
+            this.file = file;
+            this.map = map;
+        }
+        
+        void close() {
+            try {
+                file.close(); /* dirty pages are still written back */
+            }
+            catch( IOException e ) {
+                System.err.println( "Warning: unable to close " + f + ": " + e.getMessage() );
+            }
+        }
+    }
+    
+    private final File dir;
+    private final int segmentBytes;
+    
+    /** the segment being written */
+    private Segment cur = null;
+    private MappedByteBuffer map = null;
+    
+    /** hands the next mapped Segment (or the IOException mapping it threw) to the receive thread */
+    private final SynchronousQueue<Object> nextSegment = new SynchronousQueue<Object>();
+    
+    /** full segments for the helper to close */
+    private final LinkedBlockingQueue<Segment> retired = new LinkedBlockingQueue<Segment>();
+    
+    private final Thread helper;
+    
+    private long numRecorded = 0;
+    private long numBytesRecorded = 0;
+    
+    /**
+     * Creates a recorder which writes segments to a new recording directory
+     * in parentDir.
+     * @param parentDir     directory to put the recording directory in (created if needed)
+     * @param segmentBytes  size of each segment file
+     */
+    public EventCapRecorder( File parentDir, int segmentBytes ) throws IOException {
+        if( !parentDir.isDirectory() && !parentDir.mkdirs() )
+            throw new IOException( "unable to create event capture recording directory " + parentDir );
+        
+        // never add to (or overwrite) a previous recording
+        int num = 0;
+        for( File r : listRecordings(parentDir) )
+            num = Math.max( num, getIndex(r.getName(), RECORDING_PREFIX, "") + 1 );
+        
+        this.dir = new File( parentDir, RECORDING_PREFIX + String.format("%06d", num) );
+        if( !dir.mkdir() )
+            throw new IOException( "unable to create event capture recording directory " + dir );
+        this.segmentBytes = segmentBytes;
+        
+        helper = new Thread( "Event Capture Recorder: " + dir ) {
+            public void run() {
+                mapSegmentsAhead();
+            }
+        };
+        helper.setDaemon( true );
+        helper.start();
+    }
+    
+    /** returns the directory this recording's segments are written to */
+    public File getRecordingDir() {
+        return dir;
+    }
+    
+    /** returns the name of the nth segment file */
+    static String getSegmentName( int n ) {
+        return SEGMENT_PREFIX + String.format("%06d", n) + SEGMENT_SUFFIX;
+    }
+    
+    /** returns the number in a file name of the form prefix + number + suffix, or -1 */
+    private static int getIndex( String name, String prefix, String suffix ) {
+        try {
+            return Integer.parseInt( name.substring(prefix.length(), name.length() - suffix.length()) );
+        }
+        catch( RuntimeException e ) {
+            return -1;
+        }
+    }
+    
+    /** returns the files in dir named prefix + number + suffix, in numeric order */
+    private static File[] listNumbered( File dir, final String prefix, final String suffix, final boolean dirs ) {
+        File[] files = dir.listFiles( new java.io.FileFilter() {
+            public boolean accept( File f ) {
+                String name = f.getName();
+                return (dirs ? f.isDirectory() : f.isFile()) && name.startsWith(prefix) && name.endsWith(suffix)
+                       && getIndex(name, prefix, suffix) >= 0;
+            }
+        });
+        
+        if( files == null )
+            return new File[0];
+        
+        java.util.Arrays.sort( files, new java.util.Comparator<File>() {
+            public int compare( File a, File b ) {
+                int ia = getIndex( a.getName(), prefix, suffix );
+                int ib = getIndex( b.getName(), prefix, suffix );
+                return (ia < ib) ? -1 : ((ia == ib) ? 0 : 1);
+            }
+        });
+        return files;
+    }
+    
+    /** returns the segment files in a recording directory in the order they were written */
+    static File[] listSegments( File dir ) {
+        return listNumbered( dir, SEGMENT_PREFIX, SEGMENT_SUFFIX, false );
+    }
+    
+    /** returns the recording directories in dir, oldest first */
+    public static File[] listRecordings( File dir ) {
+        return listNumbered( dir, RECORDING_PREFIX, "", true );
+    }
+    
+    /** creates and maps the nth segment file */
+    private Segment mapSegment( int n ) throws IOException {
+        File f = new File( dir, getSegmentName(n) );
+        RandomAccessFile file = new RandomAccessFile( f, "rw" );
+        try {
+            file.setLength( segmentBytes );
+            MappedByteBuffer m = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+            m.putInt( SEGMENT_MAGIC );
+            m.putInt( SEGMENT_VERSION );
+            return new Segment( f, file, m );
+        }
+        catch( IOException e ) {
+            // e.g. the channel was closed by close() interrupting the helper
+            file.close();
+            f.delete();
+            throw e;
+        }
+    }
+    
+    /** 
+     * helper thread: keeps the next segment mapped until the receive thread
+     * takes it and closes the segments it is done with
+     */
+    private void mapSegmentsAhead() {
+        int n = 0;
+        Object next = null;
+        try {
+            while( true ) {
+                try {
+                    next = mapSegment( n++ );
+                }
+                catch( IOException e ) {
+                    next = e;
+                }
+                nextSegment.put( next );
+                next = null;
+                
+                Segment s;
+                while( (s = retired.poll()) != null )
+                    s.close();
+            }
+        }
+        catch( InterruptedException e ) {
+            // the recording is done: close what is left and remove the
+            // segment which was never used
+            Segment s;
+            while( (s = retired.poll()) != null )
+                s.close();
+            
+            if( next instanceof Segment ) {
+                ((Segment)next).close();
+                if( !((Segment)next).f.delete() )
+                    System.err.println( "Warning: unable to delete unused segment " + ((Segment)next).f );
+            }
+        }
+    }
+    
+    /** retires the current segment (if any) and switches to the one mapped ahead */
+    private void nextSegment() throws IOException {
+        retireSegment();
+        
+        Object next;
+        try {
+            next = nextSegment.take();
+        }
+        catch( InterruptedException e ) {
+            throw new java.io.InterruptedIOException( "interrupted waiting for the next segment" );
+        }
+        
+        if( next instanceof IOException )
+            throw (IOException)next;
+        
+        cur = (Segment)next;
+        map = cur.map;
+    }
+    
+    /** hands the current segment to the helper to close */
+    private void retireSegment() {
+        if( cur != null ) {
+            retired.add( cur );
+            cur = null;
+            map = null;
+        }
+    }
+    
+    /**
+     * Appends a datagram to the recording.  buf's position and limit are
+     * cleared afterward.
+     * @param buf         the datagram (starting at index 0)
+     * @param len         the datagram's length
+     * @param recv_nanos  when the datagram was received (System.nanoTime)
+     */
+    public void record( ByteBuffer buf, int len, long recv_nanos ) throws IOException {
+        if( map == null || map.remaining() < RECORD_HEADER_LEN + len ) {
+            if( RECORD_HEADER_LEN + len > segmentBytes - SEGMENT_HEADER_LEN )
+                throw new IOException( "datagram too large to record (" + len + "B)" );
+            
+            nextSegment();
+        }
+        
+        map.putInt( len );
+        map.putLong( recv_nanos );
+        
+        buf.limit( len );
+        buf.position( 0 );
+        map.put( buf );
+        buf.clear();
+        
+        numRecorded += 1;
+        numBytesRecorded += len;
+    }
+    
+    /** 
+     * closes the recording (the helper thread closes the last segment and
+     * deletes the one it mapped ahead)
+     */
+    public void close() throws IOException {
+        retireSegment();
+        helper.interrupt();
+    }
+    
+    /** returns the number of datagrams recorded */
+    public long getNumRecorded() {
+        return numRecorded;
+    }
+    
+    /** returns the number of payload bytes recorded */
+    public long getNumBytesRecorded() {
+        return numBytesRecorded;
+    }
+}
@@ -0,0 +1,169 @@
+package dgu.bufsizing.control;
+
+import dgu.bufsizing.BottleneckLink;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays event capture datagrams recorded by an EventCapRecorder through the
+ * same sequence tracking and decoding as live datagrams.  Datagrams can be
+ * replayed with their original spacing, N times faster, or as fast as
+ * possible (useful for benchmarking the ingest and plotting pipeline).
+ *
+ * One recording is replayed at a time since receive times are only
+ * comparable within a recording.
+ *
+ * @author David Underhill
+ */
+public class EventCapReplayer extends Thread {
+    /** speed which replays as fast as possible */
+    public static final double AS_FAST_AS_POSSIBLE = 0.0;
+    
+    private final File dir;
+    private final BottleneckLink[] links;
+    private final EventSink sink;
+    private final double speed;
+    private final SequenceTracker tracker;
+    
+    /** reusable copy of the current datagram */
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(EventProcessor.MAX_PACKET_LEN);
+    
+    private volatile boolean done = false;
+    private volatile long numReplayed = 0;
+    private volatile long numDecoded = 0;
+    
+    /**
+     * Creates a replayer.
+     * @param dir            a recording's directory (or the directory the
+     *                       recordings are in, to replay the newest one)
+     * @param routerIndex    router to replay the datagrams for
+     * @param sink           where decoded events are sent
+     * @param speed          1.0 => real-time, N => N times faster,
+     *                       AS_FAST_AS_POSSIBLE => no pacing
+     * @param reorderWindow  reorder window for the sequence tracker
+     */
+    public EventCapReplayer( File dir, int routerIndex, EventSink sink, double speed, int reorderWindow ) {
+        this( dir, EventProcessor.getQueueLinks(routerIndex), sink, speed, reorderWindow );
+    }
+    
+    /**
+     * Creates a replayer.
+     * @param links  bottleneck links indexed by the queue which feeds them
+     */
+    public EventCapReplayer( File dir, BottleneckLink[] links, EventSink sink, double speed, int reorderWindow ) {
+        super( "Event Capture Replayer" );
+        
+        // given the parent of the recordings, replay the newest one
+        File[] recordings = EventCapRecorder.listRecordings( dir );
+        if( EventCapRecorder.listSegments(dir).length == 0 && recordings.length > 0 )
+            dir = recordings[recordings.length - 1];
+        this.dir = dir;
+        this.links = links;
+        this.sink = sink;
+        this.speed = speed;
+        this.tracker = new SequenceTracker( reorderWindow, buf.capacity() ) {
+            protected void deliver( ByteBuffer b, int len ) {
+                if( EventProcessor.handleEventCapPacket( EventCapReplayer.this.links, b, len, EventCapReplayer.this.sink ) )
+                    numDecoded += 1;
+            }
+        };
+    }
+    
+    public void run() {
+        long startReplay_nanos = System.nanoTime();
+        long firstRecv_nanos = 0;
+        boolean first = true;
+        
+        try {
+            for( File f : EventCapRecorder.listSegments(dir) ) {
+                RandomAccessFile raf = new RandomAccessFile( f, "r" );
+                MappedByteBuffer map;
+                try {
+                    map = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+                }
+                finally {
+                    raf.close(); /* the mapping remains valid */
+                }
+                
+                if( map.remaining() < EventCapRecorder.SEGMENT_HEADER_LEN
+                    || map.getInt() != EventCapRecorder.SEGMENT_MAGIC
+                    || map.getInt() != EventCapRecorder.SEGMENT_VERSION ) {
+                    System.err.println( "Warning: skipping " + f + " (not an event capture segment)" );
+                    continue;
+                }
+                
+                while( !done && map.remaining() >= EventCapRecorder.RECORD_HEADER_LEN ) {
+                    int len = map.getInt();
+                    if( len <= 0 )
+                        break; /* end of this segment's records */
+                    
+                    long recv_nanos = map.getLong();
+                    if( len > buf.capacity() || len > map.remaining() ) {
+                        System.err.println( "Warning: truncated record in " + f );
+                        break;
+                    }
+                    
+                    // wait until it is time to replay this datagram
+                    if( first ) {
+                        firstRecv_nanos = recv_nanos;
+                        first = false;
+                    }
+                    else if( speed > 0 ) {
+                        long due_nanos = startReplay_nanos + (long)((recv_nanos - firstRecv_nanos) / speed);
+                        long wait_nanos = due_nanos - System.nanoTime();
+                        if( wait_nanos > 0 )
+                            Thread.sleep( wait_nanos / 1000000, (int)(wait_nanos % 1000000) );
+                    }
+                    
+                    // copy it out of the segment and process it
+                    buf.clear();
+                    int end = map.position() + len;
+                    int oldLimit = map.limit();
+                    map.limit( end );
+                    buf.put( map );
+                    map.limit( oldLimit );
+                    
+                    numReplayed += 1;
+                    if( len >= EventProcessor.SEQ_OFFSET + 4 )
+                        tracker.offer( buf.getInt(EventProcessor.SEQ_OFFSET), buf, len );
+                }
+                
+                if( done )
+                    break;
+            }
+            
+            tracker.flush();
+        }
+        catch( IOException e ) {
+            System.err.println( "Error: event capture replay failed: " + e.getMessage() );
+        }
+        catch( InterruptedException e ) {
+            // stop replaying
+        }
+    }
+    
+    /** stops the replay after the current datagram */
+    public void stopReplay() {
+        done = true;
+        interrupt();
+    }
+    
+    /** returns the number of datagrams read from the recording */
+    public long getNumReplayed() {
+        return numReplayed;
+    }
+    
+    /** returns the number of datagrams which were decoded */
+    public long getNumDecoded() {
+        return numDecoded;
+    }
+    
+    /** returns the tracker which counts lost and reordered datagrams in the recording */
+    public SequenceTracker getSequenceTracker() {
+        return tracker;
+    }
+}
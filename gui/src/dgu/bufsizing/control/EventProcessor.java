@@ -2,41 +2,145 @@ package dgu.bufsizing.control;
 
 import dgu.bufsizing.BottleneckLink;
 import dgu.bufsizing.DemoGUI;
+import dgu.bufsizing.Link;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
 
 /**
  * Process event capture packets.
  * @author David Underhill
  */
 public class EventProcessor extends Thread {
-    private static final int DEFAULT_QUEUE_TO_MONITOR = 2;
     public static final boolean USE_PACKETS = false;
     
     /** default event capture port */
     public static final int DEFAULT_EVCAP_PORT = 27033;
     
     /** maximum length of a datagram */
-    private static final int MAX_PACKET_LEN = 1500;
+    static final int MAX_PACKET_LEN = 1500;
     
     /** number of queues in the header */
     private static final int NUM_QUEUES = 8;
     
+    /** minimum length of an event capture packet (header + queue data + timestamp) */
+    private static final int MIN_PACKET_LEN = 78;
+    
+    /** offset of the sequence number in the header */
+    static final int SEQ_OFFSET = 2;
+    
+    /** offset of the timestamp which follows the queue data in the header */
+    private static final int HEADER_TIMESTAMP_OFFSET = 70;
+    
+    /** maximum number of datagrams to drain from the channel per wakeup */
+    private static final int MAX_DATAGRAMS_PER_BATCH = 64;
+    
+    /** receive buffer to request from the kernel when using the channel */
+    private static final int CHANNEL_RCVBUF_BYTES = 4 * 1024 * 1024;
+    
+    /** default number of packets to hold while waiting for a late packet */
+    public static final int DEFAULT_REORDER_WINDOW = 16;
+    
+    /** event capture processors which have been created, indexed by router */
+    private static final HashMap<Integer, EventProcessor> processors = new HashMap<Integer, EventProcessor>();
+    
     /** the port to listen on for event capture packets */
     private int port;
     
-    /** socket to use for listening */
+    /** socket to use for listening (blocking mode only) */
     private DatagramSocket dsocket;
     
+    /** channel to use for listening (channel mode only) */
+    private DatagramChannel channel;
+    
+    /** index of the router whose event capture stream this processes */
+    private final int routerIndex;
+    
+    /** where decoded events are sent */
+    private final EventSink sink;
+    
+    /** puts packets back in sequence order before they are decoded */
+    private final SequenceTracker tracker;
+    
+    /** bottleneck links on this processor's router indexed by queue */
+    private BottleneckLink[] links;
+    
+    /** recorder which the receive thread should be using (null => don't record) */
+    private volatile EventCapRecorder requestedRecorder = null;
+    
+    /** recorder which the receive thread is using */
+    private EventCapRecorder recorder = null;
+    
+    // counters (only written by this thread; volatile so other threads see fresh values)
+    private volatile long numReceived = 0;
+    private volatile long numDecoded = 0;
+    private volatile long numDropped = 0;
+    
     public EventProcessor( int port ) {
+        this( port, false );
+    }
+    
+    public EventProcessor( int port, boolean useChannel ) {
+        this( port, 0, useChannel, DIRECT );
+    }
+    
+    /**
+     * Creates an event capture processor for one router.
+     *
+     * @param port         the UDP port to listen on
+     * @param routerIndex  index of the router which sends to port
+     * @param useChannel   if true, receive with a DatagramChannel into a direct
+     *                     buffer and drain the socket in batches; otherwise
+     *                     receive one packet at a time with a DatagramSocket
+     * @param sink         where decoded events are sent (e.g. DIRECT to apply
+     *                     them on this thread, or an EventRing or
+     *                     ShardedEventSink whose appliers are running)
+     */
+    public EventProcessor( int port, int routerIndex, boolean useChannel, EventSink sink ) {
+        this( port, routerIndex, useChannel, sink, DEFAULT_REORDER_WINDOW );
+    }
+    
+    /**
+     * Creates an event capture processor for one router.
+     *
+     * @param port           the UDP port to listen on
+     * @param routerIndex    index of the router which sends to port
+     * @param useChannel     whether to receive with a DatagramChannel
+     * @param sink           where decoded events are sent
+     * @param reorderWindow  maximum number of packets to hold while waiting 
+     *                       for a late packet (0 => never wait; rounded up to a power of two)
+     */
+    public EventProcessor( int port, int routerIndex, boolean useChannel, EventSink sink, int reorderWindow ) {
         this.port = port;
+        this.routerIndex = routerIndex;
+        this.sink = sink;
+        this.tracker = new SequenceTracker( reorderWindow, MAX_PACKET_LEN ) {
+            protected void deliver( ByteBuffer buf, int len ) {
+                countResult( EventProcessor.handleEventCapPacket( links, buf, len, EventProcessor.this.sink ) );
+            }
+        };
+        
+        synchronized( processors ) {
+            processors.put( routerIndex, this );
+        }
         
         /* establish a socket for the stats port */
         try {
-            dsocket = new DatagramSocket(port);
-        } catch( SocketException e ) {
+            if( useChannel ) {
+                channel = DatagramChannel.open();
+                channel.socket().setReceiveBufferSize( CHANNEL_RCVBUF_BYTES );
+                channel.socket().bind( new InetSocketAddress(port) );
+                channel.configureBlocking( false );
+            }
+            else
+                dsocket = new DatagramSocket(port);
+        } catch( IOException e ) {
             System.err.println( "Error: UDP socket setup failed for Event Processor Thread: " + e.getMessage() );
             System.exit( 1 );
             return;
@@ -44,11 +148,21 @@ public class EventProcessor extends Thread {
     }
     
     /**
-     * Listens for new event capture packets and processes them with the 
-     * assumption that they are for the first bottleneck on the first router.
+     * Listens for new event capture packets and processes them as updates for
+     * the bottlenecks on this processor's router.
      */
     public void run() {
+        if( channel != null )
+            runChannel();
+        else
+            runSocket();
+    }
+    
+    /** receives packets one at a time from the blocking socket */
+    private void runSocket() {
+        links = getQueueLinks( routerIndex );
         byte[] buf = new byte[MAX_PACKET_LEN];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
 
         /* listen for updates until the end of time */
@@ -56,9 +170,49 @@ public class EventProcessor extends Thread {
             try {
                 packet.setLength(buf.length);
                 dsocket.receive(packet);
+                numReceived += 1;
 
-                /* extract the stats (assume router 0) */
-                EventProcessor.handleEventCapPacket( 0, buf, packet.getLength() );
+                /* extract the stats */
+                receivedPacket( bb, packet.getLength() );
+            } catch( IOException e ) {
+                System.err.println( "Error: UDP stats receive failed: " + e.getMessage() );
+                System.exit( 1 );
+            }
+        }
+    }
+    
+    /**
+     * Waits for the channel to become readable and then drains up to
+     * MAX_DATAGRAMS_PER_BATCH datagrams before waiting again.  Every datagram
+     * is decoded in place from a single reusable direct buffer.
+     */
+    private void runChannel() {
+        links = getQueueLinks( routerIndex );
+        ByteBuffer bb = ByteBuffer.allocateDirect(MAX_PACKET_LEN);
+        Selector selector;
+        try {
+            selector = Selector.open();
+            channel.register( selector, SelectionKey.OP_READ );
+        } catch( IOException e ) {
+            System.err.println( "Error: UDP selector setup failed for Event Processor Thread: " + e.getMessage() );
+            System.exit( 1 );
+            return;
+        }
+        
+        /* listen for updates until the end of time */
+        while (true) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                
+                for( int i=0; i<MAX_DATAGRAMS_PER_BATCH; i++ ) {
+                    bb.clear();
+                    if( channel.receive(bb) == null )
+                        break; /* socket is drained */
+                    
+                    numReceived += 1;
+                    receivedPacket( bb, bb.position() );
+                }
             } catch( IOException e ) {
                 System.err.println( "Error: UDP stats receive failed: " + e.getMessage() );
                 System.exit( 1 );
@@ -66,6 +220,112 @@ public class EventProcessor extends Thread {
         }
     }
     
+    /** 
+     * Records the packet if recording and then passes it to the sequence 
+     * tracker (packets too short to have a sequence number are ignored).
+     */
+    private void receivedPacket( ByteBuffer bb, int len ) {
+        if( recorder != requestedRecorder )
+            switchRecorder();
+        
+        if( recorder != null ) {
+            try {
+                recorder.record( bb, len, System.nanoTime() );
+            } catch( IOException e ) {
+                System.err.println( "Error: event capture recording failed (recording stopped): " + e.getMessage() );
+                requestedRecorder = null;
+                switchRecorder();
+            }
+        }
+        
+        if( len < SEQ_OFFSET + 4 )
+            countResult( false );
+        else
+            tracker.offer( extractInt(bb, SEQ_OFFSET), bb, len );
+    }
+    
+    /** closes the recorder in use (if any) and starts using the requested one */
+    private void switchRecorder() {
+        if( recorder != null ) {
+            try {
+                recorder.close();
+            } catch( IOException e ) {
+                System.err.println( "Error: unable to close event capture recording: " + e.getMessage() );
+            }
+        }
+        recorder = requestedRecorder;
+    }
+    
+    /**
+     * Starts recording every datagram received to r (or stops recording if r
+     * is null).  The change takes effect when the next datagram is received;
+     * the previous recorder is closed by the receive thread at that time.
+     */
+    public void setRecorder( EventCapRecorder r ) {
+        requestedRecorder = r;
+    }
+    
+    private void countResult( boolean decoded ) {
+        if( decoded )
+            numDecoded += 1;
+        else
+            numDropped += 1;
+    }
+    
+    /** returns the number of datagrams received */
+    public long getNumReceived() {
+        return numReceived;
+    }
+    
+    /** returns the number of datagrams which were decoded and applied */
+    public long getNumDecoded() {
+        return numDecoded;
+    }
+    
+    /** returns the number of datagrams which were too short or out of order */
+    public long getNumDropped() {
+        return numDropped;
+    }
+    
+    /** returns the tracker which counts lost and reordered datagrams for this router */
+    public SequenceTracker getSequenceTracker() {
+        return tracker;
+    }
+    
+    /** returns the processor for the specified router, or null if it has none */
+    public static EventProcessor getProcessor( int routerIndex ) {
+        synchronized( processors ) {
+            return processors.get( routerIndex );
+        }
+    }
+    
+    /** applies events to their link immediately */
+    public static final EventSink DIRECT = new EventSink() {
+        public boolean prepareForUpdate( BottleneckLink b, long rtr_time_ns8 ) {
+            return b.prepareForUpdate( rtr_time_ns8 );
+        }
+        
+        public void setOccupancy( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+            b.setOccupancy( rtr_time_ns8, num_bytes, false );
+        }
+        
+        public void arrival( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+            b.arrival( rtr_time_ns8, num_bytes, false );
+        }
+        
+        public void departure( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+            b.departure( rtr_time_ns8, num_bytes, false );
+        }
+        
+        public void dropped( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+            b.dropped( rtr_time_ns8, num_bytes, false );
+        }
+        
+        public void refreshInstantaneousValues( BottleneckLink b, long rtr_time_ns8 ) {
+            b.refreshInstantaneousValues( rtr_time_ns8 );
+        }
+    };
+    
     /** defines event type codes */
     private static enum EventType {
         TYPE_TS((byte)0),
@@ -79,92 +339,142 @@ public class EventProcessor extends Thread {
         public final byte type;
     }
     
-    /** reads byte i to i+3 to form an int */
-    private static int extractInt( byte[] buf, int i ) {
-        // convert to signed ints, clearing any bits set due to sign extension
-        int a = buf[i]   & 0x000000FF;
-        int b = buf[i+1] & 0x000000FF;
-        int c = buf[i+2] & 0x000000FF;
-        int d = buf[i+3] & 0x000000FF;
-        
-        // create the int
-        return a<<24 | b<<16 | c<<8 | d;
-    }
-    
-    /** reads byte i to i+3 to form a long (use for unsigned ints which may use the MSB) */
-    private static long extractUintAsLong( byte[] buf, int i ) {
-        long ret = 0;
-        
-        // convert to signed ints, clearing any bits set due to sign extension
-        int a = buf[i]   & 0x000000FF;
-        int b = buf[i+1] & 0x000000FF;
-        int c = buf[i+2] & 0x000000FF;
-        int d = buf[i+3] & 0x000000FF;
-        
-        // create the int
-        ret = ((long)a)<<24 | b<<16 | c<<8 | d;
-        
-        // clear any sign extended bits
-        return ret & 0x00000000FFFFFFFFL;
+    /** reads byte i to i+3 to form an int (big-endian) */
+    private static int extractInt( ByteBuffer buf, int i ) {
+        return buf.getInt(i);
     }
     
-    private static long extractTimestamp( byte[] buf, int i ) {
-        long upper = extractUintAsLong(buf, i);
-        long lower = extractUintAsLong(buf, i+4);
-        return upper<<32L | lower;
+    /** reads byte i to i+7 to form a 64-bit timestamp (big-endian) */
+    private static long extractTimestamp( ByteBuffer buf, int i ) {
+        return buf.getLong(i);
     }
     
     private static final void debug_println( String s ) {
         //System.err.println( s );
     }
     
+    /** bottleneck links for each router indexed by the queue which feeds them */
+    private static volatile BottleneckLink[][] routerQueueLinks = new BottleneckLink[0][];
+    
+    /**
+     * Returns the output queue in the event capture data which corresponds to 
+     * a link.  The NetFPGA's output queues alternate between MAC and CPU ports,
+     * so the MAC queue for interface NF2Cx is queue 2x.
+     */
+    public static int getEventCapQueue( Link l ) {
+        return 2 * l.getQueueID();
+    }
+    
+    /**
+     * Returns the bottleneck links on a router indexed by the event capture 
+     * queue which feeds them (null for queues without a bottleneck link).  The
+     * table is built the first time it is requested for each router.
+     */
+    public static BottleneckLink[] getQueueLinks( int routerIndex ) {
+        BottleneckLink[][] tables = routerQueueLinks;
+        if( routerIndex < tables.length && tables[routerIndex] != null )
+            return tables[routerIndex];
+        
+        synchronized( EventProcessor.class ) {
+            tables = routerQueueLinks;
+            if( routerIndex >= tables.length ) {
+                BottleneckLink[][] bigger = new BottleneckLink[routerIndex + 1][];
+                System.arraycopy( tables, 0, bigger, 0, tables.length );
+                tables = bigger;
+            }
+            
+            if( tables[routerIndex] == null ) {
+                BottleneckLink[] links = new BottleneckLink[NUM_QUEUES];
+                for( BottleneckLink b : DemoGUI.me.demo.getRouters().get(routerIndex).getBottlenecks() ) {
+                    int q = getEventCapQueue( b );
+                    if( q < NUM_QUEUES )
+                        links[q] = b;
+                }
+                tables[routerIndex] = links;
+            }
+            
+            routerQueueLinks = tables;
+            return tables[routerIndex];
+        }
+    }
+    
     /**
      * Processes a buffer containing an event capture packet.
      * @param routerIndex  index of the router the data belongs to
      * @param buf          datagram containing an event capture payload
+     * @param len          number of bytes in buf which are part of the datagram
+     * @return true if the packet was decoded, false if it was ignored
      */
-    public static void handleEventCapPacket( int routerIndex, byte[] buf, int len ) {
-        if( len < 78 ) {
+    public static boolean handleEventCapPacket( int routerIndex, byte[] buf, int len ) {
+        return handleEventCapPacket( routerIndex, ByteBuffer.wrap(buf), len, DIRECT );
+    }
+    
+    /**
+     * Processes a buffer containing an event capture packet.  Fields are read
+     * with absolute gets so the buffer's position and limit are not modified.
+     * @param routerIndex  index of the router the data belongs to
+     * @param buf          datagram containing an event capture payload (starting at index 0)
+     * @param len          number of bytes in buf which are part of the datagram
+     * @param sink         where to send the decoded events
+     * @return true if the packet was decoded, false if it was ignored
+     */
+    public static boolean handleEventCapPacket( int routerIndex, ByteBuffer buf, int len, EventSink sink ) {
+        return handleEventCapPacket( getQueueLinks(routerIndex), buf, len, sink );
+    }
+    
+    /**
+     * Processes a buffer containing an event capture packet.  Each queue's 
+     * occupancy and events are sent to the link fed by that queue; data for
+     * queues without a link is skipped.
+     * @param links  bottleneck links indexed by the queue which feeds them
+     * @param buf    datagram containing an event capture payload (starting at index 0)
+     * @param len    number of bytes in buf which are part of the datagram
+     * @param sink   where to send the decoded events
+     * @return true if the packet was decoded, false if it was ignored
+     */
+    public static boolean handleEventCapPacket( BottleneckLink[] links, ByteBuffer buf, int len, EventSink sink ) {
+        if( len < MIN_PACKET_LEN ) {
             debug_println( "Ignoring packet which is too small (" + len + "B)" );
-            return;
+            return false;
         }
         
-        // always assume first bottleneck for now
-        BottleneckLink b = DemoGUI.me.demo.getRouters().get(routerIndex).getBottleneckLinkAt(0);
-        
         // start processing at byte 1 (byte 0 isn't too interesting)
         int index = 1;
-        int num_events = buf[index] & 0xFF; /* cast to an int so we properly interpret values > 127 */
+        int num_events = buf.get(index) & 0xFF; /* cast to an int so we properly interpret values > 127 */
         index += 1;
         
-        // skip the sequence number
+        // skip the sequence number (ordering is handled by the SequenceTracker)
         debug_println( "seq = " + extractInt(buf, index) );
         index += 4;
         
-        // get the timestamp before the queue data
-        long timestamp_8ns = extractTimestamp( buf, 70 );
-        if( !b.prepareForUpdate( timestamp_8ns ) ) {
-            debug_println( "old timestamp (ignoring) " + timestamp_8ns );
-            return; // old, out-of-order packet
+        // get the timestamp before the queue data (every link gets the update
+        // at the same time, so the packet is either in order for all or none)
+        long timestamp_8ns = extractTimestamp( buf, HEADER_TIMESTAMP_OFFSET );
+        for( int i=0; i<NUM_QUEUES; i++ ) {
+            if( links[i] != null && !sink.prepareForUpdate( links[i], timestamp_8ns ) ) {
+                debug_println( "old timestamp (ignoring) " + timestamp_8ns );
+                return false; // old, out-of-order packet
+            }
         }
-        else
-            debug_println( "got new timestamp " + timestamp_8ns );
+        debug_println( "got new timestamp " + timestamp_8ns );
         
         // get queue occupancy data
         for( int i=0; i<NUM_QUEUES; i++ ) {
+            BottleneckLink b = links[i];
+            
             // update the queue with its new absolute value
-            if( !USE_PACKETS && i == DEFAULT_QUEUE_TO_MONITOR ) { // only handle NF2C1 for now
+            if( !USE_PACKETS && b != null ) {
                 int num_bytes = 8 * extractInt(buf, index);
-                b.setOccupancy( timestamp_8ns, num_bytes, false );
-                debug_println( "queue 2 set to " + num_bytes + "B" );
+                sink.setOccupancy( b, timestamp_8ns, num_bytes );
+                debug_println( "queue " + i + " set to " + num_bytes + "B" );
             }
             index += 4;
             
             // size in packets
-            if( USE_PACKETS && i == DEFAULT_QUEUE_TO_MONITOR ) { // only handle NF2C1 for now
+            if( USE_PACKETS && b != null ) {
                 int num_packets = extractInt(buf, index);
-                b.setOccupancy( timestamp_8ns, num_packets, false );
-                debug_println( "queue 2 set to " + num_packets + " packets" );
+                sink.setOccupancy( b, timestamp_8ns, num_packets );
+                debug_println( "queue " + i + " set to " + num_packets + " packets" );
             }
             index += 4;
         }
@@ -175,7 +485,7 @@ public class EventProcessor extends Thread {
         // process each event
         long timestamp_adjusted_8ns = timestamp_8ns;
         while( index + 4 < len ) {
-            int type = (buf[index] & 0xC0) >> 6;
+            int type = (buf.get(index) & 0xC0) >> 6;
             debug_println( "  got type = " + Integer.toHexString(type) );
             
             if( type == EventType.TYPE_TS.type ) {
@@ -195,37 +505,41 @@ public class EventProcessor extends Thread {
                 index += 4;
                 
                 debug_println( "     got short event " + type + " (" + plen_bytes + "B) at timestamp " + timestamp_adjusted_8ns + " for queue " + queue_id );
-                if( queue_id != DEFAULT_QUEUE_TO_MONITOR ) {
-                    // only pay attention to NF2C1 for now
+                BottleneckLink b = links[queue_id];
+                if( b == null ) {
                     debug_println( "    ignoring event for queue " + queue_id );
                     continue;
                 }
                 
                 if( type == EventType.TYPE_ARRIVE.type ) {
                     if( USE_PACKETS )
-                        b.arrival( timestamp_adjusted_8ns, 1, false );
+                        sink.arrival( b, timestamp_adjusted_8ns, 1 );
                     else
-                        b.arrival( timestamp_adjusted_8ns, plen_bytes, false );
+                        sink.arrival( b, timestamp_adjusted_8ns, plen_bytes );
                     
                     debug_println( "arrival => " + b.getQueueOcc_bytes() );
                 }
                 else if( type == EventType.TYPE_DEPART.type ) {
                     if( USE_PACKETS )
-                        b.departure( timestamp_adjusted_8ns, 1, false );
+                        sink.departure( b, timestamp_adjusted_8ns, 1 );
                     else
-                        b.departure( timestamp_adjusted_8ns, plen_bytes, false );
+                        sink.departure( b, timestamp_adjusted_8ns, plen_bytes );
                     
                     debug_println( "departure => " + b.getQueueOcc_bytes() );
                 }
                 else {
-                    System.err.println( "dropped " + plen_bytes );
-                    b.dropped( timestamp_adjusted_8ns, plen_bytes, false );
+                    debug_println( "dropped " + plen_bytes );
+                    sink.dropped( b, timestamp_adjusted_8ns, plen_bytes );
                 }
             }
         }
         
         // refresh instantaneous readings over the interval from the previous
         //  update to the time of the last event in this update
-        b.refreshInstantaneousValues( timestamp_adjusted_8ns );
+        for( int i=0; i<NUM_QUEUES; i++ )
+            if( links[i] != null )
+                sink.refreshInstantaneousValues( links[i], timestamp_adjusted_8ns );
+        
+        return true;
     }
 }
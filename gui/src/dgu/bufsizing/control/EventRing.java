@@ -0,0 +1,376 @@
+package dgu.bufsizing.control;
+
+import dgu.bufsizing.BottleneckLink;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer ring of decoded events.  The event
+ * capture receive thread publishes into the ring and a dedicated applier
+ * thread drains it into the BottleneckLinks.  This keeps the receive thread
+ * from ever waiting on a link's monitor (e.g. while the charts are refreshed).
+ *
+ * Events are stored in preallocated parallel arrays so publishing and
+ * draining never allocate.  The producer owns the tail and the consumer owns
+ * the head, except with DROP_OLDEST where the producer may also advance the
+ * head (both sides advance it with a compare-and-set so a slot is only read
+ * if it was not overwritten in the meantime).
+ *
+ * The events of one event capture packet depend on each other (e.g. an
+ * arrival and the occupancy it follows), so a packet is kept or dropped as a
+ * whole: its events are staged past the tail and only published once its
+ * last link has been refreshed, and the consumer and DROP_OLDEST both take
+ * whole packets off of the head.
+ *
+ * @author David Underhill
+ */
+public class EventRing implements EventSink {
+    /** what to do when an event is published while the ring is full */
+    public enum OverflowPolicy {
+        /** wait for the applier to make room */
+        BLOCK,
+        
+        /** discard the oldest packets in the ring to make room */
+        DROP_OLDEST,
+        
+        /** discard the new packet */
+        COUNT_AND_DROP
+    }
+    
+    // event kinds
+    private static final byte KIND_PREPARE   = 0;
+    private static final byte KIND_OCCUPANCY = 1;
+    private static final byte KIND_ARRIVAL   = 2;
+    private static final byte KIND_DEPARTURE = 3;
+    private static final byte KIND_DROPPED   = 4;
+    private static final byte KIND_REFRESH   = 5;
+    
+    /** how long the producer (BLOCK) or consumer (empty ring) waits before checking again */
+    private static final long WAIT_NANOS = 50 * 1000;
+    
+    /** maximum number of events the applier applies before checking for shutdown */
+    private static final int MAX_EVENTS_PER_DRAIN = 1024;
+    
+    private final OverflowPolicy policy;
+    private final int mask;
+    
+    // the events
+    private final byte[] kind;
+    private final BottleneckLink[] link;
+    private final long[] time_ns8;
+    private final int[] value;
+    
+    /** number of events in the packet which starts at each slot */
+    private final int[] packetLen;
+    
+    // copy of a packet taken off of the head (DROP_OLDEST only)
+    private final byte[] copyKind;
+    private final BottleneckLink[] copyLink;
+    private final long[] copyTime_ns8;
+    private final int[] copyValue;
+    
+    /** index of the next event to consume */
+    private final AtomicLong head = new AtomicLong(0);
+    
+    /** index of the next slot to publish to */
+    private final AtomicLong tail = new AtomicLong(0);
+    
+    // the packet being published (producer-side only)
+    private int numStaged = 0;
+    private int numOpenUpdates = 0;
+    private boolean droppingPacket = false;
+    
+    // counters (each is only written by one thread)
+    private volatile long numPublished = 0;
+    private volatile long numApplied = 0;
+    private volatile long numBlocked = 0;
+    private volatile long numDroppedOldest = 0;
+    private volatile long numDroppedNew = 0;
+    
+    /** end of the last update accepted for each link (producer-side only) */
+    private final IdentityHashMap<BottleneckLink, long[]> lastUpdateEnd_ns8 = new IdentityHashMap<BottleneckLink, long[]>();
+    
+    private Applier applier = null;
+    
+    /**
+     * Creates a new ring.
+     * @param capacity  maximum number of events held (rounded up to a power of two)
+     * @param policy    what to do when the ring is full
+     */
+    public EventRing( int capacity, OverflowPolicy policy ) {
+        int size = 1;
+        while( size < capacity )
+            size <<= 1;
+        
+        this.policy = policy;
+        this.mask = size - 1;
+        kind = new byte[size];
+        link = new BottleneckLink[size];
+        time_ns8 = new long[size];
+        value = new int[size];
+        packetLen = new int[size];
+        
+        boolean copy = (policy == OverflowPolicy.DROP_OLDEST);
+        copyKind = copy ? new byte[size] : null;
+        copyLink = copy ? new BottleneckLink[size] : null;
+        copyTime_ns8 = copy ? new long[size] : null;
+        copyValue = copy ? new int[size] : null;
+    }
+    
+    /** returns the number of events the ring can hold */
+    public int getCapacity() {
+        return mask + 1;
+    }
+    
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+    
+    /** returns the number of events currently waiting to be applied */
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+    
+    /** returns the number of events which have been put in the ring */
+    public long getNumPublished() {
+        return numPublished;
+    }
+    
+    /** returns the number of events which have been taken from the ring */
+    public long getNumApplied() {
+        return numApplied;
+    }
+    
+    /** returns the number of times the producer had to wait for room (BLOCK) */
+    public long getNumBlocked() {
+        return numBlocked;
+    }
+    
+    /** returns the number of queued events discarded (in whole packets) to make room (DROP_OLDEST) */
+    public long getNumDroppedOldest() {
+        return numDroppedOldest;
+    }
+    
+    /** returns the number of new events discarded (in whole packets) because the ring was full (COUNT_AND_DROP) */
+    public long getNumDroppedNew() {
+        return numDroppedNew;
+    }
+    
+    /** 
+     * adds an event to the packet being published (producer thread only); the
+     * packet is published once it has no updates left open
+     */
+    private void stage( byte k, BottleneckLink b, long t, int v ) {
+        if( droppingPacket ) {
+            numDroppedNew += 1;
+        }
+        else if( numStaged > mask || !makeRoom(tail.get() + numStaged) ) {
+            // drop the whole packet (it can never fit if it is bigger than the ring)
+            droppingPacket = true;
+            numDroppedNew += numStaged + 1;
+            numStaged = 0;
+        }
+        else {
+            int i = (int)(tail.get() + numStaged) & mask;
+            kind[i] = k;
+            link[i] = b;
+            time_ns8[i] = t;
+            value[i] = v;
+            numStaged += 1;
+        }
+        
+        if( numOpenUpdates == 0 )
+            publishPacket();
+    }
+    
+    /** 
+     * waits for or makes room for the event at index t_idx as the overflow
+     * policy says to
+     * @return false if the packet must be dropped
+     */
+    private boolean makeRoom( long t_idx ) {
+        while( t_idx - head.get() > mask ) {
+            if( policy == OverflowPolicy.BLOCK ) {
+                numBlocked += 1;
+                do {
+                    LockSupport.parkNanos( WAIT_NANOS );
+                }
+                while( t_idx - head.get() > mask );
+            }
+            else if( policy == OverflowPolicy.DROP_OLDEST ) {
+                // the oldest packet is whole (it was published before any of
+                // this one's slots were needed) so its length can be trusted
+                long h = head.get();
+                int len = packetLen[(int)h & mask];
+                if( t_idx - h > mask && head.compareAndSet(h, h + len) )
+                    numDroppedOldest += len;
+            }
+            else
+                return false;
+        }
+        return true;
+    }
+        
+    /** makes the staged packet visible to the consumer (or forgets it if it was dropped) */
+    private void publishPacket() {
+        if( !droppingPacket && numStaged > 0 ) {
+            long t_idx = tail.get();
+            packetLen[(int)t_idx & mask] = numStaged;
+            tail.set( t_idx + numStaged ); // volatile write publishes the slots to the consumer
+            numPublished += numStaged;
+        }
+        numStaged = 0;
+        droppingPacket = false;
+    }
+    
+    /**
+     * forgets the packet being published, e.g. if it turned out to be out of
+     * order for one of its links (producer thread only)
+     */
+    public void abortUpdate() {
+        numStaged = 0;
+        numOpenUpdates = 0;
+        droppingPacket = false;
+    }
+    
+    /**
+     * Takes whole packets' events from the ring and passes them on to target
+     * until at least max events have been passed on or the ring is empty
+     * (consumer thread only).
+     * @return the number of events passed on
+     */
+    public int drainTo( EventSink target, int max ) {
+        int n = 0;
+        while( n < max ) {
+            long h = head.get();
+            if( h >= tail.get() )
+                break; /* empty */
+            
+            int len = packetLen[(int)h & mask];
+            if( policy == OverflowPolicy.DROP_OLDEST ) {
+                // copy the packet out before claiming it; if the producer
+                // dropped it in the meantime then the copy may be stale so try
+                // again
+                if( len < 1 || len > copyKind.length )
+                    continue;
+            
+                for( int j=0; j<len; j++ ) {
+                    int i = (int)(h + j) & mask;
+                    copyKind[j] = kind[i];
+                    copyLink[j] = link[i];
+                    copyTime_ns8[j] = time_ns8[i];
+                    copyValue[j] = value[i];
+                }
+                if( !head.compareAndSet(h, h + len) )
+                    continue;
+                
+                for( int j=0; j<len; j++ )
+                    apply( target, copyKind[j], copyLink[j], copyTime_ns8[j], copyValue[j] );
+            }
+            else {
+                // only the consumer frees slots, so apply them in place
+                for( int j=0; j<len; j++ ) {
+                    int i = (int)(h + j) & mask;
+                    apply( target, kind[i], link[i], time_ns8[i], value[i] );
+                }
+                head.set( h + len );
+            }
+            n += len;
+        }
+        
+        numApplied += n;
+        return n;
+    }
+    
+    private static void apply( EventSink target, byte k, BottleneckLink b, long t, int v ) {
+        switch( k ) {
+            case KIND_PREPARE:   target.prepareForUpdate( b, t );           break;
+            case KIND_OCCUPANCY: target.setOccupancy( b, t, v );            break;
+            case KIND_ARRIVAL:   target.arrival( b, t, v );                 break;
+            case KIND_DEPARTURE: target.departure( b, t, v );               break;
+            case KIND_DROPPED:   target.dropped( b, t, v );                 break;
+            case KIND_REFRESH:   target.refreshInstantaneousValues( b, t ); break;
+        }
+    }
+    
+    /**
+     * Decides whether a packet is in order based on the updates this ring has
+     * accepted so far (the link itself may not have seen them yet).
+     */
+    public boolean prepareForUpdate( BottleneckLink b, long rtr_time_ns8 ) {
+        long[] end = lastUpdateEnd_ns8.get( b );
+        if( end != null && end[0] > rtr_time_ns8 ) {
+            abortUpdate();
+            return false;
+        }
+        
+        // the link uses the first update to synchronize its clock
+        numOpenUpdates += 1;
+        stage( KIND_PREPARE, b, rtr_time_ns8, 0 );
+        return true;
+    }
+    
+    public void setOccupancy( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        stage( KIND_OCCUPANCY, b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void arrival( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        stage( KIND_ARRIVAL, b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void departure( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        stage( KIND_DEPARTURE, b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void dropped( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        stage( KIND_DROPPED, b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void refreshInstantaneousValues( BottleneckLink b, long rtr_time_ns8 ) {
+        long[] end = lastUpdateEnd_ns8.get( b );
+        if( end == null ) {
+            end = new long[1]; /* once per link */
+            lastUpdateEnd_ns8.put( b, end );
+        }
+        end[0] = rtr_time_ns8;
+        
+        // the packet is published once its last link has been refreshed
+        if( numOpenUpdates > 0 )
+            numOpenUpdates -= 1;
+        stage( KIND_REFRESH, b, rtr_time_ns8, 0 );
+    }
+    
+    /** starts the thread which applies events from this ring to their links */
+    public synchronized void startApplier() {
+        if( applier == null ) {
+            applier = new Applier();
+            applier.start();
+        }
+    }
+    
+    /** stops the applier thread (events left in the ring are not applied) */
+    public synchronized void stopApplier() {
+        if( applier != null ) {
+            applier.done = true;
+            applier = null;
+        }
+    }
+    
+    /** Drains the ring into the BottleneckLinks. */
+    private class Applier extends Thread {
+        private volatile boolean done = false;
+        
+        public Applier() {
+            super( "EventRing Applier" );
+            setDaemon( true );
+        }
+        
+        public void run() {
+            while( !done ) {
+                if( drainTo(EventProcessor.DIRECT, MAX_EVENTS_PER_DRAIN) == 0 )
+                    LockSupport.parkNanos( WAIT_NANOS );
+            }
+        }
+    }
+}
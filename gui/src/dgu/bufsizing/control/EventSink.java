@@ -0,0 +1,27 @@
+package dgu.bufsizing.control;
+
+import dgu.bufsizing.BottleneckLink;
+
+/**
+ * Receives the events decoded from an event capture packet.  The methods
+ * mirror the BottleneckLink methods which the decoded events are destined for.
+ * @author David Underhill
+ */
+public interface EventSink {
+    /**
+     * Called once per packet before its events are passed on.
+     * @return true if the packet is not older than the most recent update
+     */
+    public boolean prepareForUpdate( BottleneckLink b, long rtr_time_ns8 );
+    
+    public void setOccupancy( BottleneckLink b, long rtr_time_ns8, int num_bytes );
+    
+    public void arrival( BottleneckLink b, long rtr_time_ns8, int num_bytes );
+    
+    public void departure( BottleneckLink b, long rtr_time_ns8, int num_bytes );
+    
+    public void dropped( BottleneckLink b, long rtr_time_ns8, int num_bytes );
+    
+    /** called once per packet after all of its events have been passed on */
+    public void refreshInstantaneousValues( BottleneckLink b, long rtr_time_ns8 );
+}
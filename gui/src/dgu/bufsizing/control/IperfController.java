@@ -17,62 +17,90 @@ public class IperfController extends Controller {
     }
     
     /** information about a controller */
-    private class ICInfo {
+    private static class ICInfo {
         public IperfController ic;
         public int n = 0;
         public ICInfo(IperfController ic) { this.ic = ic; }
     }
     
-    /** list of all of the controllers which are available */
-    private static LinkedList<ICInfo> controllers = new LinkedList<ICInfo>();
+    /** 
+     * A group of iperf controllers which together generate the flows for one
+     * bottleneck link (so links with their own pools can be driven at once).
+     */
+    public static class Pool {
+        /** list of all of the controllers which are available */
+        private final LinkedList<ICInfo> controllers = new LinkedList<ICInfo>();
     
-    /** total number of flows requested */
-    private static int numFlows = 0;
+        /** total number of flows requested */
+        private int numFlows = 0;
     
-    /** manages N across all iperf controllers such that the total N is the requested number */
-    public static void setNumFlows(int n) {
-        // ignore non-changes
-        if( numFlows == n )
-            return;
-            
-        // do nothing until we have a controller
-        if( controllers.size() == 0 ) {
-            System.err.println("unable to set numFlows -- no iperf controllers exist");
-            return;
+        private synchronized void add(IperfController ic) {
+            controllers.add(new ICInfo(ic));
         }
         
-        // generate new flows if the user want more
-        while( n > numFlows ) {
-            // determine which controller is responsible for the least # of flows
-            ICInfo iciLeastFlows = controllers.get(0);
-            for( ICInfo ici : controllers )
-                if( iciLeastFlows.n > ici.n )
-                    iciLeastFlows = ici;
-            
-            // tell the controller with the least # of flows to start another
-            iciLeastFlows.n += 1;
-            iciLeastFlows.ic.command(IperfCmd.CMD_SET_N, iciLeastFlows.n);
-            numFlows += 1;
+        /** returns the number of controllers in the pool */
+        public synchronized int size() {
+            return controllers.size();
         }
         
-        // stop old flows if the user want fewer
-        while( n < numFlows ) {
-            // determine which controller is responsible for the most # of flows
-            ICInfo iciMostFlows = controllers.get(0);
-            for( ICInfo ici : controllers )
-                if( iciMostFlows.n < ici.n )
-                    iciMostFlows = ici;
+        /** manages N across the pool's controllers such that the total N is the requested number */
+        public synchronized void setNumFlows(int n) {
+            // ignore non-changes
+            if( numFlows == n )
+                return;
+            
+            // do nothing until we have a controller
+            if( controllers.size() == 0 ) {
+                System.err.println("unable to set numFlows -- no iperf controllers exist");
+                return;
+            }
+            
+            // generate new flows if the user want more
+            while( n > numFlows ) {
+                // determine which controller is responsible for the least # of flows
+                ICInfo iciLeastFlows = controllers.get(0);
+                for( ICInfo ici : controllers )
+                    if( iciLeastFlows.n > ici.n )
+                        iciLeastFlows = ici;
+                
+                // tell the controller with the least # of flows to start another
+                iciLeastFlows.n += 1;
+                iciLeastFlows.ic.command(IperfCmd.CMD_SET_N, iciLeastFlows.n);
+                numFlows += 1;
+            }
             
-            // tell the controller with the least # of flows to start another
-            iciMostFlows.n -= 1;
-            iciMostFlows.ic.command(IperfCmd.CMD_SET_N, iciMostFlows.n);
-            numFlows -= 1;
+            // stop old flows if the user want fewer
+            while( n < numFlows ) {
+                // determine which controller is responsible for the most # of flows
+                ICInfo iciMostFlows = controllers.get(0);
+                for( ICInfo ici : controllers )
+                    if( iciMostFlows.n < ici.n )
+                        iciMostFlows = ici;
+                
+                // tell the controller with the least # of flows to start another
+                iciMostFlows.n -= 1;
+                iciMostFlows.ic.command(IperfCmd.CMD_SET_N, iciMostFlows.n);
+                numFlows -= 1;
+            }
         }
     }
     
+    /** the pool controllers join unless they are given one */
+    public static final Pool DEFAULT_POOL = new Pool();
+    
+    /** manages N across the default pool's iperf controllers */
+    public static void setNumFlows(int n) {
+        DEFAULT_POOL.setNumFlows(n);
+    }
+    
     public IperfController( String ip, int port ) {
+        this( ip, port, DEFAULT_POOL );
+    }
+    
+    /** creates a controller which generates flows for pool */
+    public IperfController( String ip, int port, Pool pool ) {
         super( ip, port );
-        controllers.add(new ICInfo(this));
+        pool.add(this);
     }
 
     public String getTypeString() {
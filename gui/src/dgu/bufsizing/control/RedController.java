@@ -1,8 +1,8 @@
 package dgu.bufsizing.control;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * Interacts with the RED controller.
@@ -23,12 +23,12 @@ public class RedController extends Controller {
      * Executes the specified command.
      */
     public synchronized void updateRedParameters(double k, double alpha, double maxp, double mint) {
-        OutputStream myOut = out;
-        if(myOut == null) {
+        if(!isConnected()) {
             System.err.println("red controller connection dead -- not sending params");
             return;
         }
-        DataOutputStream dout = new DataOutputStream(myOut);
+        // buffer the four ints so they are queued (and sent) as one write
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 16));
         try {
             System.err.println("Sending: ");
             System.out.println("    k="+k);
@@ -40,6 +40,7 @@ public class RedController extends Controller {
             dout.writeInt((int)(alpha*1000000));
             dout.writeInt((int)(maxp*1000000));
             dout.writeInt((int)(mint*1000000));
+            dout.flush();
         }
         catch(IOException e) {
             System.err.println("write to red controller socket failed");
@@ -1,8 +1,8 @@
 package dgu.bufsizing.control;
 
-import dgu.bufsizing.DemoGUI;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Interacts with the NetFPGA router client.
@@ -22,64 +22,117 @@ public class RedInfoReceiver extends Controller {
         return "Red Info Receiver";
     }
 
-    public double meanAvg = -1;
-    public double mean = -1;
-    public double sdevAvg = -1;
-    public double sdev = -1;
-    int sdevCount = 0;
+    /** whether to print each sample as it is received */
+    public static final boolean DEBUG = false;
 
-    public synchronized double getSdev() {
+    /** number of bytes in each sample (two doubles: sdev and mean) */
+    public static final int SAMPLE_LEN = 16;
+
+    /** weight given to the newest sample in the moving averages */
+    public static final double ALPHA = 0.5;
+
+    /** a consistent copy of the RED statistics */
+    public static class RedStats {
+        public double sdev = -1;
+        public double mean = -1;
+        public double sdevAvg = -1;
+        public double meanAvg = -1;
+
+        /** number of samples in the averages */
+        public int count = 0;
+    }
+
+    // the published statistics: only the processor thread writes them, and it
+    // makes version odd while it does so (readers retry if they see a change)
+    private volatile long version = 0;
+    private volatile double meanAvg = -1;
+    private volatile double mean = -1;
+    private volatile double sdevAvg = -1;
+    private volatile double sdev = -1;
+    private volatile int sdevCount = 0;
+
+    /** set by resetSdevAvg() and cleared by the processor thread */
+    private final AtomicBoolean resetRequested = new AtomicBoolean(false);
+
+    public double getSdev() {
         return sdev;
-    };
+    }
 
-    public synchronized double getSdevAvg() {
+    public double getSdevAvg() {
         return sdevAvg;
-    };
+    }
 
-    public synchronized double getMeanAvg() {
+    public double getMeanAvg() {
         return meanAvg;
-    };
+    }
+
+    /** restarts the moving averages with the next sample */
+    public void resetSdevAvg() {
+        resetRequested.set( true );
+    }
 
-    public synchronized void resetSdevAvg() {
-        sdevCount = 0;
+    /**
+     * Copies a consistent snapshot of the statistics into stats without 
+     * locking (the values all come from the same sample).
+     * @return stats
+     */
+    public RedStats getStats( RedStats stats ) {
+        long v;
+        do {
+            v = version;
+            stats.sdev = sdev;
+            stats.mean = mean;
+            stats.sdevAvg = sdevAvg;
+            stats.meanAvg = meanAvg;
+            stats.count = sdevCount;
+        }
+        while( (v & 1) != 0 || v != version );
+
+        return stats;
     }
 
-    public synchronized void updateSdev(double d, double m) {
-        double alpha = 0.5;
+    /** called by the processor thread for each sample */
+    private void updateSdev(double d, double m) {
+        // take the request in one step so a reset asked for now isn't lost
+        int count = resetRequested.getAndSet(false) ? 0 : sdevCount;
 
+        version += 1; /* odd => update in progress */
         sdev = d;
         mean = m;
-        sdevCount += 1;
-        if(sdevCount == 1) {
-            sdevAvg = sdev;
-            meanAvg = mean;
+        count += 1;
+        if(count == 1) {
+            sdevAvg = d;
+            meanAvg = m;
         }
         else {
-            sdevAvg = (alpha)*sdev + (1-alpha)*sdevAvg;
-            meanAvg = (alpha)*mean + (1-alpha)*meanAvg;
+            sdevAvg = (ALPHA)*d + (1-ALPHA)*sdevAvg;
+            meanAvg = (ALPHA)*m + (1-ALPHA)*meanAvg;
         }
+        sdevCount = count;
+        version += 1;
 
-        System.err.println("sdev="+sdev + " // sdev_avg="+sdevAvg + " // meanavg=" + meanAvg);
-    };
+        if( DEBUG )
+            System.err.println("sdev="+sdev + " // sdev_avg="+sdevAvg + " // meanavg=" + meanAvg);
+    }
 
     public class RedInfoProcessor extends Thread {
         /**
-         * Listens for new data.
+         * Listens for new data.  Reads block until a sample arrives (or the 
+         * connection is lost), so this never spins.
          */
         public void run() {
+            final byte[] buf = new byte[SAMPLE_LEN];
+            final ByteBuffer bb = ByteBuffer.wrap( buf );
+
             /* listen for updates until the end of time */
             while (true) {
                 // try to get the next update
                 try {
-                    if(in != null) {
-                        DataInputStream din = new DataInputStream(in);
-                        updateSdev(din.readDouble(), din.readDouble());
-                    }
+                    readAtLeast( buf, 0, SAMPLE_LEN, SAMPLE_LEN );
+                    updateSdev( bb.getDouble(0), bb.getDouble(8) );
                 } catch( IOException e ) {
+                    // the next read waits for the connection to be reestablished
                     System.err.println( "Error: RED stats receive failed: " + e.getMessage() );
-                    
-                    // wait a little before trying again after a failure
-                    DemoGUI.msleep(500);
                 }
             }
         }
@@ -3,6 +3,9 @@ package dgu.bufsizing.control;
 import dgu.bufsizing.BottleneckLink;
 import dgu.bufsizing.DemoGUI;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * Interacts with the NetFPGA router client.
@@ -17,8 +20,34 @@ public class RouterController extends Controller {
         RouterCmd( byte code ) { this.code = code; }
     }
     
+    /** number of bytes in an update info record */
+    public static final int UPDATE_INFO_LEN = 24;
+    
+    /** maximum number of update info records decoded per read */
+    public static final int MAX_UPDATES_PER_BATCH = 256;
+    
+    /**
+     * An update info record whose sec field is ACK_MARKER is a command
+     * acknowledgement: usec is the command code, arrived is the queue, and
+     * departed is the value read back from the register.
+     */
+    public static final int ACK_MARKER = 0xFFFFFFFF;
+    
+    /** how long an unacknowledged command waits before it is given up on */
+    public static final long ACK_EXPIRE_MSEC = 60 * 1000;
+    
+    /** commands which have been sent but not yet acknowledged (oldest first) */
+    private final LinkedList<CommandFuture> pendingAcks = new LinkedList<CommandFuture>();
+    
     UpdateInfoProcessor uip = new UpdateInfoProcessor();
     
+    // update info records which have been read but not yet decoded (a partial
+    // record is moved to the front of the buffer before the next read)
+    private final byte[] updateBuf = new byte[UPDATE_INFO_LEN * MAX_UPDATES_PER_BATCH];
+    private final ByteBuffer updateBB = ByteBuffer.wrap( updateBuf );
+    private int updateBufStart = 0;
+    private int updateBufEnd = 0;
+    
     public RouterController( String ip, int port ) {
         super( ip, port );
     }
@@ -57,10 +86,78 @@ public class RouterController extends Controller {
      * @return the value returned by the command (0 if the command is a SET command)
      */
     public synchronized int command( RouterCmd cmd, byte queueNum, int value ) {
-        sendCommand( cmd.code, queueNum, value );
+        commandAsync( cmd, queueNum, value );
         return 0;
     }
     
+    /**
+     * Executes the specified command without waiting for it to take effect.
+     * Any number of commands may be outstanding at once.
+     * 
+     * @param cmd        the command to execute
+     * @param queueNum   the queue this command affects (must be 0, 1, 2, or 3)
+     * @param value      the value to send with this command
+     * 
+     * @return a future which completes when the router acknowledges that the 
+     *         register holds value (or fails if the connection is lost first)
+     */
+    public CommandFuture commandAsync( RouterCmd cmd, byte queueNum, int value ) {
+        CommandFuture f = new CommandFuture( cmd.code, queueNum, value );
+        if( !isConnected() ) {
+            f.fail( "not connected" );
+            sendCommand( cmd.code, queueNum, value ); /* reports the problem */
+            return f;
+        }
+        
+        synchronized( pendingAcks ) {
+            // give up on commands which a router controller without acks will never acknowledge
+            long now = System.currentTimeMillis();
+            while( pendingAcks.size() > 0 && pendingAcks.getFirst().issued_millis + ACK_EXPIRE_MSEC < now )
+                pendingAcks.removeFirst().fail( "no acknowledgement received" );
+            
+            pendingAcks.addLast( f );
+        }
+        
+        sendCommand( cmd.code, queueNum, value );
+        return f;
+    }
+    
+    /**
+     * Handles an acknowledgement.  The newest pending command for the same
+     * register with the acknowledged value completes, as do all older commands
+     * for that register (they were superseded, possibly without being sent).
+     */
+    private void handleAck( int code, int queueNum, int value ) {
+        synchronized( pendingAcks ) {
+            CommandFuture newest = null;
+            for( CommandFuture f : pendingAcks )
+                if( (f.code & 0xFF) == code && (f.queueNum & 0xFF) == queueNum && f.value == value )
+                    newest = f;
+            
+            if( newest == null )
+                return; /* a stale acknowledgement */
+            
+            Iterator<CommandFuture> itr = pendingAcks.iterator();
+            while( itr.hasNext() ) {
+                CommandFuture f = itr.next();
+                if( (f.code & 0xFF) == code && (f.queueNum & 0xFF) == queueNum ) {
+                    itr.remove();
+                    f.complete( value );
+                }
+                if( f == newest )
+                    break;
+            }
+        }
+    }
+    
+    /** fails every pending command */
+    private void failPendingAcks( String why ) {
+        synchronized( pendingAcks ) {
+            while( pendingAcks.size() > 0 )
+                pendingAcks.removeFirst().fail( why );
+        }
+    }
+    
     public class UpdateInfo {
         public int sec;
         public int usec;
@@ -74,12 +171,59 @@ public class RouterController extends Controller {
      * Retrieves an update info packet from the stream.
      */
     public void receiveUpdate(final UpdateInfo u) throws IOException {
-        u.sec      = readInt();
-        u.usec     = readInt();
-        u.arrived  = readInt();
-        u.departed = readInt();
-        u.dropped  = readInt();
-        u.current  = readInt();
+        UpdateInfo[] batch = new UpdateInfo[]{u};
+        while( receiveUpdates(batch) == 0 )
+            ; /* only acknowledgements were received */
+    }
+    
+    /**
+     * Retrieves as many update info packets as are available (blocking until
+     * there is at least one record).  Many records are pulled off the socket 
+     * with a single read and decoded in place.  Acknowledgements are handled 
+     * here rather than returned, so 0 is returned if only they were received.
+     * 
+     * @param batch  where to put the updates
+     * @return the number of updates put in batch
+     */
+    public int receiveUpdates(final UpdateInfo[] batch) throws IOException {
+        if( updateBufEnd - updateBufStart < UPDATE_INFO_LEN ) {
+            // move the partial record (if any) to the front and read some more
+            int partial = updateBufEnd - updateBufStart;
+            System.arraycopy( updateBuf, updateBufStart, updateBuf, 0, partial );
+            updateBufStart = 0;
+            updateBufEnd = partial;
+            
+            try {
+                updateBufEnd += readAtLeast( updateBuf, partial, UPDATE_INFO_LEN - partial, updateBuf.length - partial );
+            } catch( IOException e ) {
+                // a partial record from a broken connection is useless, and 
+                // acknowledgements sent on it will never arrive
+                updateBufStart = updateBufEnd = 0;
+                failPendingAcks( "connection lost" );
+                throw e;
+            }
+        }
+        
+        int n = 0;
+        while( n < batch.length && updateBufEnd - updateBufStart >= UPDATE_INFO_LEN ) {
+            int i = updateBufStart;
+            updateBufStart += UPDATE_INFO_LEN;
+            
+            if( updateBB.getInt(i) == ACK_MARKER ) {
+                handleAck( updateBB.getInt(i + 4), updateBB.getInt(i + 8), updateBB.getInt(i + 12) );
+                continue;
+            }
+            
+            UpdateInfo u = batch[n++];
+            u.sec      = updateBB.getInt( i      );
+            u.usec     = updateBB.getInt( i +  4 );
+            u.arrived  = updateBB.getInt( i +  8 );
+            u.departed = updateBB.getInt( i + 12 );
+            u.dropped  = updateBB.getInt( i + 16 );
+            u.current  = updateBB.getInt( i + 20 );
+        }
+        
+        return n;
     }
     
     /**
@@ -94,9 +238,12 @@ public class RouterController extends Controller {
          * assumption that they are for the first bottleneck on the first router.
          */
         public void run() {
-            final UpdateInfo u = new UpdateInfo();
+            final UpdateInfo[] batch = new UpdateInfo[MAX_UPDATES_PER_BATCH];
+            for( int i=0; i<batch.length; i++ )
+                batch[i] = new UpdateInfo();
+            
             long lastErrorMsg_millis = 0;
-            boolean gotUpdate = false;
+            int numUpdates = 0;
             
             // always assume first bottleneck on the first router for now
             BottleneckLink b = DemoGUI.me.demo.getRouters().get(0).getBottleneckLinkAt(0);
@@ -107,12 +254,11 @@ public class RouterController extends Controller {
             
             /* listen for updates until the end of time */
             while (true) {
-                // try to get the next update
+                // try to get the next batch of updates
                 try {
-                    receiveUpdate(u);
-                    gotUpdate = true;
+                    numUpdates = receiveUpdates(batch);
                 } catch( IOException e ) {
-                    gotUpdate = false;
+                    numUpdates = 0;
                     
                     if( lastErrorMsg_millis + Controller.TIME_BETWEEN_ERROR_MSGS_MILLIS < System.currentTimeMillis() ) {
                         System.err.println( "Error: stats receive failed: " + e.getMessage() );
@@ -124,29 +270,38 @@ public class RouterController extends Controller {
                 }
                 
                 // process each update we receive
-                if( gotUpdate ) {
-                    long timestamp_usec = ((u.sec * 1000L * 1000L) + u.usec);
-                    long timestamp_8ns = timestamp_usec * 1000L / 8L;
-                    
-                    // set the occupancy at the start of this packet
-                    b.setOccupancy( timestamp_8ns, u.current, false );
-                    
-                    // don't plot the occupancy for these yet because we're doing all arrivals,
-                    // then all departures, which isn't the right order, which means the max can
-                    // be larger than reality (and in fact probably would be, and often larger than max buffer size!)
-                    b.arrival( timestamp_8ns, u.arrived, true );
-                    b.departure( timestamp_8ns, u.departed, true );
-                    b.dropped( timestamp_8ns, u.dropped, true );
-                    
-                    // now that we have the end value, plot that value (would be even better if we knew the end timestamp
-                    b.plotCurrentOccupancy(timestamp_8ns);
-                    
-                    //System.err.println( "update at " + timestamp_8ns + " => cur=" + u.current + " / arr=" + u.arrived + " / dep=" + u.departed + " / drop=" + u.dropped );
-                    
-                    // refresh instantaneous readings over the interval from the previous
-                    //  update to the time of the last event in this update
-                    b.refreshInstantaneousValues( timestamp_8ns );
-                }
+                for( int i=0; i<numUpdates; i++ )
+                    applyUpdate( b, batch[i] );
+            }
+        }
+        
+        /** 
+         * applies one update to b (holding b's lock so the update is seen 
+         * all at once, but only for that update)
+         */
+        private void applyUpdate( BottleneckLink b, UpdateInfo u ) {
+            long timestamp_usec = ((u.sec * 1000L * 1000L) + u.usec);
+            long timestamp_8ns = timestamp_usec * 1000L / 8L;
+            
+            synchronized( b ) {
+                // set the occupancy at the start of this packet
+                b.setOccupancy( timestamp_8ns, u.current, false );
+                
+                // don't plot the occupancy for these yet because we're doing all arrivals,
+                // then all departures, which isn't the right order, which means the max can
+                // be larger than reality (and in fact probably would be, and often larger than max buffer size!)
+                b.arrival( timestamp_8ns, u.arrived, true );
+                b.departure( timestamp_8ns, u.departed, true );
+                b.dropped( timestamp_8ns, u.dropped, true );
+                
+                // now that we have the end value, plot that value (would be even better if we knew the end timestamp
+                b.plotCurrentOccupancy(timestamp_8ns);
+                
+                //System.err.println( "update at " + timestamp_8ns + " => cur=" + u.current + " / arr=" + u.arrived + " / dep=" + u.departed + " / drop=" + u.dropped );
+                
+                // refresh instantaneous readings over the interval from the previous
+                //  update to the time of the last event in this update
+                b.refreshInstantaneousValues( timestamp_8ns );
             }
         }
     }
@@ -0,0 +1,236 @@
+package dgu.bufsizing.control;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks the sequence numbers of one router's event capture packets and puts
+ * late packets back in order.  Packets which arrive ahead of a missing one are
+ * copied into a small window of preallocated slots until the gap is filled.  If
+ * the window fills up first, only as many missing packets as needed to bring
+ * the new packet into the window are declared lost (delivering any held
+ * packets passed on the way).  The window is a power of two so slots stay
+ * continuous when sequence numbers wrap.
+ *
+ * Sequence numbers are compared with 32-bit wraparound arithmetic.  This class
+ * is not thread-safe; it is meant to be used by the receive thread only.
+ *
+ * @author David Underhill
+ */
+public abstract class SequenceTracker {
+    private final int window;
+    
+    // packets being held until the packets ahead of them arrive (slot = seq & (window-1))
+    private final byte[][] slotData;
+    private final ByteBuffer[] slotBuf;
+    private final int[] slotLen;
+    private final int[] slotSeq;
+    private final boolean[] slotFull;
+    private int numHeld = 0;
+    
+    /** whether any packet has been seen yet */
+    private boolean started = false;
+    
+    /** sequence number of the next packet to deliver */
+    private int expectedSeq;
+    
+    // counters (only written by the receive thread)
+    private volatile long numReceived = 0;
+    private volatile long numDelivered = 0;
+    private volatile long numReordered = 0;
+    private volatile long numLost = 0;
+    private volatile long numLate = 0;
+    private volatile long numDuplicates = 0;
+    
+    /**
+     * Creates a tracker.
+     * @param window        number of packets which may be held while waiting
+     *                      for a missing packet (0 => never wait); rounded up
+     *                      to a power of two
+     * @param maxPacketLen  largest packet which will be offered
+     */
+    public SequenceTracker( int window, int maxPacketLen ) {
+        int w = (window > 0) ? 1 : 0;
+        while( w < window )
+            w <<= 1;
+        this.window = window = w;
+        slotData = new byte[window][];
+        slotBuf = new ByteBuffer[window];
+        slotLen = new int[window];
+        slotSeq = new int[window];
+        slotFull = new boolean[window];
+        for( int i=0; i<window; i++ ) {
+            slotData[i] = new byte[maxPacketLen];
+            slotBuf[i] = ByteBuffer.wrap( slotData[i] );
+        }
+    }
+    
+    /**
+     * Called for each packet in sequence order.  buf is only valid for the
+     * duration of the call.
+     */
+    protected abstract void deliver( ByteBuffer buf, int len );
+    
+    /**
+     * Delivers the packet now or holds it until the packets before it arrive.
+     * @param seq  the packet's sequence number
+     * @param buf  the packet (starting at index 0)
+     * @param len  the packet's length
+     */
+    public void offer( int seq, ByteBuffer buf, int len ) {
+        numReceived += 1;
+        
+        if( !started ) {
+            started = true;
+            expectedSeq = seq;
+        }
+        
+        int ahead = seq - expectedSeq; /* wraps correctly */
+        if( ahead < 0 ) {
+            // we already gave up on this one (or it is a repeat)
+            numLate += 1;
+            return;
+        }
+        
+        if( ahead == 0 ) {
+            deliverAndAdvance( buf, len );
+            deliverHeld();
+            return;
+        }
+        
+        // the packet is early: if the window does not reach it, give up on
+        // just enough missing packets to bring it into the window
+        if( ahead >= window )
+            skipTo( seq - Math.max(window - 1, 0) );
+        
+        if( seq == expectedSeq ) {
+            deliverAndAdvance( buf, len );
+            deliverHeld();
+        }
+        else
+            hold( seq, buf, len );
+    }
+    
+    /** delivers every held packet, declaring any gaps between them lost */
+    public void flush() {
+        while( numHeld > 0 )
+            skipOne();
+        deliverHeld();
+    }
+    
+    private void deliverAndAdvance( ByteBuffer buf, int len ) {
+        numDelivered += 1;
+        expectedSeq += 1;
+        deliver( buf, len );
+    }
+    
+    /** delivers held packets for as long as they are consecutive */
+    private void deliverHeld() {
+        while( numHeld > 0 ) {
+            int i = slotIndex( expectedSeq );
+            if( !slotFull[i] || slotSeq[i] != expectedSeq )
+                return;
+            
+            slotFull[i] = false;
+            numHeld -= 1;
+            numReordered += 1;
+            deliverAndAdvance( slotBuf[i], slotLen[i] );
+        }
+    }
+    
+    /**
+     * Delivers the expected packet if it is held, else declares it lost, and
+     * moves on to the next one.
+     */
+    private void skipOne() {
+        int i = slotIndex( expectedSeq );
+        if( slotFull[i] && slotSeq[i] == expectedSeq ) {
+            slotFull[i] = false;
+            numHeld -= 1;
+            numReordered += 1;
+            deliverAndAdvance( slotBuf[i], slotLen[i] );
+        }
+        else {
+            numLost += 1;
+            expectedSeq += 1;
+        }
+    }
+        
+    /**
+     * Advances expectedSeq to targetSeq, delivering the held packets passed on
+     * the way and declaring the rest lost, then delivers whatever is now in
+     * order.
+     */
+    private void skipTo( int targetSeq ) {
+        while( numHeld > 0 && targetSeq - expectedSeq > 0 )
+            skipOne();
+        
+        // nothing else is held, so the rest of the gap is missing
+        if( targetSeq - expectedSeq > 0 ) {
+            numLost += targetSeq - expectedSeq;
+            expectedSeq = targetSeq;
+        }
+        deliverHeld();
+    }
+    
+    private void hold( int seq, ByteBuffer buf, int len ) {
+        int i = slotIndex( seq );
+        if( slotFull[i] ) {
+            if( slotSeq[i] == seq ) {
+                numDuplicates += 1; /* same seq already held */
+                return;
+            }
+            
+            // a different packet is in the slot (it cannot be in the window
+            // any more, so it will never be delivered)
+            numLost += 1;
+            numHeld -= 1;
+        }
+        
+        for( int j=0; j<len; j++ )
+            slotData[i][j] = buf.get(j);
+        
+        slotLen[i] = len;
+        slotSeq[i] = seq;
+        slotFull[i] = true;
+        numHeld += 1;
+    }
+    
+    private int slotIndex( int seq ) {
+        return seq & (window - 1);
+    }
+    
+    /** returns the number of packets offered */
+    public long getNumReceived() {
+        return numReceived;
+    }
+    
+    /** returns the number of packets delivered in sequence order */
+    public long getNumDelivered() {
+        return numDelivered;
+    }
+    
+    /** returns the number of packets which had to be held to be delivered in order */
+    public long getNumReordered() {
+        return numReordered;
+    }
+    
+    /** returns the number of sequence numbers which were never received in time */
+    public long getNumLost() {
+        return numLost;
+    }
+    
+    /** returns the number of packets which arrived after they had been declared lost */
+    public long getNumLate() {
+        return numLate;
+    }
+    
+    /** returns the number of packets held twice */
+    public long getNumDuplicates() {
+        return numDuplicates;
+    }
+    
+    /** returns the maximum number of packets which may be held (a power of two, or 0) */
+    public int getWindow() {
+        return window;
+    }
+}
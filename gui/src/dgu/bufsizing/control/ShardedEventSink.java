@@ -0,0 +1,95 @@
+package dgu.bufsizing.control;
+
+import dgu.bufsizing.BottleneckLink;
+import java.util.IdentityHashMap;
+
+/**
+ * Spreads decoded events over several EventRings so that different links are
+ * updated in parallel.  Every link is pinned to one ring (and therefore one
+ * applier thread) the first time it is seen, so each link's events are still
+ * applied in order and no two appliers ever contend for the same link.
+ *
+ * Like EventRing, this must only be fed by a single thread.
+ *
+ * @author David Underhill
+ */
+public class ShardedEventSink implements EventSink {
+    private final EventRing[] shards;
+    
+    /** which ring each link's events go to */
+    private final IdentityHashMap<BottleneckLink, EventRing> linkToShard = new IdentityHashMap<BottleneckLink, EventRing>();
+    
+    /** the shard the next new link will be assigned to */
+    private int nextShard = 0;
+    
+    /**
+     * Creates the shards and starts their appliers.
+     * @param numShards      number of rings (and applier threads)
+     * @param ringCapacity   capacity of each ring
+     * @param policy         what each ring does when it is full
+     */
+    public ShardedEventSink( int numShards, int ringCapacity, EventRing.OverflowPolicy policy ) {
+        shards = new EventRing[numShards];
+        for( int i=0; i<numShards; i++ ) {
+            shards[i] = new EventRing( ringCapacity, policy );
+            shards[i].startApplier();
+        }
+    }
+    
+    /** returns the number of shards */
+    public int getNumShards() {
+        return shards.length;
+    }
+    
+    /** returns the ring for shard i (e.g. to read its counters) */
+    public EventRing getShard( int i ) {
+        return shards[i];
+    }
+    
+    /** returns the ring which the link's events are sent to */
+    private EventRing shardFor( BottleneckLink b ) {
+        EventRing r = linkToShard.get( b );
+        if( r == null ) {
+            r = shards[nextShard];
+            nextShard = (nextShard + 1) % shards.length;
+            linkToShard.put( b, r );
+        }
+        return r;
+    }
+    
+    /** stops every shard's applier */
+    public void stopAppliers() {
+        for( EventRing r : shards )
+            r.stopApplier();
+    }
+    
+    public boolean prepareForUpdate( BottleneckLink b, long rtr_time_ns8 ) {
+        if( shardFor(b).prepareForUpdate( b, rtr_time_ns8 ) )
+            return true;
+        
+        // the packet is ignored, so drop what the other shards staged for it
+        for( EventRing r : shards )
+            r.abortUpdate();
+        return false;
+    }
+    
+    public void setOccupancy( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        shardFor(b).setOccupancy( b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void arrival( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        shardFor(b).arrival( b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void departure( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        shardFor(b).departure( b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void dropped( BottleneckLink b, long rtr_time_ns8, int num_bytes ) {
+        shardFor(b).dropped( b, rtr_time_ns8, num_bytes );
+    }
+    
+    public void refreshInstantaneousValues( BottleneckLink b, long rtr_time_ns8 ) {
+        shardFor(b).refreshInstantaneousValues( b, rtr_time_ns8 );
+    }
+}
@@ -0,0 +1,420 @@
+package dgu.bufsizing.data;
+
+/**
+ * An append-only series of (time, value) points compressed like Facebook's
+ * Gorilla time series store.  Times are stored as the delta of the delta from
+ * the previous point (usually 0 or a few bits since events arrive at a steady
+ * pace) and values as the XOR of their bits with the previous value (only the
+ * bits which changed are kept, and a value which did not change costs one
+ * bit).  Occupancy and throughput series typically take 2-3 bytes per point
+ * instead of the 16 bytes a RingSeries point takes.
+ *
+ * Points are packed into fixed-size blocks which each start with a full time
+ * and value, so a block can be decoded on its own.  Once maxBlocks blocks are
+ * full, the oldest block is reused for new points; memory is therefore
+ * bounded and nothing is allocated once every block has been used.
+ *
+ * Points are read back with a sequential Decoder (e.g. by read() to fill a
+ * chart series or writeTo() to export them).  This class is not synchronized;
+ * BottleneckLink guards it with its own lock and decodes copies of it.
+ *
+ * @author David Underhill
+ */
+public class CompressedSeries {
+    /** default number of 64-bit words in each block (8KB) */
+    public static final int DEFAULT_BLOCK_WORDS = 1024;
+    
+    /** most bits one point can take (a block is closed once fewer remain) */
+    private static final int MAX_POINT_BITS = 5 + 64 + 2 + 6 + 6 + 64;
+    
+    /** one self-contained run of encoded points */
+    private static class Block {
+        final long[] words;
+        int numBits = 0;
+        int count = 0;
+        long firstTime;
+        
+        // encoder state after the newest point in this block
+        long prevTime, prevDelta, prevValue;
+        int prevLead, prevTrail;
+        
+        Block( int numWords ) {
+            words = new long[numWords];
+        }
+        
+        /** copies a block (only the words in use) */
+        Block( Block b ) {
+            words = new long[b.words.length];
+            System.arraycopy( b.words, 0, words, 0, (b.numBits + 63) >>> 6 );
+            numBits = b.numBits;
+            count = b.count;
+            firstTime = b.firstTime;
+            prevTime = b.prevTime;
+            prevDelta = b.prevDelta;
+            prevValue = b.prevValue;
+            prevLead = b.prevLead;
+            prevTrail = b.prevTrail;
+        }
+        
+        void clear() {
+            numBits = 0;
+            count = 0;
+            java.util.Arrays.fill( words, 0L );
+        }
+        
+        void write( long bits, int n ) {
+            if( n == 0 )
+                return;
+            if( n < 64 )
+                bits &= (1L << n) - 1;
+            
+            int w = numBits >>> 6;
+            int used = numBits & 63;
+            int free = 64 - used;
+            if( n <= free )
+                words[w] |= bits << (free - n);
+            else {
+                words[w] |= bits >>> (n - free);
+                words[w + 1] |= bits << (64 - (n - free));
+            }
+            numBits += n;
+        }
+    }
+    
+    private final Comparable key;
+    private final Block[] blocks;
+    private final int blockWords;
+    
+    /** index of the oldest block */
+    private int head = 0;
+    
+    /** number of blocks in use */
+    private int numBlocks = 0;
+    
+    /** number of points in the series */
+    private int count = 0;
+    
+    /** creates a series with blocks of the default size */
+    public CompressedSeries( Comparable key, int maxBlocks ) {
+        this( key, maxBlocks, DEFAULT_BLOCK_WORDS );
+    }
+    
+    /**
+     * Creates an empty series.
+     * @param key         the series' name
+     * @param maxBlocks   maximum number of blocks to keep
+     * @param blockWords  number of 64-bit words in each block
+     */
+    public CompressedSeries( Comparable key, int maxBlocks, int blockWords ) {
+        this.key = key;
+        this.blocks = new Block[Math.max( 1, maxBlocks )];
+        this.blockWords = Math.max( (MAX_POINT_BITS * 2 + 63) / 64, blockWords );
+    }
+    
+    /**
+     * Copies a series (e.g. so it can be decoded without holding the lock
+     * which guards the original).  The copy only has room for the blocks in
+     * use.
+     */
+    public CompressedSeries( CompressedSeries src ) {
+        this.key = src.key;
+        this.blockWords = src.blockWords;
+        this.blocks = new Block[Math.max( 1, src.numBlocks )];
+        for( int i=0; i<src.numBlocks; i++ )
+            blocks[i] = new Block( src.blocks[src.index(i)] );
+        this.numBlocks = src.numBlocks;
+        this.count = src.count;
+    }
+    
+    public Comparable getKey() {
+        return key;
+    }
+    
+    public int getItemCount() {
+        return count;
+    }
+    
+    /** returns the number of bytes the encoded points take up */
+    public long getEncodedBytes() {
+        long bits = 0;
+        for( int i=0; i<numBlocks; i++ )
+            bits += blocks[index(i)].numBits;
+        return (bits + 7) / 8;
+    }
+    
+    /** returns the array index of the i'th oldest block */
+    private int index( int i ) {
+        i += head;
+        return (i >= blocks.length) ? i - blocks.length : i;
+    }
+    
+    /** removes every point (the blocks are kept for reuse) */
+    public void clear() {
+        head = 0;
+        numBlocks = 0;
+        count = 0;
+    }
+    
+    /** starts a new block, reusing the oldest one if every block is in use */
+    private Block newBlock() {
+        int b;
+        if( numBlocks < blocks.length )
+            b = index( numBlocks++ );
+        else {
+            b = head;
+            if( ++head == blocks.length )
+                head = 0;
+            count -= blocks[b].count;
+        }
+        
+        if( blocks[b] == null )
+            blocks[b] = new Block( blockWords );
+        else
+            blocks[b].clear();
+        return blocks[b];
+    }
+    
+    /** adds a point (times must not decrease) */
+    public void add( long time, double value ) {
+        long v = Double.doubleToRawLongBits( value );
+        Block b = (numBlocks == 0) ? null : blocks[index(numBlocks - 1)];
+        
+        if( b == null || b.words.length * 64 - b.numBits < MAX_POINT_BITS ) {
+            // start a new block with the full time and value
+            b = newBlock();
+            b.firstTime = time;
+            b.write( time, 64 );
+            b.write( v, 64 );
+            b.prevTime = time;
+            b.prevDelta = 0;
+            b.prevValue = v;
+            b.prevLead = -1;
+            b.prevTrail = 0;
+        }
+        else {
+            // time: delta of the delta
+            long delta = time - b.prevTime;
+            long dod = delta - b.prevDelta;
+            if( dod == 0 )
+                b.write( 0, 1 );
+            else if( dod >= -64 && dod < 64 ) {
+                b.write( 2, 2 );
+                b.write( dod, 7 );
+            }
+            else if( dod >= -256 && dod < 256 ) {
+                b.write( 6, 3 );
+                b.write( dod, 9 );
+            }
+            else if( dod >= -2048 && dod < 2048 ) {
+                b.write( 14, 4 );
+                b.write( dod, 12 );
+            }
+            else if( dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE ) {
+                b.write( 30, 5 );
+                b.write( dod, 32 );
+            }
+            else {
+                b.write( 31, 5 );
+                b.write( dod, 64 );
+            }
+            b.prevTime = time;
+            b.prevDelta = delta;
+            
+            // value: XOR with the previous value
+            long xor = v ^ b.prevValue;
+            if( xor == 0 )
+                b.write( 0, 1 );
+            else {
+                int lead = Long.numberOfLeadingZeros( xor );
+                int trail = Long.numberOfTrailingZeros( xor );
+                if( b.prevLead >= 0 && lead >= b.prevLead && trail >= b.prevTrail ) {
+                    // the changed bits fit in the previous window
+                    b.write( 2, 2 );
+                    b.write( xor >>> b.prevTrail, 64 - b.prevLead - b.prevTrail );
+                }
+                else {
+                    int len = 64 - lead - trail;
+                    b.write( 3, 2 );
+                    b.write( lead, 6 );
+                    b.write( len - 1, 6 );
+                    b.write( xor >>> trail, len );
+                    b.prevLead = lead;
+                    b.prevTrail = trail;
+                }
+            }
+            b.prevValue = v;
+        }
+        
+        b.count += 1;
+        count += 1;
+    }
+    
+    /**
+     * Returns a decoder positioned before the first point whose time is at
+     * least time (it may also return a few earlier points of the same block;
+     * callers skip those).
+     */
+    public Decoder decoder( long time, Decoder d ) {
+        if( d == null )
+            d = new Decoder();
+        
+        // find the last block which starts before time
+        int lo = 0, hi = numBlocks;
+        while( lo < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if( blocks[index(mid)].firstTime < time )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        d.start( this, Math.max( 0, lo - 1 ) );
+        return d;
+    }
+    
+    /**
+     * Replaces the contents of out with the points from from (inclusive) to
+     * to (exclusive), decimating them if they do not all fit in out.
+     * @return the number of points decoded in the window
+     */
+    public int read( long from, long to, RingSeries out, Decoder d ) {
+        int n = 0;
+        d = decoder( from, d );
+        while( d.next() && d.getX() < to )
+            if( d.getX() >= from )
+                n += 1;
+        
+        long bucketWidth = 0;
+        if( n > out.getCapacity() ) {
+            int buckets = Math.max( 1, out.getCapacity() / DecimatingSeries.POINTS_PER_BUCKET - 1 );
+            bucketWidth = Math.max( 1, (to - from) / buckets );
+        }
+        
+        out.clear();
+        DecimatingSeries dec = new DecimatingSeries( out, bucketWidth );
+        d = decoder( from, d );
+        while( d.next() && d.getX() < to )
+            if( d.getX() >= from )
+                dec.add( d.getX(), d.getY() );
+        
+        return n;
+    }
+    
+    /**
+     * Writes every point as a "time value" line (values which are whole
+     * numbers are written without a fraction).
+     * @return the number of points written
+     */
+    public int writeTo( java.io.Writer out ) throws java.io.IOException {
+        int n = 0;
+        Decoder d = decoder( Long.MIN_VALUE, null );
+        while( d.next() ) {
+            double y = d.getY();
+            String value = (y == Math.rint(y) && Math.abs(y) < 1e15) ? Long.toString((long)y) : Double.toString(y);
+            out.write( d.getX() + " " + value + "\n" );
+            n += 1;
+        }
+        return n;
+    }
+    
+    /**
+     * Decodes the points sequentially from oldest to newest.  A decoder may be
+     * reused (see decoder()) so decoding does not allocate.  The series must
+     * not change while it is being decoded.
+     */
+    public static class Decoder {
+        private CompressedSeries s;
+        private int blockNum;
+        private Block b;
+        private int bitPos, numInBlock;
+        
+        private long time, delta, value;
+        private int lead, trail;
+        
+        void start( CompressedSeries s, int blockNum ) {
+            this.s = s;
+            this.blockNum = blockNum;
+            this.b = (blockNum < s.numBlocks) ? s.blocks[s.index(blockNum)] : null;
+            bitPos = 0;
+            numInBlock = 0;
+        }
+        
+        private long read( int n ) {
+            int w = bitPos >>> 6;
+            int used = bitPos & 63;
+            long bits;
+            if( used + n <= 64 )
+                bits = (b.words[w] << used) >>> (64 - n);
+            else {
+                int rest = used + n - 64;
+                bits = ((b.words[w] << used) >>> (64 - n)) | (b.words[w + 1] >>> (64 - rest));
+            }
+            bitPos += n;
+            return bits;
+        }
+        
+        /** reads n bits as a two's complement number */
+        private long readSigned( int n ) {
+            long bits = read( n );
+            return (bits << (64 - n)) >> (64 - n);
+        }
+        
+        /** moves to the next point; returns false if there are no more */
+        public boolean next() {
+            while( b != null && numInBlock == b.count ) {
+                blockNum += 1;
+                b = (blockNum < s.numBlocks) ? s.blocks[s.index(blockNum)] : null;
+                bitPos = 0;
+                numInBlock = 0;
+            }
+            if( b == null )
+                return false;
+            
+            if( numInBlock == 0 ) {
+                time = read( 64 );
+                value = read( 64 );
+                delta = 0;
+                lead = -1;
+                trail = 0;
+            }
+            else {
+                long dod;
+                if( read(1) == 0 )
+                    dod = 0;
+                else if( read(1) == 0 )
+                    dod = readSigned( 7 );
+                else if( read(1) == 0 )
+                    dod = readSigned( 9 );
+                else if( read(1) == 0 )
+                    dod = readSigned( 12 );
+                else if( read(1) == 0 )
+                    dod = readSigned( 32 );
+                else
+                    dod = read( 64 );
+                delta += dod;
+                time += delta;
+                
+                if( read(1) != 0 ) {
+                    if( read(1) == 0 )
+                        value ^= read( 64 - lead - trail ) << trail;
+                    else {
+                        lead = (int)read( 6 );
+                        int len = (int)read( 6 ) + 1;
+                        trail = 64 - lead - len;
+                        value ^= read( len ) << trail;
+                    }
+                }
+            }
+            
+            numInBlock += 1;
+            return true;
+        }
+        
+        public long getX() {
+            return time;
+        }
+        
+        public double getY() {
+            return Double.longBitsToDouble( value );
+        }
+    }
+}
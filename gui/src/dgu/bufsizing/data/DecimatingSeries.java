@@ -0,0 +1,127 @@
+package dgu.bufsizing.data;
+
+/**
+ * Decimates points into a RingSeries as they arrive.  Time is split into
+ * buckets (ideally one per pixel column of the chart) and only the first,
+ * minimum, maximum and last points of each bucket are kept, in the order they
+ * arrived.  Peaks are therefore exact while the renderer draws at most four
+ * points per bucket no matter how many points were added.
+ *
+ * Adding a point is O(1) and never allocates: the points for the current
+ * bucket are simply rewritten at the end of the output series.
+ *
+ * @author David Underhill
+ */
+public class DecimatingSeries {
+    /** most points written to the output for each bucket */
+    public static final int POINTS_PER_BUCKET = 4;
+    
+    private final RingSeries out;
+    
+    /** width of each bucket in x units (0 => keep every point) */
+    private long bucketWidth;
+    
+    /** start of the current bucket */
+    private long bucketStart;
+    
+    /** number of points written to the output for the current bucket */
+    private int numOut = 0;
+    
+    // the interesting points in the current bucket, and the order they arrived in
+    private int numInBucket;
+    private long firstX, minX, maxX, lastX;
+    private double firstY, minY, maxY, lastY;
+    private int minSeq, maxSeq;
+    
+    /**
+     * Creates a decimator.
+     * @param out          where the decimated points are written
+     * @param bucketWidth  width of each bucket in x units (0 => no decimation)
+     */
+    public DecimatingSeries( RingSeries out, long bucketWidth ) {
+        this.out = out;
+        this.bucketWidth = bucketWidth;
+    }
+    
+    public RingSeries getSeries() {
+        return out;
+    }
+    
+    public long getBucketWidth() {
+        return bucketWidth;
+    }
+    
+    /**
+     * Changes the bucket width (e.g. when the chart is resized).  Points
+     * already written are left alone; new points start a new bucket.
+     */
+    public void setBucketWidth( long bucketWidth ) {
+        if( this.bucketWidth != bucketWidth ) {
+            this.bucketWidth = bucketWidth;
+            numOut = 0;
+        }
+    }
+    
+    /** forgets the current bucket (call after clearing the output series) */
+    public void reset() {
+        numOut = 0;
+    }
+    
+    public void add( long x, double y ) {
+        if( bucketWidth <= 0 ) {
+            out.add( x, y );
+            return;
+        }
+        
+        long bucket = x - (x % bucketWidth);
+        if( numOut == 0 || bucket != bucketStart ) {
+            // start a new bucket with this point
+            bucketStart = bucket;
+            numInBucket = 1;
+            firstX = minX = maxX = lastX = x;
+            firstY = minY = maxY = lastY = y;
+            minSeq = maxSeq = 0;
+            out.add( x, y );
+            numOut = 1;
+            return;
+        }
+        
+        // update the bucket's interesting points
+        int seq = numInBucket++;
+        if( y < minY ) {
+            minX = x;
+            minY = y;
+            minSeq = seq;
+        }
+        if( y > maxY ) {
+            maxX = x;
+            maxY = y;
+            maxSeq = seq;
+        }
+        lastX = x;
+        lastY = y;
+        
+        // rewrite the bucket's points: first, then min and max in the order
+        // they arrived, then last (each point is written only once)
+        while( numOut > 0 ) {
+            out.removeLast();
+            numOut -= 1;
+        }
+        
+        emit( firstX, firstY );
+        if( minSeq < maxSeq ) {
+            if( minSeq != 0 ) emit( minX, minY );
+            if( maxSeq != seq ) emit( maxX, maxY );
+        }
+        else if( maxSeq < minSeq ) {
+            if( maxSeq != 0 ) emit( maxX, maxY );
+            if( minSeq != seq ) emit( minX, minY );
+        }
+        emit( lastX, lastY );
+    }
+    
+    private void emit( long x, double y ) {
+        out.add( x, y );
+        numOut += 1;
+    }
+}
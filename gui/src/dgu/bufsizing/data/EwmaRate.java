@@ -0,0 +1,102 @@
+package dgu.bufsizing.data;
+
+/**
+ * An exponentially weighted moving average of the rate with a fixed half-life
+ * in time (rather than per sample), so the smoothing does not depend on how
+ * often events arrive.  Bytes sent at the same time are grouped into one
+ * sample.  The decay factor 2^(-dt/halfLife) is looked up in a fixed-point
+ * table, so updates use long arithmetic only.
+ *
+ * @author David Underhill
+ */
+public class EwmaRate implements RateEstimator {
+    /** fixed-point fraction bits of the decay factor */
+    private static final int FRAC_BITS = 20;
+    private static final long ONE = 1L << FRAC_BITS;
+    
+    /** 2^(-i/256) in fixed-point (with one extra entry, 2^-1, to interpolate towards) */
+    private static final int TABLE_BITS = 8;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final long[] POW2_NEG_FRAC = new long[TABLE_SIZE + 1];
+    static {
+        for( int i=0; i<POW2_NEG_FRAC.length; i++ )
+            POW2_NEG_FRAC[i] = Math.round( Math.pow(2, -i / (double)TABLE_SIZE) * ONE );
+    }
+    
+    /** fraction bits used to interpolate between table entries */
+    private static final int INTERP_BITS = 16;
+    
+    /** samples are capped at this rate (~1Tbps) so the fixed-point math cannot overflow */
+    private static final long MAX_RATE_BPS = 1L << 40;
+    
+    private final long halfLife_ns8;
+    
+    private long rate_bps = 0;
+    private long lastTime_ns8 = -1;
+    
+    /** bytes sent since lastTime_ns8 */
+    private long pendingBytes = 0;
+    
+    /**
+     * Creates an estimator.
+     * @param halfLife_ns8  how long it takes (in 8ns units) for a sample's weight to halve
+     */
+    public EwmaRate( long halfLife_ns8 ) {
+        this.halfLife_ns8 = Math.max( 1, halfLife_ns8 );
+    }
+    
+    public long getHalfLife_ns8() {
+        return halfLife_ns8;
+    }
+    
+    /** returns 2^(-dt/halfLife) in fixed-point */
+    private long decay( long dt_ns8 ) {
+        if( dt_ns8 >= halfLife_ns8 * FRAC_BITS )
+            return 0;
+        
+        // interpolate between entries so gaps much shorter than halfLife/256
+        // (e.g. back to back packets) still decay the average a little
+        long x = (dt_ns8 << (TABLE_BITS + INTERP_BITS)) / halfLife_ns8;
+        int i = (int)((x >> INTERP_BITS) & (TABLE_SIZE - 1));
+        long f = x & ((1 << INTERP_BITS) - 1);
+        long d = POW2_NEG_FRAC[i] - (((POW2_NEG_FRAC[i] - POW2_NEG_FRAC[i + 1]) * f) >> INTERP_BITS);
+        return d >> (x >> (TABLE_BITS + INTERP_BITS));
+    }
+    
+    /** folds the bytes sent since the last update into the average */
+    private void update( long time_ns8 ) {
+        long dt_ns8 = time_ns8 - lastTime_ns8;
+        if( dt_ns8 <= 0 )
+            return;
+        
+        long sample_bps = Math.min( MAX_RATE_BPS, pendingBytes * 8 * NS8_PER_SEC / dt_ns8 );
+        long d = decay( dt_ns8 );
+        rate_bps = (rate_bps * d + sample_bps * (ONE - d)) >> FRAC_BITS;
+        pendingBytes = 0;
+        lastTime_ns8 = time_ns8;
+    }
+    
+    public void add( long time_ns8, long num_bytes ) {
+        if( lastTime_ns8 < 0 ) {
+            lastTime_ns8 = time_ns8;
+            return; /* nothing to measure the first bytes against */
+        }
+        
+        pendingBytes += num_bytes;
+        update( time_ns8 );
+    }
+    
+    public long getRate_bps( long time_ns8 ) {
+        if( lastTime_ns8 < 0 )
+            return 0;
+        
+        update( time_ns8 );
+        return rate_bps;
+    }
+    
+    public void reset( long time_ns8 ) {
+        rate_bps = 0;
+        pendingBytes = 0;
+        lastTime_ns8 = time_ns8;
+    }
+}
@@ -0,0 +1,325 @@
+package dgu.bufsizing.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An append-only history of (time, value) records kept in memory-mapped
+ * segment files rather than on the heap.  Each record is a fixed 16 bytes
+ * (8 byte time, 8 byte value) so the i'th record's position is known without
+ * an index.  Records are kept in time order (a time earlier than the previous
+ * record's is clamped to it), so finding the first record at or after a time
+ * is a binary search over the segments' first times followed by a binary
+ * search within one segment.
+ *
+ * Only the newest maxSegments segments are kept; older segment files are
+ * deleted.  Segment files left by a previous run are deleted when a history
+ * is created.  Creating, mapping and deleting segment files is done ahead of
+ * time on a shared helper thread so appends (which happen on the ingest path)
+ * never wait on the file system unless the helper falls behind.  This class
+ * is not synchronized; BottleneckLink guards it with its own lock.
+ *
+ * @author David Underhill
+ */
+public class MappedHistory {
+    /** bytes in one record */
+    public static final int RECORD_LEN = 16;
+    
+    /** default records per segment (16MB segment files) */
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 1024 * 1024;
+    
+    /** default maximum number of segments to keep */
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    
+    /** one memory-mapped segment file */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buf;
+        
+        /** number of the first record in this segment (set once it is used) */
+        long base;
+        
+        /** time of the first record in this segment */
+        long firstTime_ns8;
+        
+        /** number of records in this segment */
+        int count = 0;
+        
+        Segment( File file, MappedByteBuffer buf ) {
+            this.file = file;
+            this.buf = buf;
+        }
+        
+        long getTime( int i ) {
+            return buf.getLong( i * RECORD_LEN );
+        }
+        
+        double getValue( int i ) {
+            return buf.getDouble( i * RECORD_LEN + 8 );
+        }
+    }
+    
+    /** creates, maps and deletes segment files for every history */
+    private static final ExecutorService helper = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "History Segment Helper" );
+            t.setDaemon( true );
+            return t;
+        }
+    });
+    
+    private final File dir;
+    private final String name;
+    private final int recordsPerSegment;
+    private final int maxSegments;
+    
+    /** segments from oldest to newest */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    
+    /** number of segment files created so far (used to name them) */
+    private int numSegmentsCreated = 0;
+    
+    /** the next segment, being mapped ahead of time by the helper */
+    private Future<Segment> nextSegment;
+    
+    /** time of the newest record */
+    private long lastTime_ns8 = Long.MIN_VALUE;
+    
+    /** set once a segment could not be created (later appends are ignored) */
+    private boolean failed = false;
+    
+    /** creates a history with the default segment size and limit */
+    public MappedHistory( File dir, String name ) {
+        this( dir, name, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_MAX_SEGMENTS );
+    }
+    
+    /**
+     * Creates an empty history.  Segment files are named name-N.hist.
+     * @param dir                where to put the segment files (created if needed)
+     * @param name               prefix of the segment files
+     * @param recordsPerSegment  number of records in each segment file
+     * @param maxSegments        number of segments to keep before deleting the oldest
+     */
+    public MappedHistory( File dir, String name, int recordsPerSegment, int maxSegments ) {
+        this.dir = dir;
+        this.name = name;
+        this.recordsPerSegment = Math.max( 1, recordsPerSegment );
+        this.maxSegments = Math.max( 1, maxSegments );
+        
+        // remove the previous run's segments before the first new one is made
+        helper.submit( new Runnable() {
+            public void run() {
+                deleteOldSegments();
+            }
+        });
+        mapNextSegment();
+    }
+    
+    /** deletes segment files of this history's name which are already in dir */
+    private void deleteOldSegments() {
+        File[] files = dir.listFiles();
+        if( files == null )
+            return;
+        
+        for( File f : files )
+            if( f.getName().matches(java.util.regex.Pattern.quote(name) + "-\\d+\\.hist") && !f.delete() )
+                System.err.println( "Warning: unable to delete old history segment " + f );
+    }
+    
+    /** returns the number of the oldest record still kept */
+    public long getFirstIndex() {
+        return segments.isEmpty() ? 0 : segments.get( 0 ).base;
+    }
+    
+    /** returns one more than the number of the newest record */
+    public long getEndIndex() {
+        if( segments.isEmpty() )
+            return 0;
+        
+        Segment s = segments.get( segments.size() - 1 );
+        return s.base + s.count;
+    }
+    
+    /** has the helper start creating and mapping the next segment */
+    private void mapNextSegment() {
+        final File f = new File( dir, name + "-" + numSegmentsCreated++ + ".hist" );
+        final long len = (long)recordsPerSegment * RECORD_LEN;
+        nextSegment = helper.submit( new Callable<Segment>() {
+            public Segment call() {
+                return mapSegment( f, len );
+            }
+        });
+    }
+    
+    /** creates and maps a segment file (on the helper); returns null on failure */
+    private Segment mapSegment( File f, long len ) {
+        try {
+            dir.mkdirs();
+            RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+            try {
+                raf.setLength( len );
+                MappedByteBuffer buf = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, len );
+                return new Segment( f, buf );
+            }
+            finally {
+                raf.close(); // the mapping stays valid after the channel is closed
+            }
+        }
+        catch( IOException e ) {
+            System.err.println( "Error: unable to create history segment " + f + ": " + e.getMessage() );
+            return null;
+        }
+    }
+    
+    /** 
+     * takes the segment mapped ahead of time (only waiting if the helper has
+     * not finished it yet) and starts mapping the one after it
+     */
+    private Segment newSegment() {
+        Segment s;
+        try {
+            s = nextSegment.get();
+        }
+        catch( Exception e ) {
+            System.err.println( "Error: unable to create history segment: " + e );
+            s = null;
+        }
+        
+        if( s != null ) {
+            s.base = getEndIndex();
+            mapNextSegment();
+        }
+        return s;
+    }
+    
+    /** has the helper delete a segment's file */
+    private static void deleteSegment( final Segment s ) {
+        helper.submit( new Runnable() {
+            public void run() {
+                if( !s.file.delete() )
+                    System.err.println( "Warning: unable to delete history segment " + s.file );
+            }
+        });
+    }
+    
+    /** appends a record to the history */
+    public void append( long time_ns8, double value ) {
+        if( failed )
+            return;
+        
+        // keep the records in time order
+        if( time_ns8 < lastTime_ns8 )
+            time_ns8 = lastTime_ns8;
+        
+        Segment s = segments.isEmpty() ? null : segments.get( segments.size() - 1 );
+        if( s == null || s.count == recordsPerSegment ) {
+            s = newSegment();
+            if( s == null ) {
+                failed = true;
+                return;
+            }
+            
+            s.firstTime_ns8 = time_ns8;
+            segments.add( s );
+            if( segments.size() > maxSegments )
+                deleteSegment( segments.remove(0) );
+        }
+        
+        int off = s.count * RECORD_LEN;
+        s.buf.putLong( off, time_ns8 );
+        s.buf.putDouble( off + 8, value );
+        s.count += 1;
+        lastTime_ns8 = time_ns8;
+    }
+    
+    /** returns the segment holding record i (which must be kept) */
+    private Segment getSegment( long i ) {
+        return segments.get( (int)((i - getFirstIndex()) / recordsPerSegment) );
+    }
+    
+    /** returns the time of record i */
+    public long getTime( long i ) {
+        Segment s = getSegment( i );
+        return s.getTime( (int)(i - s.base) );
+    }
+    
+    /** returns the value of record i */
+    public double getValue( long i ) {
+        Segment s = getSegment( i );
+        return s.getValue( (int)(i - s.base) );
+    }
+    
+    /**
+     * Returns the number of the first record whose time is at least time_ns8
+     * (getEndIndex() if there is none).
+     */
+    public long find( long time_ns8 ) {
+        // find the last segment which starts before time_ns8
+        int lo = 0, hi = segments.size();
+        while( lo < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if( segments.get(mid).firstTime_ns8 < time_ns8 )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if( lo == 0 )
+            return getFirstIndex();
+        
+        // find the first record at or after time_ns8 in that segment
+        Segment s = segments.get( lo - 1 );
+        int a = 0, b = s.count;
+        while( a < b ) {
+            int mid = (a + b) >>> 1;
+            if( s.getTime(mid) < time_ns8 )
+                a = mid + 1;
+            else
+                b = mid;
+        }
+        return s.base + a;
+    }
+    
+    /**
+     * Replaces the contents of out with the records from from_ns8 (inclusive)
+     * to to_ns8 (exclusive).  If there are more records than out can hold,
+     * they are decimated (keeping each bucket's first, min, max and last
+     * point) so that the whole window fits.
+     * @return the number of records read from the history
+     */
+    public long read( long from_ns8, long to_ns8, RingSeries out ) {
+        long first = find( from_ns8 );
+        long end = find( to_ns8 );
+        
+        long bucketWidth_ns8 = 0;
+        if( end - first > out.getCapacity() ) {
+            // one bucket to spare since the window may not start on a bucket boundary
+            int buckets = Math.max( 1, out.getCapacity() / DecimatingSeries.POINTS_PER_BUCKET - 1 );
+            bucketWidth_ns8 = Math.max( 1, (to_ns8 - from_ns8) / buckets );
+        }
+        
+        out.clear();
+        DecimatingSeries dec = new DecimatingSeries( out, bucketWidth_ns8 );
+        for( long i=first; i<end; i++ )
+            dec.add( getTime(i), getValue(i) );
+        
+        return end - first;
+    }
+    
+    /** forgets every record and deletes the segment files */
+    public void clear() {
+        for( Segment s : segments )
+            deleteSegment( s );
+        
+        segments.clear();
+        lastTime_ns8 = Long.MIN_VALUE;
+    }
+}
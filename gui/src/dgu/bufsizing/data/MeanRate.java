@@ -0,0 +1,53 @@
+package dgu.bufsizing.data;
+
+/**
+ * The exact average rate since the estimator was last reset: the number of
+ * bits sent divided by the time which has passed.
+ *
+ * @author David Underhill
+ */
+public class MeanRate implements RateEstimator {
+    private long start_ns8 = -1;
+    private long bytes = 0;
+    
+    public void add( long time_ns8, long num_bytes ) {
+        if( start_ns8 < 0 )
+            start_ns8 = time_ns8;
+        
+        bytes += num_bytes;
+    }
+    
+    public long getRate_bps( long time_ns8 ) {
+        if( start_ns8 < 0 )
+            return 0;
+        
+        // +1 to avoid div by 0 ... 8ns won't matter
+        long span_ns8 = time_ns8 - start_ns8 + 1;
+        return (span_ns8 <= 0) ? 0 : toRate_bps( bytes, span_ns8 );
+    }
+    
+    /**
+     * Returns the rate of num_bytes sent over span_ns8 (> 0).  The division is
+     * split into whole and remainder parts so bits * NS8_PER_SEC never has to
+     * fit in a long (it would overflow after ~9.2GB, i.e. ~74s at 1Gbps).
+     */
+    static long toRate_bps( long num_bytes, long span_ns8 ) {
+        long bits = num_bytes * 8;
+        long whole = bits / span_ns8;
+        long rem = bits % span_ns8;
+        
+        // rem < span_ns8, so this only overflows for spans over ~10 minutes
+        long frac;
+        if( rem <= Long.MAX_VALUE / NS8_PER_SEC )
+            frac = rem * NS8_PER_SEC / span_ns8;
+        else
+            frac = (long)(rem * (double)NS8_PER_SEC / span_ns8);
+        
+        return whole * NS8_PER_SEC + frac;
+    }
+    
+    public void reset( long time_ns8 ) {
+        start_ns8 = time_ns8;
+        bytes = 0;
+    }
+}
@@ -0,0 +1,205 @@
+package dgu.bufsizing.data;
+
+/**
+ * A time-weighted histogram of queue occupancy.  Each occupancy is weighted
+ * by how long the queue stayed at it, so quantiles describe the fraction of
+ * time the queue was at or below a size (not the fraction of events).
+ *
+ * Buckets are log-linear: values below 16 get their own bucket and each
+ * power of two above that is split into 16 buckets, so a value is never off
+ * by more than 1/16th (~6%) and 448 buckets cover every int.  Recording an
+ * event is a few shifts and adds and never allocates.
+ *
+ * The histogram covers a window which starts when it is reset (e.g. at the
+ * start of each auto-mode measurement).  Snapshots copy the window so charts
+ * and exports can use them without holding the link's lock, and snapshots
+ * can be merged.  This class is not synchronized; BottleneckLink guards it
+ * with its own lock.
+ *
+ * @author David Underhill
+ */
+public class OccupancyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    /** number of buckets needed to cover every non-negative int */
+    public static final int NUM_BUCKETS = SUB_BUCKETS + (31 - SUB_BITS) * SUB_BUCKETS;
+    
+    /** returns the bucket value falls into */
+    public static int bucketOf( int value ) {
+        if( value < SUB_BUCKETS )
+            return (value < 0) ? 0 : value;
+        
+        int e = 31 - Integer.numberOfLeadingZeros( value ) - SUB_BITS;
+        return SUB_BUCKETS + e * SUB_BUCKETS + ((value >>> e) - SUB_BUCKETS);
+    }
+    
+    /** returns the smallest value in bucket b */
+    public static long bucketLow( int b ) {
+        if( b < SUB_BUCKETS )
+            return b;
+        
+        int e = (b - SUB_BUCKETS) / SUB_BUCKETS;
+        long m = (b - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return m << e;
+    }
+    
+    /** returns the largest value in bucket b */
+    public static long bucketHigh( int b ) {
+        return bucketLow( b + 1 ) - 1;
+    }
+    
+    /** a copy of a window of the histogram */
+    public static class Snapshot {
+        /** time (8ns units) spent in each bucket */
+        public final long[] time_ns8 = new long[NUM_BUCKETS];
+        
+        /** total time covered */
+        public long total_ns8 = 0;
+        
+        /** time spent with the buffer full */
+        public long full_ns8 = 0;
+        
+        /** integral of occupancy over time (bytes * 8ns) */
+        public double occTime = 0;
+        
+        /** largest occupancy seen */
+        public int max = 0;
+        
+        /** when the window started */
+        public long start_ns8 = 0;
+        
+        public void clear() {
+            java.util.Arrays.fill( time_ns8, 0L );
+            total_ns8 = full_ns8 = 0;
+            occTime = 0;
+            max = 0;
+        }
+        
+        /** makes this a copy of s */
+        public void copy( Snapshot s ) {
+            System.arraycopy( s.time_ns8, 0, time_ns8, 0, NUM_BUCKETS );
+            total_ns8 = s.total_ns8;
+            full_ns8 = s.full_ns8;
+            occTime = s.occTime;
+            max = s.max;
+            start_ns8 = s.start_ns8;
+        }
+        
+        /** returns whether this covers no time and saw no occupancy */
+        public boolean isEmpty() {
+            return total_ns8 == 0 && max == 0;
+        }
+        
+        /**
+         * Adds s's time to this (e.g. to combine windows or links).  Empty
+         * snapshots are ignored so they do not move the start of the window.
+         */
+        public void merge( Snapshot s ) {
+            if( s.isEmpty() )
+                return;
+            if( isEmpty() ) {
+                copy( s );
+                return;
+            }
+            
+            for( int b=0; b<NUM_BUCKETS; b++ )
+                time_ns8[b] += s.time_ns8[b];
+            total_ns8 += s.total_ns8;
+            full_ns8 += s.full_ns8;
+            occTime += s.occTime;
+            max = Math.max( max, s.max );
+            start_ns8 = Math.min( start_ns8, s.start_ns8 );
+        }
+        
+        /**
+         * Returns the occupancy the queue was at or below for fraction p of
+         * the time (the middle of the bucket the quantile falls in).
+         */
+        public long getQuantile( double p ) {
+            if( total_ns8 == 0 )
+                return 0;
+            
+            long target = (long)Math.ceil( p * total_ns8 );
+            long sum = 0;
+            for( int b=0; b<NUM_BUCKETS; b++ ) {
+                sum += time_ns8[b];
+                if( sum >= target && time_ns8[b] > 0 )
+                    return Math.min( max, (bucketLow(b) + bucketHigh(b)) / 2 );
+            }
+            return max;
+        }
+        
+        /** returns the time-weighted mean occupancy */
+        public double getMean() {
+            return (total_ns8 == 0) ? 0 : occTime / total_ns8;
+        }
+        
+        /** returns the fraction of the time the buffer was full */
+        public double getFractionFull() {
+            return (total_ns8 == 0) ? 0 : full_ns8 / (double)total_ns8;
+        }
+        
+        public String toString() {
+            return "p50=" + getQuantile(0.5) + "B p99=" + getQuantile(0.99) + "B mean=" + (int)getMean()
+                   + "B max=" + max + "B full=" + (int)(getFractionFull() * 100) + "%";
+        }
+    }
+    
+    /** the current window */
+    private final Snapshot cur = new Snapshot();
+    
+    /** the occupancy since the last event (-1 => no event yet) */
+    private int lastOcc = -1;
+    private boolean lastFull = false;
+    private long lastTime_ns8 = 0;
+    
+    /**
+     * Notes that the queue's occupancy changed to occ at time_ns8.  The
+     * previous occupancy is weighted by the time it lasted.
+     * @param full  whether the buffer is full at this occupancy
+     */
+    public void record( long time_ns8, int occ, boolean full ) {
+        if( occ < 0 )
+            occ = 0;
+        
+        if( lastOcc >= 0 ) {
+            long dt = time_ns8 - lastTime_ns8;
+            if( dt > 0 ) {
+                cur.time_ns8[bucketOf(lastOcc)] += dt;
+                cur.total_ns8 += dt;
+                cur.occTime += (double)lastOcc * dt;
+                if( lastFull )
+                    cur.full_ns8 += dt;
+            }
+        }
+        else
+            cur.start_ns8 = time_ns8;
+        
+        if( occ > cur.max )
+            cur.max = occ;
+        
+        lastOcc = occ;
+        lastFull = full;
+        lastTime_ns8 = time_ns8;
+    }
+    
+    /** starts a new window (the current occupancy carries over into it) */
+    public void reset() {
+        cur.clear();
+        cur.start_ns8 = lastTime_ns8;
+        if( lastOcc > 0 )
+            cur.max = lastOcc;
+    }
+    
+    /**
+     * Copies the current window into out.
+     * @param out  reused if not null
+     */
+    public Snapshot snapshot( Snapshot out ) {
+        if( out == null )
+            out = new Snapshot();
+        out.copy( cur );
+        return out;
+    }
+}
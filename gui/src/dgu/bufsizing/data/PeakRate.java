@@ -0,0 +1,42 @@
+package dgu.bufsizing.data;
+
+/**
+ * Tracks the highest rate a sliding window estimator has reported since the
+ * last reset.  Readings are only considered once the window is full so a
+ * burst right after a reset does not look like a huge rate.
+ *
+ * @author David Underhill
+ */
+public class PeakRate implements RateEstimator {
+    private final WindowedRate window;
+    private long peak_bps = 0;
+    
+    /** tracks the peak of the rate over windows of numBuckets * bucketWidth_ns8 */
+    public PeakRate( long bucketWidth_ns8, int numBuckets ) {
+        window = new WindowedRate( bucketWidth_ns8, numBuckets );
+    }
+    
+    public void add( long time_ns8, long num_bytes ) {
+        window.add( time_ns8, num_bytes );
+        if( window.isWarm(time_ns8) ) {
+            long r = window.getRate_bps( time_ns8 );
+            if( r > peak_bps )
+                peak_bps = r;
+        }
+    }
+    
+    /** returns the peak rate seen (time_ns8 is only used to check the current window) */
+    public long getRate_bps( long time_ns8 ) {
+        if( window.isWarm(time_ns8) ) {
+            long r = window.getRate_bps( time_ns8 );
+            if( r > peak_bps )
+                peak_bps = r;
+        }
+        return peak_bps;
+    }
+    
+    public void reset( long time_ns8 ) {
+        window.reset( time_ns8 );
+        peak_bps = 0;
+    }
+}
@@ -0,0 +1,22 @@
+package dgu.bufsizing.data;
+
+/**
+ * Estimates the rate at which bytes are sent from a stream of (time, bytes)
+ * events.  Times are in units of 8ns.  Implementations use long arithmetic
+ * only (rates stay exact at multi-gigabit speeds) and never allocate.
+ *
+ * @author David Underhill
+ */
+public interface RateEstimator {
+    /** number of 8ns units in a second */
+    public static final long NS8_PER_SEC = 125000000L;
+    
+    /** notes that num_bytes were sent at time_ns8 */
+    public void add( long time_ns8, long num_bytes );
+    
+    /** returns the estimated rate in bits per second as of time_ns8 */
+    public long getRate_bps( long time_ns8 );
+    
+    /** forgets everything sent before time_ns8 */
+    public void reset( long time_ns8 );
+}
@@ -0,0 +1,285 @@
+package dgu.bufsizing.data;
+
+/**
+ * A fixed-capacity series of (time, value) points stored in parallel primitive
+ * arrays.  Once the series is full, each new point overwrites the oldest one,
+ * so adding a point is O(1) and never allocates.  Points are indexed from
+ * oldest (0) to newest (getItemCount()-1).
+ *
+ * The minimum and maximum value are kept up to date as points are added,
+ * evicted and removed so charts can find their range in O(1).  The points
+ * are split into two stacks: the older points keep the min/max of themselves
+ * and every newer point in the older stack, and the newer points keep the
+ * min/max of themselves and every older point in the newer stack.  Evicting
+ * pops the older stack and removeLast() pops the newer one; when a stack runs
+ * dry the points are split in half again, so each operation is amortized
+ * O(1).  (A monotonic deque cannot undo removeLast(), which DecimatingSeries
+ * uses to rewrite its newest points.)
+ *
+ * Every point also has a position which counts the points added (less those
+ * removed by removeLast()) since the series was created, so a copy of the
+ * series kept by another thread can be brought up to date with a Delta of
+ * just the points which changed since it was last updated.
+ *
+ * This class is not synchronized; BottleneckLink guards its series with its
+ * own lock.
+ *
+ * @author David Underhill
+ */
+public class RingSeries {
+    private final Comparable key;
+    private final long[] x;
+    private final double[] y;
+    
+    /** running min/max of each point's stack (see above) */
+    private final double[] aggMin, aggMax;
+    
+    /** index of the oldest point */
+    private int head = 0;
+    
+    /** number of points in the series */
+    private int count = 0;
+    
+    /** number of points in the older stack (points 0 to split-1) */
+    private int split = 0;
+    
+    /** position of the next point added (see above) */
+    private long end = 0;
+    
+    /** lowest end since takeLowEnd() was last called */
+    private long lowEnd = 0;
+    
+    /**
+     * The points of a series from one position on, used to bring a copy of
+     * the series up to date.  A delta from an older position includes
+     * everything a newer one does, so applying it again is harmless.
+     */
+    public static class Delta {
+        /** the copy's points from this position on are replaced */
+        private final long from;
+        
+        /** position of the series' oldest point */
+        private final long start;
+        
+        /** the points from position max(from, start) on */
+        private final long[] x;
+        private final double[] y;
+        
+        private Delta( long from, long start, long[] x, double[] y ) {
+            this.from = from;
+            this.start = start;
+            this.x = x;
+            this.y = y;
+        }
+        
+        /** returns the number of points in the delta */
+        public int size() {
+            return x.length;
+        }
+    }
+    
+    /**
+     * Creates an empty series.
+     * @param key       the series' name (shown in the chart legend)
+     * @param capacity  maximum number of points to keep
+     */
+    public RingSeries( Comparable key, int capacity ) {
+        if( capacity < 1 )
+            capacity = 1;
+        
+        this.key = key;
+        x = new long[capacity];
+        y = new double[capacity];
+        aggMin = new double[capacity];
+        aggMax = new double[capacity];
+    }
+    
+    public Comparable getKey() {
+        return key;
+    }
+    
+    /** returns the maximum number of points the series keeps */
+    public int getCapacity() {
+        return x.length;
+    }
+    
+    public int getItemCount() {
+        return count;
+    }
+    
+    /** adds a point, replacing the oldest point if the series is full */
+    public void add( long time, double value ) {
+        if( count == x.length )
+            removeFirst();
+        
+        int i = index( count );
+        x[i] = time;
+        y[i] = value;
+        
+        // extend the newer stack's running min/max (NaN never wins)
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        if( count > split ) {
+            int prev = index( count - 1 );
+            lo = aggMin[prev];
+            hi = aggMax[prev];
+        }
+        aggMin[i] = (value < lo) ? value : lo;
+        aggMax[i] = (value > hi) ? value : hi;
+        
+        count += 1;
+        end += 1;
+    }
+    
+    /** removes the oldest point (if any) */
+    private void removeFirst() {
+        if( count == 0 )
+            return;
+        
+        if( split == 0 )
+            rebuild( (count + 1) / 2 );
+        
+        if( ++head == x.length )
+            head = 0;
+        count -= 1;
+        split -= 1;
+    }
+    
+    /** removes the newest point (if any) */
+    public void removeLast() {
+        if( count == 0 )
+            return;
+        
+        if( split == count )
+            rebuild( count / 2 );
+        count -= 1;
+        end -= 1;
+        if( end < lowEnd )
+            lowEnd = end;
+    }
+    
+    /** removes every point (positions keep counting from where they were) */
+    public void clear() {
+        head = 0;
+        count = 0;
+        split = 0;
+    }
+    
+    /** returns the position of the next point to be added */
+    public long getEnd() {
+        return end;
+    }
+    
+    /**
+     * Returns the lowest getEnd() since this was last called (points from
+     * there on may have changed) and starts tracking it again from now.
+     */
+    public long takeLowEnd() {
+        long ret = lowEnd;
+        lowEnd = end;
+        return ret;
+    }
+    
+    /** returns the points from position from on (allocates only for those points) */
+    public Delta delta( long from ) {
+        long start = end - count;
+        long first = Math.max( from, start );
+        int n = (int)Math.max( 0, end - first );
+        
+        long[] dx = new long[n];
+        double[] dy = new double[n];
+        for( int item=count-n, j=0; j<n; item++, j++ ) {
+            int i = index( item );
+            dx[j] = x[i];
+            dy[j] = y[i];
+        }
+        return new Delta( from, start, dx, dy );
+    }
+    
+    /**
+     * Brings this copy of a series up to date with a delta of the series.
+     * The copy should have the same capacity as the series.  If the copy is
+     * missing points from before the delta, it starts over from the delta.
+     */
+    public void apply( Delta d ) {
+        long first = Math.max( d.from, d.start );
+        if( end < first ) {
+            clear();
+            end = lowEnd = first;
+        }
+        
+        // replace the points which may have changed
+        while( end > first && count > 0 )
+            removeLast();
+        end = first;
+        lowEnd = Math.min( lowEnd, end );
+        for( int j=0; j<d.x.length; j++ )
+            add( d.x[j], d.y[j] );
+        
+        // drop the points the series has dropped
+        while( count > 0 && end - count < d.start )
+            removeFirst();
+    }
+    
+    /**
+     * Recomputes the running min/max with the first newSplit points in the 
+     * older stack and the rest in the newer stack.
+     */
+    private void rebuild( int newSplit ) {
+        split = newSplit;
+        
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        for( int item=split-1; item>=0; item-- ) {
+            int i = index( item );
+            if( y[i] < lo ) lo = y[i];
+            if( y[i] > hi ) hi = y[i];
+            aggMin[i] = lo;
+            aggMax[i] = hi;
+        }
+        
+        lo = Double.POSITIVE_INFINITY;
+        hi = Double.NEGATIVE_INFINITY;
+        for( int item=split; item<count; item++ ) {
+            int i = index( item );
+            if( y[i] < lo ) lo = y[i];
+            if( y[i] > hi ) hi = y[i];
+            aggMin[i] = lo;
+            aggMax[i] = hi;
+        }
+    }
+    
+    /** returns the smallest value (+infinity if there are no values) */
+    public double getMinY() {
+        double lo = Double.POSITIVE_INFINITY;
+        if( split > 0 )
+            lo = aggMin[head];
+        if( count > split )
+            lo = Math.min( lo, aggMin[index(count - 1)] );
+        return lo;
+    }
+    
+    /** returns the largest value (-infinity if there are no values) */
+    public double getMaxY() {
+        double hi = Double.NEGATIVE_INFINITY;
+        if( split > 0 )
+            hi = aggMax[head];
+        if( count > split )
+            hi = Math.max( hi, aggMax[index(count - 1)] );
+        return hi;
+    }
+    
+    /** returns the array index of the item'th oldest point */
+    private int index( int item ) {
+        int i = head + item;
+        return (i >= x.length) ? i - x.length : i;
+    }
+    
+    /** returns the time of the item'th oldest point */
+    public long getX( int item ) {
+        return x[index(item)];
+    }
+    
+    /** returns the value of the item'th oldest point */
+    public double getY( int item ) {
+        return y[index(item)];
+    }
+}
@@ -0,0 +1,143 @@
+package dgu.bufsizing.data;
+
+import java.util.ArrayList;
+import org.jfree.data.DomainInfo;
+import org.jfree.data.Range;
+import org.jfree.data.RangeInfo;
+import org.jfree.data.xy.AbstractIntervalXYDataset;
+import org.jfree.data.xy.IntervalXYDataset;
+
+/**
+ * A dataset made up of RingSeries.  Values are read straight out of the
+ * series' primitive arrays (getXValue/getYValue never box).  Points have no
+ * width, so the start and end of each interval are the point itself.
+ *
+ * The domain and range bounds come from the bounds each series keeps as
+ * points are added, so autoranging costs O(number of series) rather than
+ * iterating every point.
+ *
+ * Like XYSeriesCollection in manual notification mode, listeners are only told
+ * about changes when manuallyNotifyListeners() is called.
+ *
+ * @author David Underhill
+ */
+public class RingSeriesCollection extends AbstractIntervalXYDataset
+                                  implements IntervalXYDataset, DomainInfo, RangeInfo {
+    private final ArrayList<RingSeries> data = new ArrayList<RingSeries>();
+    
+    public void addSeries( RingSeries series, boolean notify ) {
+        data.add( series );
+        if( notify )
+            fireDatasetChanged();
+    }
+    
+    public void removeAllSeries( boolean notify ) {
+        data.clear();
+        if( notify )
+            fireDatasetChanged();
+    }
+    
+    public RingSeries getSeries( int series ) {
+        return data.get( series );
+    }
+    
+    public int getSeriesCount() {
+        return data.size();
+    }
+    
+    public Comparable getSeriesKey( int series ) {
+        return data.get( series ).getKey();
+    }
+    
+    public int getItemCount( int series ) {
+        return data.get( series ).getItemCount();
+    }
+    
+    public double getXValue( int series, int item ) {
+        return data.get( series ).getX( item );
+    }
+    
+    public double getYValue( int series, int item ) {
+        return data.get( series ).getY( item );
+    }
+    
+    public Number getX( int series, int item ) {
+        return Long.valueOf( data.get(series).getX(item) );
+    }
+    
+    public Number getY( int series, int item ) {
+        return Double.valueOf( data.get(series).getY(item) );
+    }
+    
+    public Number getStartX( int series, int item ) {
+        return getX( series, item );
+    }
+    
+    public Number getEndX( int series, int item ) {
+        return getX( series, item );
+    }
+    
+    public Number getStartY( int series, int item ) {
+        return getY( series, item );
+    }
+    
+    public Number getEndY( int series, int item ) {
+        return getY( series, item );
+    }
+    
+    /**
+     * Returns the domain bounds.  Points are added in time order, so only the
+     * oldest and newest point of each series are examined.
+     */
+    public Range getDomainBounds( boolean includeInterval ) {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for( RingSeries s : data ) {
+            int n = s.getItemCount();
+            if( n > 0 ) {
+                lo = Math.min( lo, s.getX(0) );
+                hi = Math.max( hi, s.getX(n - 1) );
+            }
+        }
+        
+        if( lo > hi )
+            return null;
+        else
+            return new Range( lo, hi );
+    }
+    
+    public double getDomainLowerBound( boolean includeInterval ) {
+        Range r = getDomainBounds( includeInterval );
+        return (r == null) ? Double.NaN : r.getLowerBound();
+    }
+    
+    public double getDomainUpperBound( boolean includeInterval ) {
+        Range r = getDomainBounds( includeInterval );
+        return (r == null) ? Double.NaN : r.getUpperBound();
+    }
+    
+    /** Returns the range bounds from the min/max each series keeps. */
+    public Range getRangeBounds( boolean includeInterval ) {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for( RingSeries s : data ) {
+            lo = Math.min( lo, s.getMinY() );
+            hi = Math.max( hi, s.getMaxY() );
+        }
+        
+        if( lo > hi )
+            return null;
+        else
+            return new Range( lo, hi );
+    }
+    
+    public double getRangeLowerBound( boolean includeInterval ) {
+        Range r = getRangeBounds( includeInterval );
+        return (r == null) ? Double.NaN : r.getLowerBound();
+    }
+    
+    public double getRangeUpperBound( boolean includeInterval ) {
+        Range r = getRangeBounds( includeInterval );
+        return (r == null) ? Double.NaN : r.getUpperBound();
+    }
+}
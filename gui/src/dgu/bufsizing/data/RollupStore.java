@@ -0,0 +1,276 @@
+package dgu.bufsizing.data;
+
+/**
+ * Keeps a long history of a few metrics by rolling samples up into fixed-width
+ * time buckets at several resolutions (1ms, 1s and 1min by default).  Each
+ * tier is a ring of buckets, so memory is bounded per tier no matter how long
+ * an experiment runs: the 1ms tier covers the last half minute, the 1s tier
+ * the last hour and the 1min tier the last day.
+ *
+ * Each bucket tracks the min, max, sum and count of each metric's samples.
+ * Every sample updates the newest bucket of every tier, so adding a sample is
+ * O(number of tiers) and never allocates.
+ *
+ * Times are in units of 8ns (like the rest of BottleneckLink's data).  This
+ * class is not synchronized; BottleneckLink guards it with its own lock.
+ *
+ * @author David Underhill
+ */
+public class RollupStore {
+    /** number of 8ns units in a millisecond */
+    public static final long MSEC_NS8 = 125000L;
+    
+    /** default bucket widths of the tiers (finest first) */
+    public static final long[] DEFAULT_TIER_WIDTHS_NS8 = new long[]{ MSEC_NS8, 1000 * MSEC_NS8, 60 * 1000 * MSEC_NS8 };
+    
+    /** default number of buckets kept in each tier */
+    public static final int[] DEFAULT_TIER_BUCKETS = new int[]{ 30 * 1000, 60 * 60, 24 * 60 };
+    
+    /** one resolution: a ring of buckets */
+    private static class Tier {
+        final long width_ns8;
+        final long[] start_ns8;
+        final double[][] min, max, sum;
+        final int[][] count;
+        
+        /** index of the oldest bucket */
+        int head = 0;
+        
+        /** number of buckets in use */
+        int size = 0;
+        
+        /** end of the newest bucket which has been overwritten (MIN_VALUE if none) */
+        long dropped_ns8 = Long.MIN_VALUE;
+        
+        Tier( long width_ns8, int numBuckets, int numMetrics ) {
+            this.width_ns8 = width_ns8;
+            start_ns8 = new long[numBuckets];
+            min = new double[numMetrics][numBuckets];
+            max = new double[numMetrics][numBuckets];
+            sum = new double[numMetrics][numBuckets];
+            count = new int[numMetrics][numBuckets];
+        }
+        
+        /** returns the array index of the i'th oldest bucket */
+        int index( int i ) {
+            i += head;
+            return (i >= start_ns8.length) ? i - start_ns8.length : i;
+        }
+        
+        /** returns true if no samples at or after time_ns8 have been dropped */
+        boolean covers( long time_ns8 ) {
+            return dropped_ns8 <= time_ns8;
+        }
+        
+        void add( int metric, long time_ns8, double value ) {
+            long start = time_ns8 - (time_ns8 % width_ns8);
+            
+            // start a new bucket if this sample is newer than the newest one
+            // (older samples are folded into the newest bucket)
+            int b;
+            if( size == 0 || start > start_ns8[index(size - 1)] ) {
+                if( size < start_ns8.length )
+                    b = index( size++ );
+                else {
+                    b = head;
+                    dropped_ns8 = start_ns8[b] + width_ns8;
+                    if( ++head == start_ns8.length )
+                        head = 0;
+                }
+                
+                start_ns8[b] = start;
+                for( int m=0; m<count.length; m++ )
+                    count[m][b] = 0;
+            }
+            else
+                b = index( size - 1 );
+            
+            if( count[metric][b] == 0 ) {
+                min[metric][b] = max[metric][b] = sum[metric][b] = value;
+                count[metric][b] = 1;
+            }
+            else {
+                if( value < min[metric][b] ) min[metric][b] = value;
+                if( value > max[metric][b] ) max[metric][b] = value;
+                sum[metric][b] += value;
+                count[metric][b] += 1;
+            }
+        }
+        
+        /** returns the position of the oldest bucket which ends after time_ns8 */
+        int search( long time_ns8 ) {
+            int lo = 0, hi = size;
+            while( lo < hi ) {
+                int mid = (lo + hi) >>> 1;
+                if( start_ns8[index(mid)] + width_ns8 <= time_ns8 )
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+    
+    /**
+     * The result of a query: one column of rolled up values per pixel.
+     * Columns which no samples fell into have a count of 0.
+     */
+    public static class Columns {
+        public long from_ns8, to_ns8;
+        public int numColumns;
+        
+        /** the tier the columns were computed from */
+        public int tier;
+        
+        public double[] min = new double[0];
+        public double[] max = new double[0];
+        public double[] sum = new double[0];
+        public int[] count = new int[0];
+        
+        /** returns the start time of column c */
+        public long getTime_ns8( int c ) {
+            return from_ns8 + (long)((to_ns8 - from_ns8) * (c / (double)numColumns));
+        }
+        
+        /** returns the mean of the samples in column c (NaN if there are none) */
+        public double getMean( int c ) {
+            return (count[c] == 0) ? Double.NaN : sum[c] / count[c];
+        }
+        
+        /** makes room for n columns and empties them */
+        void reset( int n ) {
+            if( min.length < n ) {
+                min = new double[n];
+                max = new double[n];
+                sum = new double[n];
+                count = new int[n];
+            }
+            for( int c=0; c<n; c++ ) {
+                sum[c] = 0;
+                count[c] = 0;
+            }
+            numColumns = n;
+        }
+    }
+    
+    private final Tier[] tiers;
+    private final int numMetrics;
+    
+    /** creates a store with the default tiers */
+    public RollupStore( int numMetrics ) {
+        this( numMetrics, DEFAULT_TIER_WIDTHS_NS8, DEFAULT_TIER_BUCKETS );
+    }
+    
+    /**
+     * Creates a store.
+     * @param numMetrics     number of metrics tracked (each is identified by an index)
+     * @param widths_ns8     bucket width of each tier, finest first
+     * @param numBuckets     number of buckets kept by each tier
+     */
+    public RollupStore( int numMetrics, long[] widths_ns8, int[] numBuckets ) {
+        if( widths_ns8.length != numBuckets.length )
+            throw new IllegalArgumentException( "each tier needs a width and a number of buckets" );
+        
+        this.numMetrics = numMetrics;
+        tiers = new Tier[widths_ns8.length];
+        for( int i=0; i<tiers.length; i++ )
+            tiers[i] = new Tier( widths_ns8[i], numBuckets[i], numMetrics );
+    }
+    
+    public int getNumMetrics() {
+        return numMetrics;
+    }
+    
+    public int getNumTiers() {
+        return tiers.length;
+    }
+    
+    public long getTierWidth_ns8( int tier ) {
+        return tiers[tier].width_ns8;
+    }
+    
+    /** adds a sample of metric taken at time_ns8 */
+    public void add( int metric, long time_ns8, double value ) {
+        for( Tier t : tiers )
+            t.add( metric, time_ns8, value );
+    }
+    
+    /** removes every sample */
+    public void clear() {
+        for( Tier t : tiers ) {
+            t.head = 0;
+            t.size = 0;
+            t.dropped_ns8 = Long.MIN_VALUE;
+        }
+    }
+    
+    /**
+     * Picks the tier to answer a query with: the coarsest tier which is still
+     * at least as fine as a pixel and which hasn't dropped any samples since
+     * from_ns8 (or the coarsest tier if every finer one has dropped some).
+     */
+    public int chooseTier( long from_ns8, long to_ns8, int pixels ) {
+        long perPixel_ns8 = (to_ns8 - from_ns8) / Math.max( 1, pixels );
+        
+        int best = tiers.length - 1;
+        for( int i=tiers.length-1; i>=0; i-- ) {
+            // finer tiers which have already dropped from_ns8 are of no use
+            if( i < tiers.length - 1 && !tiers[i].covers(from_ns8) )
+                break;
+            
+            best = i;
+            if( tiers[i].width_ns8 <= perPixel_ns8 )
+                break;
+        }
+        return best;
+    }
+    
+    /**
+     * Rolls metric's samples between from_ns8 and to_ns8 up into one column
+     * per pixel.  The work done is proportional to the number of buckets in
+     * the range of the chosen tier (which is roughly the number of pixels).
+     *
+     * @param out  where to put the result (its arrays are reused if big enough)
+     * @return out
+     */
+    public Columns query( int metric, long from_ns8, long to_ns8, int pixels, Columns out ) {
+        if( out == null )
+            out = new Columns();
+        
+        pixels = Math.max( 1, pixels );
+        out.from_ns8 = from_ns8;
+        out.to_ns8 = Math.max( to_ns8, from_ns8 + 1 );
+        out.tier = chooseTier( from_ns8, to_ns8, pixels );
+        out.reset( pixels );
+        
+        Tier t = tiers[out.tier];
+        double columnsPerNs8 = pixels / (double)(out.to_ns8 - from_ns8);
+        for( int i=t.search(from_ns8); i<t.size; i++ ) {
+            int b = t.index( i );
+            long start = t.start_ns8[b];
+            if( start >= out.to_ns8 )
+                break;
+            
+            int n = t.count[metric][b];
+            if( n == 0 )
+                continue;
+            
+            int c = (int)((Math.max(start, from_ns8) - from_ns8) * columnsPerNs8);
+            if( c >= pixels )
+                c = pixels - 1;
+            
+            if( out.count[c] == 0 ) {
+                out.min[c] = t.min[metric][b];
+                out.max[c] = t.max[metric][b];
+            }
+            else {
+                out.min[c] = Math.min( out.min[c], t.min[metric][b] );
+                out.max[c] = Math.max( out.max[c], t.max[metric][b] );
+            }
+            out.sum[c] += t.sum[metric][b];
+            out.count[c] += n;
+        }
+        
+        return out;
+    }
+}
@@ -0,0 +1,125 @@
+package dgu.bufsizing.data;
+
+/**
+ * A sequential probability ratio test (Wald's SPRT) of whether a rate is above
+ * or below a threshold.  Samples (e.g. the throughput over each 10ms) are added
+ * one at a time and the test decides as soon as the evidence is strong enough:
+ * it tests a mean of threshold+indifference against threshold-indifference
+ * with the given error rates and keeps sampling while the answer is
+ * ambiguous.  Rates within the indifference zone of the threshold may be
+ * called either way.
+ *
+ * The samples' variance is estimated as they arrive, so no decision is made
+ * before MIN_SAMPLES samples.  Samples are treated as independent.
+ *
+ * The link adds samples while the auto mode thread polls for a decision, so
+ * this class is synchronized.
+ *
+ * @author David Underhill
+ */
+public class SequentialRateTest {
+    /** fewest samples before a decision may be made */
+    public static final int MIN_SAMPLES = 10;
+    
+    /** results of the test */
+    public enum Decision {
+        UNDECIDED,
+        ABOVE,
+        BELOW
+    }
+    
+    private final double threshold;
+    private final double indifference;
+    private final double errorRate;
+    
+    /** decide ABOVE once the log likelihood ratio reaches this (BELOW at its negation) */
+    private final double bound;
+    
+    // running mean and sum of squared differences from it (Welford)
+    private int n = 0;
+    private double mean = 0, m2 = 0;
+    
+    private Decision decision = Decision.UNDECIDED;
+    
+    /**
+     * Creates a test.
+     * @param threshold     the rate to compare against
+     * @param indifference  half-width of the zone around threshold where either answer is fine (> 0)
+     * @param errorRate     chance of calling a rate outside the zone wrong (e.g. 0.05)
+     */
+    public SequentialRateTest( double threshold, double indifference, double errorRate ) {
+        this.threshold = threshold;
+        this.indifference = Math.max( Double.MIN_VALUE, indifference );
+        this.errorRate = Math.max( 1e-6, Math.min( 0.5, errorRate ) );
+        this.bound = Math.log( (1 - this.errorRate) / this.errorRate );
+    }
+    
+    /** adds the next sample and decides if the evidence is now strong enough */
+    public synchronized void add( double value ) {
+        n += 1;
+        double d = value - mean;
+        mean += d / n;
+        m2 += d * (value - mean);
+        
+        if( decision == Decision.UNDECIDED && n >= MIN_SAMPLES ) {
+            double llr = getLogLikelihoodRatio();
+            if( llr >= bound )
+                decision = Decision.ABOVE;
+            else if( llr <= -bound )
+                decision = Decision.BELOW;
+        }
+    }
+    
+    /**
+     * Returns the log of how much more likely the samples are if the mean is
+     * threshold+indifference than if it is threshold-indifference (Gaussian
+     * samples with the estimated variance).
+     */
+    public synchronized double getLogLikelihoodRatio() {
+        if( n < 2 )
+            return 0;
+        
+        double var = m2 / (n - 1);
+        if( var <= 0 )
+            return (mean > threshold) ? Double.POSITIVE_INFINITY : (mean < threshold ? Double.NEGATIVE_INFINITY : 0);
+        
+        return 2 * indifference * n * (mean - threshold) / var;
+    }
+    
+    public synchronized Decision getDecision() {
+        return decision;
+    }
+    
+    public synchronized boolean isDecided() {
+        return decision != Decision.UNDECIDED;
+    }
+    
+    /** returns true if the test decided ABOVE or, if undecided, the mean so far is at least the threshold */
+    public synchronized boolean isAbove() {
+        if( decision == Decision.UNDECIDED )
+            return mean >= threshold;
+        else
+            return decision == Decision.ABOVE;
+    }
+    
+    /**
+     * Returns the probability that isAbove() is right: 1 - errorRate once
+     * decided, and otherwise the posterior of the likelier hypothesis (with
+     * even prior odds) given the evidence so far.
+     */
+    public synchronized double getReliability() {
+        if( decision != Decision.UNDECIDED )
+            return 1 - errorRate;
+        
+        double llr = Math.min( bound, Math.abs(getLogLikelihoodRatio()) );
+        return 1 / (1 + Math.exp( -llr ));
+    }
+    
+    public synchronized int getNumSamples() {
+        return n;
+    }
+    
+    public synchronized double getMean() {
+        return mean;
+    }
+}
@@ -0,0 +1,117 @@
+package dgu.bufsizing.data;
+
+/**
+ * Decides whether a stream of evenly spaced samples (e.g. the throughput over
+ * each 10ms) has settled.  A least-squares line is fit to the newest window of
+ * samples: the series has settled once the window is full, the line's rise
+ * across the window (drift) is small and the samples' spread around the line
+ * is small, both relative to a scale such as the link's capacity.
+ *
+ * Samples are kept in a ring, so adding one is O(1) and never allocates; the
+ * fit is computed when isSettled() is called and costs O(window).  This class
+ * is not synchronized; BottleneckLink guards it with its own lock.
+ *
+ * @author David Underhill
+ */
+public class StabilityDetector {
+    private final double[] samples;
+    
+    /** number of samples the fit is computed over */
+    private int window;
+    
+    /** index of the oldest sample */
+    private int head = 0;
+    
+    /** number of samples in the window */
+    private int count = 0;
+    
+    /**
+     * Creates a detector.
+     * @param maxWindow  largest window (number of samples) which will be used
+     */
+    public StabilityDetector( int maxWindow ) {
+        samples = new double[Math.max( 2, maxWindow )];
+        window = samples.length;
+    }
+    
+    public int getMaxWindow() {
+        return samples.length;
+    }
+    
+    public int getWindow() {
+        return window;
+    }
+    
+    /** forgets every sample and starts looking for a window of the given size */
+    public void reset( int window ) {
+        this.window = Math.max( 2, Math.min( samples.length, window ) );
+        head = 0;
+        count = 0;
+    }
+    
+    /** adds the newest sample (the oldest one leaves the window once it is full) */
+    public void add( double value ) {
+        int i = head + count;
+        if( i >= window )
+            i -= window;
+        
+        samples[i] = value;
+        if( count < window )
+            count += 1;
+        else if( ++head == window )
+            head = 0;
+    }
+    
+    /** returns true once a whole window of samples has been added since the last reset */
+    public boolean isFull() {
+        return count == window;
+    }
+    
+    /** returns the mean of the samples in the window */
+    public double getMean() {
+        double sum = 0;
+        for( int k=0; k<count; k++ )
+            sum += get( k );
+        return (count == 0) ? 0 : sum / count;
+    }
+    
+    /** returns the k'th oldest sample in the window */
+    private double get( int k ) {
+        int i = head + k;
+        return samples[(i >= window) ? i - window : i];
+    }
+    
+    /**
+     * Returns true if the window is full and both the drift of the fitted
+     * line across the window and the standard deviation of the samples about
+     * it are within tolerance.
+     * @param scale      what the tolerances are fractions of (e.g. link capacity)
+     * @param maxDrift   largest allowed rise or fall across the window
+     * @param maxSpread  largest allowed standard deviation about the line
+     */
+    public boolean isSettled( double scale, double maxDrift, double maxSpread ) {
+        if( !isFull() )
+            return false;
+        
+        // fit y = a + b*k with k = 0 .. count-1 (centered to keep it exact)
+        double kMean = (count - 1) / 2.0;
+        double yMean = getMean();
+        double sxy = 0, sxx = 0;
+        for( int k=0; k<count; k++ ) {
+            double dk = k - kMean;
+            sxy += dk * (get(k) - yMean);
+            sxx += dk * dk;
+        }
+        double slope = sxy / sxx;
+        
+        if( Math.abs(slope * (count - 1)) > maxDrift * scale )
+            return false;
+        
+        double sse = 0;
+        for( int k=0; k<count; k++ ) {
+            double r = get(k) - (yMean + slope * (k - kMean));
+            sse += r * r;
+        }
+        return Math.sqrt( sse / count ) <= maxSpread * scale;
+    }
+}
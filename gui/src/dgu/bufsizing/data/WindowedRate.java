@@ -0,0 +1,89 @@
+package dgu.bufsizing.data;
+
+/**
+ * The exact rate over a sliding window of fixed length.  The window is split
+ * into a ring of time-aligned buckets which each count the bytes sent in
+ * them; a running sum of the buckets makes adding bytes and reading the rate
+ * O(1) (plus clearing the buckets which expired since the last event).
+ *
+ * @author David Underhill
+ */
+public class WindowedRate implements RateEstimator {
+    private final long bucketWidth_ns8;
+    private final long[] bucketBytes;
+    
+    /** number of the newest bucket (time / bucket width), -1 => none yet */
+    private long curBucket = -1;
+    
+    /** bytes in all of the buckets */
+    private long sum = 0;
+    
+    /** when the estimator was (re)started */
+    private long start_ns8 = 0;
+    
+    /**
+     * Creates an estimator over a window of numBuckets * bucketWidth_ns8.
+     * @param bucketWidth_ns8  width of each bucket in 8ns units
+     * @param numBuckets       number of buckets in the window
+     */
+    public WindowedRate( long bucketWidth_ns8, int numBuckets ) {
+        this.bucketWidth_ns8 = Math.max( 1, bucketWidth_ns8 );
+        this.bucketBytes = new long[Math.max( 1, numBuckets )];
+    }
+    
+    /** returns the length of the window in 8ns units */
+    public long getWindow_ns8() {
+        return bucketWidth_ns8 * bucketBytes.length;
+    }
+    
+    /** returns true if a whole window has passed since the estimator started */
+    public boolean isWarm( long time_ns8 ) {
+        return curBucket >= 0 && time_ns8 - start_ns8 >= getWindow_ns8();
+    }
+    
+    /** clears the buckets which have left the window by time_ns8 */
+    private void advance( long time_ns8 ) {
+        long b = time_ns8 / bucketWidth_ns8;
+        if( curBucket < 0 ) {
+            curBucket = b;
+            start_ns8 = time_ns8;
+            return;
+        }
+        
+        if( b <= curBucket )
+            return; /* late events are counted in the newest bucket */
+        
+        long n = Math.min( b - curBucket, bucketBytes.length );
+        for( long i=1; i<=n; i++ ) {
+            int idx = (int)((curBucket + i) % bucketBytes.length);
+            sum -= bucketBytes[idx];
+            bucketBytes[idx] = 0;
+        }
+        curBucket = b;
+    }
+    
+    public void add( long time_ns8, long num_bytes ) {
+        advance( time_ns8 );
+        bucketBytes[(int)(curBucket % bucketBytes.length)] += num_bytes;
+        sum += num_bytes;
+    }
+    
+    public long getRate_bps( long time_ns8 ) {
+        if( curBucket < 0 )
+            return 0;
+        
+        advance( time_ns8 );
+        
+        // the window starts at the oldest bucket (or when we started, if later)
+        long windowStart_ns8 = (curBucket - bucketBytes.length + 1) * bucketWidth_ns8;
+        long span_ns8 = time_ns8 - Math.max( windowStart_ns8, start_ns8 ) + 1;
+        return (span_ns8 <= 0) ? 0 : MeanRate.toRate_bps( sum, span_ns8 );
+    }
+    
+    public void reset( long time_ns8 ) {
+        java.util.Arrays.fill( bucketBytes, 0L );
+        sum = 0;
+        curBucket = time_ns8 / bucketWidth_ns8;
+        start_ns8 = time_ns8;
+    }
+}
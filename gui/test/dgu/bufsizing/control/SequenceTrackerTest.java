@@ -0,0 +1,154 @@
+package dgu.bufsizing.control;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+/**
+ * Tests SequenceTracker's reordering, loss counting and wraparound.  Each
+ * packet offered holds its own sequence number so the delivery order can be
+ * checked.
+ * @author David Underhill
+ */
+public class SequenceTrackerTest extends TestCase {
+    /** a tracker which records the sequence numbers it delivers */
+    private static class Recorder extends SequenceTracker {
+        final ArrayList<Integer> delivered = new ArrayList<Integer>();
+        
+        Recorder( int window ) {
+            super( window, 4 );
+        }
+        
+        protected void deliver( ByteBuffer buf, int len ) {
+            delivered.add( buf.getInt(0) );
+        }
+        
+        void offer( int seq ) {
+            ByteBuffer buf = ByteBuffer.allocate( 4 );
+            buf.putInt( 0, seq );
+            offer( seq, buf, 4 );
+        }
+    }
+    
+    private static void assertDelivered( Recorder r, int first, int last ) {
+        assertEquals( last - first + 1, r.delivered.size() );
+        for( int i=0; i<r.delivered.size(); i++ )
+            assertEquals( first + i, r.delivered.get(i).intValue() );
+    }
+    
+    public void testInOrder() {
+        Recorder r = new Recorder( 16 );
+        for( int s=5; s<50; s++ )
+            r.offer( s );
+        assertDelivered( r, 5, 49 );
+        assertEquals( 0, r.getNumLost() );
+        assertEquals( 0, r.getNumReordered() );
+    }
+    
+    public void testReordersWithinWindow() {
+        Recorder r = new Recorder( 16 );
+        r.offer( 1 );
+        r.offer( 3 );
+        r.offer( 4 );
+        r.offer( 2 );
+        assertDelivered( r, 1, 4 );
+        assertEquals( 2, r.getNumReordered() );
+        assertEquals( 0, r.getNumLost() );
+    }
+    
+    public void testOnePastWindowOnlyGivesUpOnePacket() {
+        Recorder r = new Recorder( 16 );
+        r.offer( 0 );
+        
+        // 1 is missing; 17 is one past the window which starts at 1
+        r.offer( 17 );
+        assertEquals( 1, r.getNumLost() );
+        
+        for( int s=2; s<=16; s++ )
+            r.offer( s );
+        
+        assertEquals( 0, r.getNumLate() );
+        assertEquals( 1, r.getNumLost() );
+        assertEquals( 17, r.delivered.size() );
+        assertEquals( 0, r.delivered.get(0).intValue() );
+        for( int i=1; i<17; i++ )
+            assertEquals( i + 1, r.delivered.get(i).intValue() );
+    }
+    
+    public void testSkipDeliversHeldPacketsOnTheWay() {
+        Recorder r = new Recorder( 4 );
+        r.offer( 0 );
+        r.offer( 2 ); /* held; 1 is missing */
+        r.offer( 3 ); /* held */
+        r.offer( 6 ); /* window must start at 3: 1 is lost, 2 is delivered */
+        
+        assertEquals( 1, r.getNumLost() );
+        assertEquals( 3, r.delivered.size() );
+        r.offer( 4 );
+        r.offer( 5 );
+        assertEquals( 7 - 1, r.delivered.size() );
+        assertEquals( 6, r.delivered.get(5).intValue() );
+    }
+    
+    public void testLargeGapWithNothingHeld() {
+        Recorder r = new Recorder( 16 );
+        r.offer( 0 );
+        r.offer( 1000000 );
+        assertEquals( 1000000 - 16, r.getNumLost() );
+        r.offer( 999990 );
+        r.offer( 999980 );
+        assertEquals( 1, r.getNumLate() );
+    }
+    
+    public void testWindowRoundedUpToPowerOfTwo() {
+        assertEquals( 16, new Recorder(10).getWindow() );
+        assertEquals( 1, new Recorder(1).getWindow() );
+        assertEquals( 0, new Recorder(0).getWindow() );
+    }
+    
+    public void testWrapWithOddWindow() {
+        // slots must stay distinct across the 2^32 wrap
+        Recorder r = new Recorder( 10 );
+        r.offer( -6 );
+        r.offer( -3 );
+        r.offer( 3 );
+        for( int s=-5; s<3; s++ )
+            if( s != -3 )
+                r.offer( s );
+        
+        assertDelivered( r, -6, 3 );
+        assertEquals( 0, r.getNumLost() );
+        assertEquals( 0, r.getNumDuplicates() );
+    }
+    
+    public void testDuplicateHeld() {
+        Recorder r = new Recorder( 8 );
+        r.offer( 0 );
+        r.offer( 2 );
+        r.offer( 2 );
+        assertEquals( 1, r.getNumDuplicates() );
+        r.offer( 1 );
+        assertDelivered( r, 0, 2 );
+    }
+    
+    public void testFlushDeliversHeld() {
+        Recorder r = new Recorder( 8 );
+        r.offer( 0 );
+        r.offer( 2 );
+        r.offer( 5 );
+        r.flush();
+        assertEquals( 3, r.getNumLost() );
+        assertEquals( 3, r.delivered.size() );
+        assertEquals( 5, r.delivered.get(2).intValue() );
+    }
+    
+    public void testNoWindowNeverWaits() {
+        Recorder r = new Recorder( 0 );
+        r.offer( 0 );
+        r.offer( 2 );
+        r.offer( 1 );
+        assertEquals( 2, r.delivered.size() );
+        assertEquals( 1, r.getNumLost() );
+        assertEquals( 1, r.getNumLate() );
+    }
+}
@@ -0,0 +1,199 @@
+package dgu.bufsizing.data;
+
+import java.io.StringWriter;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Round-trip tests of CompressedSeries: every point added must decode to the
+ * same time and the same value bits, across block boundaries and for every
+ * time and value encoding.
+ * @author David Underhill
+ */
+public class CompressedSeriesTest extends TestCase {
+    /** smallest block the series allows (two maximum-size points) */
+    private static final int TINY_BLOCK_WORDS = 5;
+    
+    /** adds the points to a new series and checks they all decode unchanged */
+    private CompressedSeries roundTrip( long[] times, double[] values, int maxBlocks, int blockWords ) {
+        CompressedSeries s = new CompressedSeries( "test", maxBlocks, blockWords );
+        for( int i=0; i<times.length; i++ )
+            s.add( times[i], values[i] );
+        
+        assertEquals( times.length, s.getItemCount() );
+        assertDecodes( s, times, values, 0 );
+        return s;
+    }
+    
+    /** checks that s decodes to the points from index first on */
+    private static void assertDecodes( CompressedSeries s, long[] times, double[] values, int first ) {
+        CompressedSeries.Decoder d = s.decoder( Long.MIN_VALUE, null );
+        for( int i=first; i<times.length; i++ ) {
+            assertTrue( "ran out of points at " + i, d.next() );
+            assertEquals( "time of point " + i, times[i], d.getX() );
+            assertEquals( "value of point " + i, Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(d.getY()) );
+        }
+        assertFalse( d.next() );
+    }
+    
+    public void testEmpty() {
+        CompressedSeries s = new CompressedSeries( "test", 4 );
+        assertEquals( 0, s.getItemCount() );
+        assertFalse( s.decoder(0, null).next() );
+    }
+    
+    public void testSteadyPoints() {
+        int n = 10000;
+        long[] times = new long[n];
+        double[] values = new double[n];
+        for( int i=0; i<n; i++ ) {
+            times[i] = 1000 + 125 * i;
+            values[i] = 1500 * (i % 7);
+        }
+        
+        CompressedSeries s = roundTrip( times, values, 16, CompressedSeries.DEFAULT_BLOCK_WORDS );
+        assertTrue( "steady points should take far less than 16B each", s.getEncodedBytes() < 4L * n );
+    }
+    
+    public void testEveryDeltaOfDeltaSize() {
+        // deltas of deltas of 0, 7, 9, 12, 32 and 64 bits, in both directions
+        long[] dods = new long[]{ 0, 5, -64, 63, -256, 255, -2048, 2047, 100000, -100000,
+                                  Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 40, -(1L << 40), 0 };
+        long[] times = new long[dods.length + 2];
+        double[] values = new double[times.length];
+        long delta = 0;
+        times[0] = 0;
+        times[1] = 10;
+        delta = 10;
+        for( int i=0; i<dods.length; i++ ) {
+            delta += dods[i];
+            times[i + 2] = times[i + 1] + delta;
+        }
+        
+        roundTrip( times, values, 4, CompressedSeries.DEFAULT_BLOCK_WORDS );
+    }
+    
+    public void testSixtyFourBitDeltas() {
+        // deltas which only fit in 64 bits (and wrap around)
+        long[] times = new long[]{ Long.MIN_VALUE, -1, Long.MAX_VALUE - 5, Long.MAX_VALUE, 0, 1L << 62, 3 };
+        double[] values = new double[]{ 1, 2, 3, 4, 5, 6, 7 };
+        roundTrip( times, values, 4, CompressedSeries.DEFAULT_BLOCK_WORDS );
+    }
+    
+    public void testFullXorWindow() {
+        // each value differs from the previous one in every bit (and then in
+        // the same window again, and then in a narrower one)
+        long a = 0x5555555555555555L;
+        double[] values = new double[]{ Double.longBitsToDouble(a), Double.longBitsToDouble(~a),
+                                        Double.longBitsToDouble(a), Double.longBitsToDouble(a ^ 1L),
+                                        Double.longBitsToDouble(a ^ Long.MIN_VALUE), Double.longBitsToDouble(a) };
+        long[] times = new long[values.length];
+        for( int i=0; i<times.length; i++ )
+            times[i] = i;
+        
+        roundTrip( times, values, 4, CompressedSeries.DEFAULT_BLOCK_WORDS );
+    }
+    
+    public void testSpecialValues() {
+        double[] values = new double[]{ 0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                                        Double.MIN_VALUE, Double.MAX_VALUE, -1.5, 0.1, 0.1 };
+        long[] times = new long[values.length];
+        for( int i=0; i<times.length; i++ )
+            times[i] = 8 * i;
+        
+        roundTrip( times, values, 4, CompressedSeries.DEFAULT_BLOCK_WORDS );
+    }
+    
+    public void testBlockBoundaries() {
+        // worst case points in the smallest blocks so nearly every point
+        // lands at or next to a block boundary
+        Random r = new Random( 1 );
+        int n = 500;
+        long[] times = new long[n];
+        double[] values = new double[n];
+        long t = 0;
+        for( int i=0; i<n; i++ ) {
+            t += (i % 3 == 0) ? r.nextLong() >>> 2 : r.nextInt(100);
+            times[i] = t;
+            values[i] = Double.longBitsToDouble( r.nextLong() );
+        }
+        
+        roundTrip( times, values, n, TINY_BLOCK_WORDS );
+    }
+    
+    public void testOldestBlocksReused() {
+        int n = 2000;
+        long[] times = new long[n];
+        double[] values = new double[n];
+        for( int i=0; i<n; i++ ) {
+            times[i] = i * 1000L + (i * i) % 17;
+            values[i] = Math.sin( i );
+        }
+        
+        CompressedSeries s = new CompressedSeries( "test", 3, TINY_BLOCK_WORDS );
+        for( int i=0; i<n; i++ )
+            s.add( times[i], values[i] );
+        
+        // only the newest points are kept, and they still decode exactly
+        assertTrue( s.getItemCount() < n );
+        assertDecodes( s, times, values, n - s.getItemCount() );
+    }
+    
+    public void testDecoderStartsAtTime() {
+        int n = 5000;
+        CompressedSeries s = new CompressedSeries( "test", n, 16 );
+        for( int i=0; i<n; i++ )
+            s.add( 10L * i, i );
+        assertEquals( n, s.getItemCount() );
+        
+        CompressedSeries.Decoder d = s.decoder( 30000, null );
+        assertTrue( d.next() );
+        assertTrue( "decoder should start in the block holding the time", d.getX() <= 30000 );
+        while( d.getX() < 30000 )
+            assertTrue( d.next() );
+        assertEquals( 30000, d.getX() );
+        assertEquals( 3000.0, d.getY(), 0 );
+    }
+    
+    public void testReadWindow() {
+        CompressedSeries s = new CompressedSeries( "test", 64 );
+        for( int i=0; i<1000; i++ )
+            s.add( i, i );
+        
+        RingSeries out = new RingSeries( "out", 1000 );
+        assertEquals( 100, s.read(200, 300, out, null) );
+        assertEquals( 100, out.getItemCount() );
+        assertEquals( 200, out.getX(0) );
+        assertEquals( 299.0, out.getY(99), 0 );
+    }
+    
+    public void testCopyDecodesTheSame() {
+        int n = 3000;
+        long[] times = new long[n];
+        double[] values = new double[n];
+        for( int i=0; i<n; i++ ) {
+            times[i] = 7L * i;
+            values[i] = i / 3.0;
+        }
+        
+        CompressedSeries s = new CompressedSeries( "test", n, TINY_BLOCK_WORDS );
+        for( int i=0; i<n; i++ )
+            s.add( times[i], values[i] );
+        
+        CompressedSeries copy = new CompressedSeries( s );
+        s.clear();
+        s.add( 1, 1 );
+        assertEquals( n, copy.getItemCount() );
+        assertDecodes( copy, times, values, 0 );
+    }
+    
+    public void testWriteTo() throws Exception {
+        CompressedSeries s = new CompressedSeries( "test", 4 );
+        s.add( 5, 1500 );
+        s.add( 13, 0.5 );
+        
+        StringWriter w = new StringWriter();
+        assertEquals( 2, s.writeTo(w) );
+        assertEquals( "5 1500\n13 0.5\n", w.toString() );
+    }
+}
@@ -0,0 +1,147 @@
+package dgu.bufsizing.data;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ * Tests MappedHistory with small segments (4 records each, 3 segments kept)
+ * so that finds and reads cross segment boundaries and old segments are
+ * dropped after only a dozen appends.
+ * @author David Underhill
+ */
+public class MappedHistoryTest extends TestCase {
+    private File dir;
+    private MappedHistory history;
+    
+    protected void setUp() throws IOException {
+        dir = File.createTempFile( "history", "" );
+        dir.delete();
+        dir.mkdirs();
+        history = new MappedHistory( dir, "test", 4, 3 );
+    }
+    
+    protected void tearDown() throws InterruptedException {
+        history.clear();
+        
+        // the helper deletes the cleared segments after it has mapped the
+        // next one, so wait until only that one is left
+        for( int i=0; i<100 && dir.listFiles().length > 1; i++ )
+            Thread.sleep( 10 );
+        
+        for( File f : dir.listFiles() )
+            f.delete();
+        dir.delete();
+    }
+    
+    /** appends n records at times 0, 10, 20, ... with value i at the i'th */
+    private void appendRecords( int n ) {
+        for( int i=0; i<n; i++ )
+            history.append( i * 10, i );
+    }
+    
+    public void testAppendAcrossSegments() {
+        appendRecords( 10 );
+        
+        assertEquals( 0, history.getFirstIndex() );
+        assertEquals( 10, history.getEndIndex() );
+        for( int i=0; i<10; i++ ) {
+            assertEquals( i * 10, history.getTime(i) );
+            assertEquals( (double)i, history.getValue(i), 0 );
+        }
+    }
+    
+    public void testDropsOldestSegment() {
+        appendRecords( 14 );
+        
+        // four segments have been used, so the first (records 0-3) is gone
+        assertEquals( 4, history.getFirstIndex() );
+        assertEquals( 14, history.getEndIndex() );
+        assertEquals( 40, history.getTime(4) );
+        assertEquals( 13.0, history.getValue(13), 0 );
+    }
+    
+    public void testFindAcrossSegmentBoundaries() {
+        appendRecords( 10 );
+        
+        assertEquals( 0, history.find(-5) );
+        assertEquals( 0, history.find(0) );
+        assertEquals( 3, history.find(30) );
+        assertEquals( 4, history.find(31) );  // past the end of the first segment
+        assertEquals( 4, history.find(40) );  // the first record of the second segment
+        assertEquals( 5, history.find(41) );
+        assertEquals( 8, history.find(75) );
+        assertEquals( 9, history.find(90) );
+        assertEquals( 10, history.find(91) );
+    }
+    
+    public void testFindAfterDroppingSegments() {
+        appendRecords( 14 );
+        
+        // times before the oldest record kept find the oldest record kept
+        assertEquals( 4, history.find(0) );
+        assertEquals( 4, history.find(40) );
+        assertEquals( 5, history.find(45) );
+        assertEquals( 8, history.find(80) );
+        assertEquals( 13, history.find(130) );
+        assertEquals( 14, history.find(131) );
+    }
+    
+    public void testClampedEqualTimesSpanningSegments() {
+        long[] times = { 10, 20, 30, 30,  30, 25, 30, 40,  50 };
+        for( int i=0; i<times.length; i++ )
+            history.append( times[i], i );
+        
+        // the out of order 25 is kept at 30
+        assertEquals( 30, history.getTime(5) );
+        assertEquals( 5.0, history.getValue(5), 0 );
+        
+        // the run of 30s starts in the first segment and ends in the second
+        assertEquals( 2, history.find(30) );
+        assertEquals( 2, history.find(21) );
+        assertEquals( 7, history.find(31) );
+        assertEquals( 8, history.find(50) );
+    }
+    
+    public void testEqualTimesFillingSegments() {
+        for( int i=0; i<6; i++ )
+            history.append( 5, i );
+        history.append( 6, 6 );
+        
+        // the first segment is all 5s, and the second starts with them
+        assertEquals( 0, history.find(5) );
+        assertEquals( 6, history.find(6) );
+        assertEquals( 7, history.find(7) );
+    }
+    
+    public void testReadWindow() {
+        appendRecords( 10 );
+        RingSeries out = new RingSeries( "test", 100 );
+        out.add( 1000, 1000 );
+        
+        assertEquals( 4, history.read(20, 60, out) );
+        assertEquals( 4, out.getItemCount() );
+        for( int i=0; i<4; i++ ) {
+            assertEquals( 20 + i * 10, out.getX(i) );
+            assertEquals( (double)(2 + i), out.getY(i), 0 );
+        }
+    }
+    
+    public void testReadDecimatesToFit() {
+        double[] values = { 5, 6, 4, 20, 7, 3, 8, -2, 6, 5, 4, 9 };
+        for( int i=0; i<values.length; i++ )
+            history.append( i * 10, values[i] );
+        
+        // 12 records don't fit in 8 points, so the whole window becomes one
+        // bucket: its first point, its max and min in the order they came, and its last
+        RingSeries out = new RingSeries( "test", 8 );
+        assertEquals( 12, history.read(0, 120, out) );
+        assertEquals( 4, out.getItemCount() );
+        long[] x = { 0, 30, 70, 110 };
+        double[] y = { 5, 20, -2, 9 };
+        for( int i=0; i<4; i++ ) {
+            assertEquals( x[i], out.getX(i) );
+            assertEquals( y[i], out.getY(i), 0 );
+        }
+    }
+}
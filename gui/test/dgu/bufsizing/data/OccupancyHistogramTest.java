@@ -0,0 +1,49 @@
+package dgu.bufsizing.data;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests OccupancyHistogram's buckets and the merging of snapshots.
+ * @author David Underhill
+ */
+public class OccupancyHistogramTest extends TestCase {
+    public void testBucketsCoverEveryInt() {
+        assertEquals( 448, OccupancyHistogram.NUM_BUCKETS );
+        assertEquals( OccupancyHistogram.NUM_BUCKETS - 1, OccupancyHistogram.bucketOf(Integer.MAX_VALUE) );
+        assertEquals( Integer.MAX_VALUE, OccupancyHistogram.bucketHigh(OccupancyHistogram.NUM_BUCKETS - 1) );
+        
+        for( int b=1; b<OccupancyHistogram.NUM_BUCKETS; b++ )
+            assertEquals( OccupancyHistogram.bucketHigh(b - 1) + 1, OccupancyHistogram.bucketLow(b) );
+    }
+    
+    public void testMergeIgnoresEmptySnapshots() {
+        OccupancyHistogram h = new OccupancyHistogram();
+        h.record( 1000, 10, false );
+        h.record( 1100, 20, false );
+        h.record( 1200, 0, false );
+        OccupancyHistogram.Snapshot s = h.snapshot( null );
+        
+        OccupancyHistogram.Snapshot merged = new OccupancyHistogram.Snapshot();
+        merged.merge( s );
+        merged.merge( new OccupancyHistogram.Snapshot() );
+        assertEquals( 1000, merged.start_ns8 );
+        assertEquals( 200, merged.total_ns8 );
+        assertEquals( 20, merged.max );
+        assertEquals( 15.0, merged.getMean(), 1e-9 );
+    }
+    
+    public void testMergeKeepsEarliestStart() {
+        OccupancyHistogram a = new OccupancyHistogram();
+        a.record( 500, 4, false );
+        a.record( 600, 4, false );
+        OccupancyHistogram b = new OccupancyHistogram();
+        b.record( 300, 8, true );
+        b.record( 400, 8, true );
+        
+        OccupancyHistogram.Snapshot merged = a.snapshot( null );
+        merged.merge( b.snapshot(null) );
+        assertEquals( 300, merged.start_ns8 );
+        assertEquals( 200, merged.total_ns8 );
+        assertEquals( 100, merged.full_ns8 );
+    }
+}
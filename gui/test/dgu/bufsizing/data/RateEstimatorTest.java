@@ -0,0 +1,76 @@
+package dgu.bufsizing.data;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the rate estimators with synthetic packet streams.
+ * @author David Underhill
+ */
+public class RateEstimatorTest extends TestCase {
+    /** 1500B packets back to back at 1Gbps are 12us = 1500 8ns units apart */
+    private static final int PKT_BYTES = 1500;
+    private static final long PKT_GAP_NS8 = 1500;
+    private static final long ONE_GBPS = 1000L * 1000 * 1000;
+    
+    /** adds n packets at 1Gbps starting at time 0 and returns the time after the last */
+    private static long sendAtOneGbps( RateEstimator e, long n ) {
+        long t = 0;
+        for( long i=0; i<n; i++ ) {
+            e.add( t, PKT_BYTES );
+            t += PKT_GAP_NS8;
+        }
+        return t;
+    }
+    
+    private static void assertWithinPpm( long expected, long actual, double ppm ) {
+        double err = Math.abs( actual - expected ) / (double)expected;
+        assertTrue( "rate " + actual + " is " + (int)(err * 1e6) + "ppm off " + expected, err <= ppm * 1e-6 );
+    }
+    
+    public void testMeanExactAtOneGbps() {
+        MeanRate m = new MeanRate();
+        long t = sendAtOneGbps( m, 100000 );
+        assertWithinPpm( ONE_GBPS, m.getRate_bps(t), 5 );
+    }
+    
+    public void testMeanDoesNotOverflowOnLongRuns() {
+        // 10 minutes at 1Gbps is 75GB, far past where bytes * 8 * NS8_PER_SEC overflows
+        long span_ns8 = 600 * RateEstimator.NS8_PER_SEC;
+        long bytes = ONE_GBPS / 8 * 600;
+        assertWithinPpm( ONE_GBPS, MeanRate.toRate_bps(bytes, span_ns8), 1 );
+        
+        // and at a day long span (the remainder part takes the other path)
+        span_ns8 = 86400 * RateEstimator.NS8_PER_SEC + 7;
+        bytes = ONE_GBPS / 8 * 86400;
+        assertWithinPpm( ONE_GBPS, MeanRate.toRate_bps(bytes, span_ns8), 1 );
+    }
+    
+    public void testMeanThroughStream() {
+        MeanRate m = new MeanRate();
+        m.add( 0, 0 );
+        long span_ns8 = 120 * RateEstimator.NS8_PER_SEC;
+        m.add( span_ns8 - 1, ONE_GBPS / 8 * 120 );
+        assertWithinPpm( ONE_GBPS, m.getRate_bps(span_ns8 - 1), 1 );
+    }
+    
+    public void testWindowedWithinOnePacket() {
+        WindowedRate w = new WindowedRate( 125000, 8 ); // 8 x 1ms
+        long t = sendAtOneGbps( w, 20000 );
+        long onePacket_bps = PKT_BYTES * 8 * RateEstimator.NS8_PER_SEC / (8 * 125000);
+        assertTrue( Math.abs(w.getRate_bps(t) - ONE_GBPS) <= onePacket_bps );
+    }
+    
+    public void testEwmaSettlesToRate() {
+        EwmaRate e = new EwmaRate( 10 * 125000 ); // 10ms
+        long t = sendAtOneGbps( e, 100000 ); // 1.2s, many half-lives
+        assertWithinPpm( ONE_GBPS, e.getRate_bps(t), 1000 );
+    }
+    
+    public void testResetStartsOver() {
+        MeanRate m = new MeanRate();
+        long t = sendAtOneGbps( m, 1000 );
+        m.reset( t );
+        m.add( t + 1000, 1000 );
+        assertWithinPpm( 8000L * RateEstimator.NS8_PER_SEC / 1001, m.getRate_bps(t + 1000), 1 );
+    }
+}
@@ -0,0 +1,110 @@
+package dgu.bufsizing.data;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests RingSeries, in particular keeping a copy of a series up to date with
+ * deltas the way BottleneckLink's chart view is.
+ * @author David Underhill
+ */
+public class RingSeriesTest extends TestCase {
+    private static void assertSameSeries( RingSeries expected, RingSeries actual ) {
+        assertEquals( expected.getItemCount(), actual.getItemCount() );
+        assertEquals( expected.getEnd(), actual.getEnd() );
+        for( int i=0; i<expected.getItemCount(); i++ ) {
+            assertEquals( "time of point " + i, expected.getX(i), actual.getX(i) );
+            assertEquals( "value of point " + i, expected.getY(i), actual.getY(i), 0 );
+        }
+        assertEquals( expected.getMinY(), actual.getMinY(), 0 );
+        assertEquals( expected.getMaxY(), actual.getMaxY(), 0 );
+    }
+    
+    public void testEvictsOldest() {
+        RingSeries s = new RingSeries( "test", 3 );
+        for( int i=0; i<5; i++ )
+            s.add( i, 10 - i );
+        
+        assertEquals( 3, s.getItemCount() );
+        assertEquals( 5, s.getEnd() );
+        assertEquals( 2, s.getX(0) );
+        assertEquals( 6.0, s.getMinY(), 0 );
+        assertEquals( 8.0, s.getMaxY(), 0 );
+    }
+    
+    public void testDeltaHoldsOnlyChangedPoints() {
+        RingSeries s = new RingSeries( "test", 100 );
+        for( int i=0; i<50; i++ )
+            s.add( i, i );
+        s.takeLowEnd();
+        
+        s.removeLast();
+        s.add( 49, -1 );
+        s.add( 50, 50 );
+        assertEquals( 49, s.takeLowEnd() );
+        assertEquals( 2, s.delta(49).size() );
+        assertEquals( 51, s.delta(0).size() );
+    }
+    
+    public void testFreshCopyGetsEverything() {
+        RingSeries s = new RingSeries( "test", 10 );
+        for( int i=0; i<25; i++ )
+            s.add( i, i * i );
+        
+        RingSeries copy = new RingSeries( "copy", 10 );
+        copy.apply( s.delta(0) );
+        assertSameSeries( s, copy );
+    }
+    
+    public void testCopyFollowsClear() {
+        RingSeries s = new RingSeries( "test", 10 );
+        RingSeries copy = new RingSeries( "copy", 10 );
+        for( int i=0; i<8; i++ )
+            s.add( i, i );
+        copy.apply( s.delta(s.takeLowEnd()) );
+        
+        s.clear();
+        s.add( 100, 1 );
+        copy.apply( s.delta(s.takeLowEnd()) );
+        assertSameSeries( s, copy );
+    }
+    
+    /**
+     * Decimates random points into a series and keeps a copy up to date with
+     * deltas, some of which are never applied (as when the GUI misses a
+     * snapshot) and so are sent again as part of the next one.
+     */
+    public void testCopyFollowsDecimatedSeries() {
+        Random r = new Random( 7 );
+        RingSeries s = new RingSeries( "test", 64 );
+        DecimatingSeries dec = new DecimatingSeries( s, 10 );
+        RingSeries copy = new RingSeries( "copy", 64 );
+        
+        long changedFrom = 0;
+        boolean lastTaken = false;
+        long t = 0;
+        for( int round=0; round<2000; round++ ) {
+            int n = r.nextInt( 40 );
+            for( int i=0; i<n; i++ ) {
+                t += r.nextInt( 6 );
+                dec.add( t, r.nextGaussian() );
+            }
+            if( round % 300 == 299 ) {
+                s.clear();
+                dec.reset();
+            }
+            if( round % 97 == 0 )
+                dec.setBucketWidth( 1 + r.nextInt(20) );
+            
+            // publish a delta the way BottleneckLink does
+            long low = s.takeLowEnd();
+            changedFrom = lastTaken ? low : Math.min( changedFrom, low );
+            RingSeries.Delta d = s.delta( changedFrom );
+            lastTaken = r.nextInt( 3 ) != 0;
+            if( lastTaken ) {
+                copy.apply( d );
+                assertSameSeries( s, copy );
+            }
+        }
+    }
+}
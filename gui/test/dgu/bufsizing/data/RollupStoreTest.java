@@ -0,0 +1,88 @@
+package dgu.bufsizing.data;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests tier selection and queries of RollupStore.  The store used has tiers
+ * 1, 10 and 100 time units wide with 10 buckets each, so the tiers cover the
+ * last 10, 100 and 1000 time units.
+ * @author David Underhill
+ */
+public class RollupStoreTest extends TestCase {
+    private RollupStore store;
+    
+    protected void setUp() {
+        store = new RollupStore( 1, new long[]{ 1, 10, 100 }, new int[]{ 10, 10, 10 } );
+    }
+    
+    /** adds a sample of value t at each time t from from to to-1 */
+    private void addSamples( long from, long to ) {
+        for( long t=from; t<to; t++ )
+            store.add( 0, t, t );
+    }
+    
+    public void testFinestTierForRecentRange() {
+        addSamples( 0, 50 );
+        assertEquals( 0, store.chooseTier(42, 50, 8) );
+    }
+    
+    public void testCoarserTierForWidePixels() {
+        addSamples( 0, 50 );
+        assertEquals( 1, store.chooseTier(40, 50, 1) );
+    }
+    
+    public void testSkipsExpiredFinestTier() {
+        addSamples( 0, 50 );
+        
+        // the 1 unit tier only has 40..49 left
+        assertEquals( 1, store.chooseTier(20, 50, 30) );
+        assertEquals( 0, store.chooseTier(40, 50, 30) );
+    }
+    
+    public void testFallsBackToCoarsestWhenFinerTiersExpired() {
+        addSamples( 0, 2000 );
+        
+        // the 1 and 10 unit tiers only go back to 1990 and 1900
+        assertEquals( 2, store.chooseTier(500, 2000, 1500) );
+        assertEquals( 1, store.chooseTier(1900, 2000, 100) );
+    }
+    
+    public void testRangeBeforeFirstSampleUsesFinestTier() {
+        // nothing has been dropped, so even a range starting before the
+        // first sample can be answered by the finest tier
+        addSamples( 100, 105 );
+        assertEquals( 0, store.chooseTier(0, 110, 110) );
+    }
+    
+    public void testClearForgetsDroppedSamples() {
+        addSamples( 0, 50 );
+        store.clear();
+        addSamples( 100, 105 );
+        assertEquals( 0, store.chooseTier(0, 110, 110) );
+    }
+    
+    public void testQueryFromCoarserTierWhenFinerExpired() {
+        addSamples( 0, 50 );
+        
+        RollupStore.Columns c = store.query( 0, 20, 50, 3, null );
+        assertEquals( 1, c.tier );
+        assertEquals( 3, c.numColumns );
+        for( int i=0; i<3; i++ ) {
+            long start = 20 + 10 * i;
+            assertEquals( 10, c.count[i] );
+            assertEquals( (double)start, c.min[i], 0 );
+            assertEquals( (double)(start + 9), c.max[i], 0 );
+            assertEquals( start + 4.5, c.getMean(i), 1e-9 );
+        }
+    }
+    
+    public void testQueryLeavesEmptyColumnsEmpty() {
+        addSamples( 0, 5 );
+        
+        RollupStore.Columns c = store.query( 0, 0, 10, 10, null );
+        assertEquals( 0, c.tier );
+        for( int i=0; i<10; i++ )
+            assertEquals( (i < 5) ? 1 : 0, c.count[i] );
+        assertTrue( Double.isNaN(c.getMean(7)) );
+    }
+}